@@ -0,0 +1,13 @@
+#! /bin/bash
+DATADIR=${1:-../data}
+DBNAME=$2
+PORT=$3
+USER=$4
+
+# Runs the same operations on the in-memory engine and, when a database is
+# given, on the database, and compares the results. The database must be
+# freshly loaded from DATADIR, the check adds rows and archives partitions.
+# Exits with status 1 when a check failed
+# Example: source ./check_repository.sh ../data
+#          source ./check_repository.sh ../data flightDB 5432 user
+java -cp lib/*:bin/ RepositoryCheck $DATADIR $DBNAME $PORT $USER
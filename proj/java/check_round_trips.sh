@@ -0,0 +1,48 @@
+#! /bin/bash
+DBNAME=$1
+PORT=$2
+USER=$3
+
+# Runs each of the menu operations 1 to 10 once against a loaded local
+# database and fails when one takes more round trips than its budget in
+# round_trip_budgets.properties. Adds a customer, a mechanic, a car and
+# opens and closes a service request for customer Enderle.
+# Example: bash ./check_round_trips.sh flightDB 5432 user
+TODAY=$(date +%m/%d/%Y)
+VIN=RT$(date +%s%N | tail -c 15)
+FAILED=0
+
+run() {
+	printf "$2" | java -Dshop.trace -Dshop.roundTripBudgets=round_trip_budgets.properties -cp lib/*:bin/ MechanicShop $DBNAME $PORT $USER > check_round_trips.out 2>&1
+	STATUS=$?
+	grep "^\[trace\]\|Round-trip budget exceeded" check_round_trips.out
+	if [ $STATUS -ne 0 ]; then
+		echo "FAIL $1 (exit status $STATUS)"
+		FAILED=1
+	fi
+}
+
+run AddCustomer "1\ny\nTrace\nCheck\n(555)555-5555\n1 Round Trip Road\n11\n"
+run AddMechanic "2\ny\nTrace\nCheck\n5\n11\n"
+run AddCar "3\n$VIN\nFord\nModel T\n2001\n11\n"
+run InsertServiceRequest "4\nEnderle\nXEGUBS7780168971\n$TODAY\n1000\nround trip check\ny\n11\n"
+RID=$(grep -o "Opened service request [0-9]*" check_round_trips.out | grep -o "[0-9]*$")
+if [ -z "$RID" ]; then
+	echo "FAIL InsertServiceRequest opened no request"
+	FAILED=1
+else
+	run CloseServiceRequest "5\n$RID\n0\n$TODAY\nround trip check\n50\n11\n"
+fi
+run ListCustomersWithBillLessThan100 "6\n\n\nq\n11\n"
+run ListCustomersWithMoreThan20Cars "7\n11\n"
+run ListCarsBefore1995With50000Milles "8\n\n\nq\n11\n"
+run ListKCarsWithTheMostServices "9\n\n\n5\n11\n"
+run ListCustomersInDescendingOrderOfTheirTotalBill "10\n\n\nq\n11\n"
+rm -f check_round_trips.out
+
+if [ $FAILED -ne 0 ]; then
+	echo "Round-trip budgets exceeded"
+	false
+else
+	echo "All operations within their round-trip budgets"
+fi
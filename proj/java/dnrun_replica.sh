@@ -0,0 +1,4 @@
+#! /bin/bash
+
+# Reports are read from the replica started by start_replica.sh
+java -cp lib/*:bin/ MechanicShop dnguy117_DB 9991 dnguy117 9992
@@ -0,0 +1,9 @@
+#! /bin/bash
+ARCHIVE=${1:-closed.arc}
+
+# Exports closed history from the offline data into a columnar archive and
+# runs the historical billing reports on it
+# Example: source ./run_archive.sh closed.arc
+java -cp lib/*:bin/ ColumnarArchive export --offline ../data $ARCHIVE
+java -cp lib/*:bin/ ColumnarArchive revenue $ARCHIVE
+java -cp lib/*:bin/ ColumnarArchive experience $ARCHIVE
@@ -0,0 +1,9 @@
+#! /bin/bash
+DBNAME=$1
+PORT=$2
+USER=$3
+
+# Like run.sh, but service requests are acknowledged from a local journal
+# and written to the database in the background
+# Example: source ./run_journal.sh flightDB 5432 user
+java -Dshop.journal=intake.journal -cp lib/*:bin/ MechanicShop $DBNAME $PORT $USER
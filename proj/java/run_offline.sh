@@ -0,0 +1,4 @@
+#! /bin/bash
+
+# Runs the shop without a database on an in-memory copy of ../data
+java -cp lib/*:bin/ MechanicShop --offline ../data
@@ -0,0 +1,10 @@
+#! /bin/bash
+DBNAME=$1
+PORT=$2
+USER=$3
+CUTOFF=$4
+
+# Moves service request partitions of months ending on or before the cutoff
+# to the archive schema; shard ports may follow, each is archived in turn
+# Example: source ./run_partition_archive.sh flightDB 5432 user 01/31/2016
+java -cp lib/*:bin/ PartitionArchiver $DBNAME $PORT $USER $CUTOFF "${@:5}"
@@ -0,0 +1,9 @@
+#! /bin/bash
+HTTPPORT=$1
+DBNAME=$2
+PORT=$3
+USER=$4
+
+# Serves the shop operations as JSON endpoints on HTTPPORT
+# Example: source ./run_server.sh 8080 flightDB 5432 user
+java -cp lib/*:bin/ ShopServer $HTTPPORT $DBNAME $PORT $USER
@@ -0,0 +1,8 @@
+#! /bin/bash
+SHARDS=${1:-2}
+
+# Runs the shop on the shards started by start_shards.sh (at least 2):
+# shard 0 on port 9993 is the shop's database, the others are shop.shards
+# Example: source ./run_sharded.sh 3
+OTHERS=$(seq -s, 9994 $((9992 + SHARDS)))
+java -Dshop.shards=$OTHERS -cp lib/*:bin/ MechanicShop dnguy117_DB 9993 dnguy117
@@ -0,0 +1,191 @@
+/*
+ * Archive analytics
+ * =================
+ *
+ * Filter, group-by and sum over the columns of a ColumnarArchive.
+ *
+ */
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Queries run block by block over primitive column arrays. The date range
+ * is found by binary search on the sorted date column, then for each block
+ * of BLOCK rows the group keys are computed into a long array in one tight
+ * loop and summed into per-group totals held in an open addressing table,
+ * so the work per row is a few array accesses the JIT compiles to simple,
+ * unrolled loops.
+ *
+ */
+
+public class ArchiveQuery{
+	private static final int BLOCK = 1024;
+	//group key fields are packed 21 bits each into a long
+	private static final int BITS = 21;
+	private static final long FIELD = (1L << BITS) - 1;
+
+	/**
+	 * Sums and counts per group key.
+	 */
+	private static class Groups{
+		private long[] keys = new long[64];
+		private long[] sums = new long[64];
+		private long[] counts = new long[64];
+		private boolean[] used = new boolean[64];
+		private int size = 0;
+
+		void add(long key, long value) {
+			int mask = keys.length - 1;
+			int i = (int) ((key * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+			while (used[i] && keys[i] != key) i = (i + 1) & mask;
+			if (!used[i]) {
+				if ((size + 1) * 2 > keys.length) {
+					grow();
+					add(key, value);
+					return;
+				}
+				used[i] = true;
+				keys[i] = key;
+				size++;
+			}
+			sums[i] += value;
+			counts[i]++;
+		}
+
+		private void grow() {
+			long[] oldKeys = keys, oldSums = sums, oldCounts = counts;
+			boolean[] oldUsed = used;
+			keys = new long[oldKeys.length * 2];
+			sums = new long[keys.length];
+			counts = new long[keys.length];
+			used = new boolean[keys.length];
+			size = 0;
+			for (int j = 0; j < oldKeys.length; j++) {
+				if (oldUsed[j]) {
+					int mask = keys.length - 1;
+					int i = (int) ((oldKeys[j] * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+					while (used[i]) i = (i + 1) & mask;
+					used[i] = true;
+					keys[i] = oldKeys[j];
+					sums[i] = oldSums[j];
+					counts[i] = oldCounts[j];
+					size++;
+				}
+			}
+		}
+
+		/**
+		 * @return slot indexes of the groups, by key
+		 */
+		Integer[] slots() {
+			Integer[] slots = new Integer[size];
+			int n = 0;
+			for (int i = 0; i < keys.length; i++) {
+				if (used[i]) slots[n++] = i;
+			}
+			final long[] k = keys;
+			Arrays.sort(slots, new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					return Long.compare(k[a], k[b]);
+				}
+			});
+			return slots;
+		}
+	}
+
+	private ColumnarArchive archive;
+
+	public ArchiveQuery(ColumnarArchive archive) {
+		this.archive = archive;
+	}
+
+	/**
+	 * Sums the value column per group of up to three key columns over rows
+	 * closed in [from, to), optionally only rows where a column has a value.
+	 *
+	 * @param keys key columns, values below 2^21
+	 * @param values column summed per group
+	 * @param from first epoch day, inclusive
+	 * @param to last epoch day, exclusive
+	 * @param filter column to filter on, null for all rows
+	 * @param wanted the value rows must have in filter
+	 */
+	private Groups sumBy(int[][] keys, int[] values, int from, int to, int[] filter, int wanted) throws IOException {
+		int start = archive.firstRowOnOrAfter(from);
+		int end = to == Integer.MAX_VALUE ? archive.rows() : archive.firstRowOnOrAfter(to);
+		Groups groups = new Groups();
+		//rows of the block passing the filter, then their packed keys
+		int[] selected = new int[BLOCK];
+		long[] packed = new long[BLOCK];
+		for (int block = start; block < end; block += BLOCK) {
+			int n = Math.min(BLOCK, end - block);
+			int m = 0;
+			if (filter == null) {
+				for (int i = 0; i < n; i++) {
+					selected[i] = block + i;
+				}
+				m = n;
+			} else {
+				//no branch per row: every row is written, only matches advance
+				for (int i = 0; i < n; i++) {
+					selected[m] = block + i;
+					m += filter[block + i] == wanted ? 1 : 0;
+				}
+			}
+			Arrays.fill(packed, 0, m, 0L);
+			for (int[] column : keys) {
+				for (int i = 0; i < m; i++) {
+					packed[i] = (packed[i] << BITS) | (column[selected[i]] & FIELD);
+				}
+			}
+			for (int i = 0; i < m; i++) {
+				groups.add(packed[i], values[selected[i]]);
+			}
+		}
+		return groups;
+	}
+
+	private static int field(long key, int index, int fields) {
+		return (int) ((key >>> (BITS * (fields - 1 - index))) & FIELD);
+	}
+
+	/**
+	 * @param make only cars of this make, null for all
+	 * @return (make, model, close year, closed requests, revenue) per make,
+	 * model and year, in that order
+	 */
+	public List<List<String>> revenueByMakeModelYear(int from, int to, String make) throws IOException {
+		String[] makes = archive.dictionary("make");
+		String[] models = archive.dictionary("model");
+		int wanted = make == null ? -1 : Arrays.asList(makes).indexOf(make);
+		if (make != null && wanted < 0) return new ArrayList<List<String>>();
+		Groups groups = sumBy(new int[][]{archive.column("make"), archive.column("model"), archive.closeYears()}, archive.column("bill"),
+			from, to, make == null ? null : archive.column("make"), wanted);
+		List<List<String>> rows = new ArrayList<List<String>>();
+		for (int slot : groups.slots()) {
+			long key = groups.keys[slot];
+			rows.add(Arrays.asList(makes[field(key, 0, 3)], models[field(key, 1, 3)], Integer.toString(field(key, 2, 3)),
+				Long.toString(groups.counts[slot]), Long.toString(groups.sums[slot])));
+		}
+		return rows;
+	}
+
+	/**
+	 * @return (years of experience, closed requests, average bill) per
+	 * mechanic experience, in that order
+	 */
+	public List<List<String>> averageBillByExperience(int from, int to) throws IOException {
+		Groups groups = sumBy(new int[][]{archive.column("experience")}, archive.column("bill"), from, to, null, 0);
+		List<List<String>> rows = new ArrayList<List<String>>();
+		for (int slot : groups.slots()) {
+			rows.add(Arrays.asList(Long.toString(groups.keys[slot]), Long.toString(groups.counts[slot]),
+				String.format("%.2f", (double) groups.sums[slot] / groups.counts[slot])));
+		}
+		return rows;
+	}
+}
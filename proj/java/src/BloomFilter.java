@@ -0,0 +1,184 @@
+/*
+ * Bloom filter
+ * ============
+ *
+ * A compact set of strings that answers "maybe present" or "certainly
+ * not present".
+ *
+ */
+
+
+/**
+ * Bits set by k hash functions per element. A lookup that finds any of
+ * its k bits clear was never added; one that finds them all set is a
+ * false positive with about the rate the filter was sized for, as long as
+ * no more elements than its capacity are added. The k indexes come from
+ * one 64 bit hash of the string, h1 + i * h2 (Kirsch and Mitzenmacher).
+ * Elements can not be removed.
+ *
+ * Thread safe; lookups and adds are short and synchronized.
+ *
+ */
+
+public class BloomFilter{
+	private static final double LN2 = Math.log(2);
+
+	private long[] words;
+	private long bits;
+	private int hashes;
+	private long capacity;
+	private long added = 0;
+
+	/**
+	 * @param capacity elements the filter is sized for
+	 * @param fpp false positive rate at capacity, e.g. 0.01
+	 */
+	public BloomFilter(long capacity, double fpp) {
+		if (capacity <= 0) throw new IllegalArgumentException("capacity must be positive");
+		if (fpp <= 0 || fpp >= 1) throw new IllegalArgumentException("false positive rate must be between 0 and 1");
+		long m = (long) Math.ceil(-capacity * Math.log(fpp) / (LN2 * LN2));
+		this.words = new long[(int) Math.min(Integer.MAX_VALUE - 8, (m + 63) / 64)];
+		this.bits = (long) words.length * 64;
+		this.hashes = Math.max(1, (int) Math.round((double) bits / capacity * LN2));
+		this.capacity = capacity;
+	}
+
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private static long hash(String s) {
+		//FNV-1a over the chars, then mixed so every bit depends on every char
+		long h = 0xCBF29CE484222325L;
+		for (int i = 0; i < s.length(); i++) {
+			h = (h ^ s.charAt(i)) * 0x100000001B3L;
+		}
+		return mix(h);
+	}
+
+	public synchronized void add(String s) {
+		long h1 = hash(s);
+		long h2 = mix(h1) | 1;
+		for (int i = 0; i < hashes; i++) {
+			long bit = Math.floorMod(h1 + i * h2, bits);
+			words[(int) (bit >>> 6)] |= 1L << bit;
+		}
+		added++;
+	}
+
+	/**
+	 * @return false when s was certainly never added
+	 */
+	public synchronized boolean mightContain(String s) {
+		long h1 = hash(s);
+		long h2 = mix(h1) | 1;
+		for (int i = 0; i < hashes; i++) {
+			long bit = Math.floorMod(h1 + i * h2, bits);
+			if ((words[(int) (bit >>> 6)] & (1L << bit)) == 0) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the adds so far, counting repeated elements each time
+	 */
+	public synchronized long added() {
+		return added;
+	}
+
+	public long capacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return memory held by the bits
+	 */
+	public long bytes() {
+		return (long) words.length * 8;
+	}
+
+	/**
+	 * @return the false positive rate expected with the elements added so far
+	 */
+	public synchronized double expectedFpp() {
+		return Math.pow(1 - Math.exp(-(double) hashes * added / bits), hashes);
+	}
+
+	public synchronized String toString() {
+		return String.format("%d element(s), %d hash(es), %d KB, expected false positive rate %.4f%%",
+			added, hashes, bytes() / 1024, 100 * expectedFpp());
+	}
+
+	/**
+	 * @return a 16 character VIN-like string, different for every n
+	 */
+	private static String vin(long n) {
+		char[] digits = "0123456789ABCDEFGHJKLMNPRSTUVWXYZ".toCharArray();
+		char[] vin = new char[16];
+		long v = mix(n);
+		for (int i = 0; i < 13; i++) {
+			vin[i] = digits[(int) Math.floorMod(v, (long) digits.length)];
+			v = Math.floorDiv(v, (long) digits.length);
+		}
+		//the last three places keep every n distinct whatever the hash did
+		for (int i = 15; i >= 13; i--) {
+			vin[i] = digits[(int) (n % digits.length)];
+			n /= digits.length;
+		}
+		return new String(vin);
+	}
+
+	/**
+	 * Benchmark: adds VINs to a filter sized for them, looks every one up
+	 * and as many VINs never added, and prints the time per operation, the
+	 * memory and the false positive rate measured against the one asked for.
+	 *
+	 *   java BloomFilter [VINs, default 10000000] [false positive rate, default 0.01]
+	 */
+	public static void main(String[] args) {
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+		double fpp = args.length > 1 ? Double.parseDouble(args[1]) : 0.01;
+		//the VINs added and absent, built up front so only the filter is timed
+		String[] present = new String[n];
+		String[] absent = new String[n];
+		for (int i = 0; i < n; i++) {
+			present[i] = vin(2L * i);
+			absent[i] = vin(2L * i + 1);
+		}
+		BloomFilter filter = new BloomFilter(n, fpp);
+
+		long start = System.nanoTime();
+		for (String vin : present) {
+			filter.add(vin);
+		}
+		long addNs = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		long missing = 0;
+		for (String vin : present) {
+			if (!filter.mightContain(vin)) missing++;
+		}
+		long hitNs = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		long falsePositives = 0;
+		for (String vin : absent) {
+			if (filter.mightContain(vin)) falsePositives++;
+		}
+		long missNs = System.nanoTime() - start;
+
+		System.out.println(filter);
+		System.out.println(String.format("add %.0f ns, lookup of an added VIN %.0f ns, of an absent one %.0f ns",
+			(double) addNs / n, (double) hitNs / n, (double) missNs / n));
+		System.out.println(String.format("false positive rate %.4f%% (asked for %.4f%%), %d added VIN(s) reported absent",
+			100.0 * falsePositives / n, 100 * fpp, missing));
+		System.out.println(String.format("%.1f bits per VIN, a HashSet of the same VINs holds about %d MB",
+			8.0 * filter.bytes() / n, (long) n * 120 / (1 << 20)));
+		if (missing > 0) System.exit(1);
+	}
+}
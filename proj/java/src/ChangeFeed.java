@@ -0,0 +1,188 @@
+/*
+ * Service request change feed
+ * ===========================
+ *
+ * Hands the changes to service requests made by any client to the parts
+ * of this client that want to follow them.
+ *
+ */
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The shop's NotificationListener follows the shop_requests channel (see
+ * RequestFeedMigration) of every shard and passes every change on to the
+ * subscriptions.
+ * A subscription holds at most one pending change per request, a newer
+ * one replaces it, so a slow subscriber sees the latest state of each
+ * request instead of every step. When more requests are pending than the
+ * subscription's capacity its changes are dropped and it is told to
+ * resync, i.e. read the current state again, so one stuck subscriber
+ * never holds memory or slows the others. All subscriptions are told to
+ * resync after a listener reconnects, notifications sent meanwhile are
+ * lost.
+ *
+ */
+
+public class ChangeFeed{
+	/**
+	 * One change: the state of the request after it.
+	 */
+	public static class Event{
+		//opened, updated or closed
+		public final String op;
+		public final int rid;
+		//the payload's fields, op and rid included
+		public final Map<String, String> fields;
+		//backend of the session that made the change
+		public final int pid;
+
+		Event(Map<String, String> fields) {
+			this.fields = fields;
+			this.op = fields.get("op");
+			this.rid = Integer.parseInt(fields.get("rid"));
+			this.pid = fields.containsKey("pid") ? Integer.parseInt(fields.get("pid")) : -1;
+		}
+
+		/**
+		 * @return true once the request is closed
+		 */
+		public boolean isClosed() {
+			return "C".equals(fields.get("status"));
+		}
+	}
+
+	/**
+	 * The changes one subscriber has not taken yet, latest per request.
+	 */
+	public class Subscription{
+		private int capacity;
+		private LinkedHashMap<Integer, Event> pending = new LinkedHashMap<Integer, Event>();
+		private boolean resync = false;
+		private long coalesced = 0, overflows = 0;
+
+		Subscription(int capacity) {
+			this.capacity = capacity;
+		}
+
+		synchronized void offer(Event e) {
+			//the changes are in the state read on resyncing
+			if (resync) return;
+			if (pending.remove(e.rid) != null) coalesced++;
+			pending.put(e.rid, e);
+			if (pending.size() > capacity) {
+				pending.clear();
+				overflows++;
+				resync = true;
+			}
+			notifyAll();
+		}
+
+		synchronized void lost() {
+			pending.clear();
+			resync = true;
+			notifyAll();
+		}
+
+		/**
+		 * Waits for changes.
+		 *
+		 * @param timeoutMs longest wait
+		 * @return the pending changes in the order their requests first
+		 * changed, empty on timeout or when a resync is due
+		 */
+		public synchronized List<Event> poll(long timeoutMs) throws InterruptedException {
+			long until = System.currentTimeMillis() + timeoutMs;
+			while (pending.isEmpty() && !resync) {
+				long left = until - System.currentTimeMillis();
+				if (left <= 0) return Collections.emptyList();
+				wait(left);
+			}
+			List<Event> events = new ArrayList<Event>(pending.values());
+			pending.clear();
+			return events;
+		}
+
+		/**
+		 * Tells whether changes were dropped and clears the flag. Changes
+		 * from then on are queued again, the subscriber reads the current
+		 * state after calling this and applies them on top.
+		 *
+		 * @return true when the subscriber has to read the current state
+		 */
+		public synchronized boolean takeResync() {
+			boolean due = resync;
+			resync = false;
+			return due;
+		}
+
+		public synchronized String stats() {
+			return coalesced + " change(s) coalesced, " + overflows + " overflow(s)";
+		}
+
+		public void close() {
+			subscriptions.remove(this);
+		}
+	}
+
+	private List<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+
+	/**
+	 * @param capacity most requests with a change pending before the
+	 * subscriber has to resync
+	 * @return a new subscription, receiving changes from now on
+	 */
+	public Subscription subscribe(int capacity) {
+		Subscription s = new Subscription(capacity);
+		subscriptions.add(s);
+		return s;
+	}
+
+	/**
+	 * Passes a change to every subscription.
+	 *
+	 * @param payload the notification payload, a flat JSON object
+	 */
+	public void publish(String payload) {
+		Event e;
+		try{
+			e = new Event(ShopServer.parseObject(payload));
+		}catch(RuntimeException ex){
+			System.err.println("Ignoring malformed change notification: " + payload);
+			return;
+		}
+		for (Subscription s : subscriptions) {
+			s.offer(e);
+		}
+	}
+
+	/**
+	 * Follows the shop_requests channel of a database. Called once per
+	 * database when the shop is sharded.
+	 *
+	 * @param listener the shop's notification listener
+	 * @param origin the shop whose database is listened to
+	 */
+	public void listen(NotificationListener listener, MechanicShop origin) {
+		listener.listen(origin, "shop_requests", new NotificationListener.Handler() {
+			public void connected(MechanicShop session) {
+				for (Subscription s : subscriptions) {
+					s.lost();
+				}
+			}
+
+			public void notified(String payload) {
+				publish(payload);
+			}
+
+			public void disconnected() {
+			}
+		});
+	}
+}
@@ -0,0 +1,359 @@
+/*
+ * Columnar billing archive
+ * ========================
+ *
+ * Closed request history in a compressed, column-oriented local file, for
+ * analytics that should not load the shop's database.
+ *
+ */
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One row per closed request: close date, bill, make and model of the car,
+ * the car's year, and the id and experience of the mechanic. Rows are
+ * sorted by date and every column is stored on its own, so a query only
+ * reads the columns it uses:
+ *
+ *   date                  first day, then day deltas, as varints
+ *   make, model           codes into a dictionary of the distinct names
+ *   bill, year, mechanic, experience   zigzag varints
+ *
+ * The file is an 8 byte magic, the row count, a directory of (name,
+ * offset, length) and the column sections. It is read through a memory
+ * mapping and each column is decoded into a primitive array on first use;
+ * like any single mapping it is limited to 2 GB.
+ *
+ */
+
+public class ColumnarArchive{
+	private static final String MAGIC = "SHOPARC1";
+	public static final String[] COLUMNS = {"date", "bill", "make", "model", "year", "mechanic", "experience"};
+	private static final int DATE = 0, BILL = 1, MAKE = 2, MODEL = 3, YEAR = 4, MECHANIC = 5, EXPERIENCE = 6;
+
+	/**
+	 * Collects closed history rows as ShopRepository.closedHistory streams
+	 * them and writes the archive file.
+	 */
+	public static class Writer implements RowSink{
+		private int[][] columns = new int[COLUMNS.length][1024];
+		private int rows = 0;
+		private Map<String, Integer> makes = new LinkedHashMap<String, Integer>();
+		private Map<String, Integer> models = new LinkedHashMap<String, Integer>();
+
+		public void header(List<String> columns) {
+		}
+
+		public void row(List<String> values) {
+			if (rows == columns[0].length) {
+				for (int c = 0; c < columns.length; c++) {
+					columns[c] = Arrays.copyOf(columns[c], rows * 2);
+				}
+			}
+			columns[DATE][rows] = (int) LocalDate.parse(values.get(0).trim()).toEpochDay();
+			columns[BILL][rows] = Integer.parseInt(values.get(1).trim());
+			columns[MAKE][rows] = code(makes, values.get(2));
+			columns[MODEL][rows] = code(models, values.get(3));
+			columns[YEAR][rows] = Integer.parseInt(values.get(4).trim());
+			columns[MECHANIC][rows] = Integer.parseInt(values.get(5).trim());
+			columns[EXPERIENCE][rows] = Integer.parseInt(values.get(6).trim());
+			rows++;
+		}
+
+		private static int code(Map<String, Integer> dictionary, String value) {
+			String name = value == null ? "" : value.trim();
+			Integer code = dictionary.get(name);
+			if (code == null) {
+				code = dictionary.size();
+				dictionary.put(name, code);
+			}
+			return code;
+		}
+
+		public int rows() {
+			return rows;
+		}
+
+		/**
+		 * Sorts the rows by date and writes the archive.
+		 *
+		 * @return the size of the file in bytes
+		 */
+		public long write(File file) throws IOException {
+			//(day, row) packed, sorting them orders the rows by date
+			long[] order = new long[rows];
+			for (int r = 0; r < rows; r++) {
+				order[r] = ((long) columns[DATE][r] << 32) | r;
+			}
+			Arrays.sort(order);
+			Map<String, byte[]> sections = new LinkedHashMap<String, byte[]>();
+			sections.put("make.dictionary", dictionary(makes));
+			sections.put("model.dictionary", dictionary(models));
+			for (int c = 0; c < COLUMNS.length; c++) {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				long previous = 0;
+				for (int i = 0; i < rows; i++) {
+					int value = columns[c][(int) order[i]];
+					if (c == DATE) {
+						writeVarint(bytes, zigzag(value - previous));
+						previous = value;
+					} else {
+						writeVarint(bytes, zigzag(value));
+					}
+				}
+				sections.put(COLUMNS[c], bytes.toByteArray());
+			}
+			ByteArrayOutputStream directory = new ByteArrayOutputStream();
+			DataOutputStream dir = new DataOutputStream(directory);
+			dir.writeInt(sections.size());
+			for (Map.Entry<String, byte[]> e : sections.entrySet()) {
+				dir.writeUTF(e.getKey());
+				dir.writeLong(0);
+				dir.writeLong(0);
+			}
+			//offsets are known once the directory's size is
+			long offset = MAGIC.length() + 4 + directory.size();
+			directory.reset();
+			dir.writeInt(sections.size());
+			for (Map.Entry<String, byte[]> e : sections.entrySet()) {
+				dir.writeUTF(e.getKey());
+				dir.writeLong(offset);
+				dir.writeLong(e.getValue().length);
+				offset += e.getValue().length;
+			}
+			DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+			try{
+				out.write(MAGIC.getBytes(StandardCharsets.US_ASCII));
+				out.writeInt(rows);
+				directory.writeTo(out);
+				for (byte[] section : sections.values()) {
+					out.write(section);
+				}
+			}finally{
+				out.close();
+			}
+			return offset;
+		}
+
+		private static byte[] dictionary(Map<String, Integer> dictionary) throws IOException {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(dictionary.size());
+			for (String name : dictionary.keySet()) {
+				out.writeUTF(name);
+			}
+			return bytes.toByteArray();
+		}
+	}
+
+	private static long zigzag(long v) {
+		return (v << 1) ^ (v >> 63);
+	}
+
+	private static void writeVarint(ByteArrayOutputStream out, long v) {
+		while ((v & ~0x7FL) != 0) {
+			out.write((int) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		out.write((int) v);
+	}
+
+	private MappedByteBuffer buf;
+	private int rows;
+	//section name -> {offset, length}
+	private Map<String, long[]> sections = new HashMap<String, long[]>();
+	private Map<String, int[]> decoded = new HashMap<String, int[]>();
+
+	private ColumnarArchive(MappedByteBuffer buf) throws IOException {
+		this.buf = buf;
+		byte[] magic = new byte[MAGIC.length()];
+		buf.get(magic);
+		if (!MAGIC.equals(new String(magic, StandardCharsets.US_ASCII))) throw new IOException("Not a shop archive");
+		rows = buf.getInt();
+		int n = buf.getInt();
+		for (int i = 0; i < n; i++) {
+			byte[] name = new byte[buf.getShort() & 0xFFFF];
+			buf.get(name);
+			sections.put(new String(name, StandardCharsets.UTF_8), new long[]{buf.getLong(), buf.getLong()});
+		}
+	}
+
+	/**
+	 * Maps an archive file.
+	 */
+	public static ColumnarArchive open(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try{
+			//the mapping stays valid after the channel is closed
+			return new ColumnarArchive(raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()));
+		}finally{
+			raf.close();
+		}
+	}
+
+	public int rows() {
+		return rows;
+	}
+
+	/**
+	 * @param name one of COLUMNS
+	 * @return the column's values in row order; dates as epoch days, make
+	 * and model as dictionary codes
+	 */
+	public synchronized int[] column(String name) throws IOException {
+		int[] values = decoded.get(name);
+		if (values != null) return values;
+		long[] section = sections.get(name);
+		if (section == null) throw new IOException("No column " + name);
+		values = new int[rows];
+		int p = (int) section[0];
+		long previous = 0;
+		boolean delta = name.equals(COLUMNS[DATE]);
+		for (int r = 0; r < rows; r++) {
+			long v = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = buf.get(p++);
+				v |= (long) (b & 0x7F) << shift;
+				shift += 7;
+			} while (b < 0);
+			v = (v >>> 1) ^ -(v & 1);
+			if (delta) v = previous += v;
+			values[r] = (int) v;
+		}
+		decoded.put(name, values);
+		return values;
+	}
+
+	/**
+	 * @return the calendar year of each row's close date
+	 */
+	public synchronized int[] closeYears() throws IOException {
+		int[] years = decoded.get("close_year");
+		if (years != null) return years;
+		int[] days = column("date");
+		years = new int[rows];
+		//dates are sorted, a year only has to be worked out when a new one starts
+		int year = 0;
+		long nextYearStart = Long.MIN_VALUE;
+		for (int r = 0; r < rows; r++) {
+			if (days[r] >= nextYearStart || r == 0) {
+				year = LocalDate.ofEpochDay(days[r]).getYear();
+				nextYearStart = LocalDate.of(year + 1, 1, 1).toEpochDay();
+			}
+			years[r] = year;
+		}
+		decoded.put("close_year", years);
+		return years;
+	}
+
+	/**
+	 * @param name make or model
+	 * @return the names by code
+	 */
+	public synchronized String[] dictionary(String name) throws IOException {
+		long[] section = sections.get(name + ".dictionary");
+		if (section == null) throw new IOException("No dictionary for " + name);
+		int p = (int) section[0];
+		String[] names = new String[buf.getInt(p)];
+		p += 4;
+		for (int i = 0; i < names.length; i++) {
+			byte[] bytes = new byte[buf.getShort(p) & 0xFFFF];
+			p += 2;
+			for (int k = 0; k < bytes.length; k++) {
+				bytes[k] = buf.get(p++);
+			}
+			names[i] = new String(bytes, StandardCharsets.UTF_8);
+		}
+		return names;
+	}
+
+	/**
+	 * @return the first row closed on or after the day, rows when none is
+	 */
+	public int firstRowOnOrAfter(int day) throws IOException {
+		int[] days = column("date");
+		int lo = 0, hi = rows;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (days[mid] < day) lo = mid + 1;
+			else hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * Exports the closed history of the shop the arguments point to, or
+	 * runs one of the ArchiveQuery analytics on an archive.
+	 *
+	 * Usage:
+	 *   java ColumnarArchive export <dbname> <port> <user> <archive file>
+	 *   java ColumnarArchive export --offline <data dir> <archive file>
+	 *   java ColumnarArchive revenue <archive file> [from MM/DD/YYYY] [until MM/DD/YYYY] [make]
+	 *   java ColumnarArchive experience <archive file> [from MM/DD/YYYY] [until MM/DD/YYYY]
+	 */
+	public static void main(String[] args) {
+		if (args.length < 2) {
+			System.err.println("Usage: java ColumnarArchive export <dbname> <port> <user> <file> | export --offline <data dir> <file> | revenue|experience <file> [from] [until] [make]");
+			return;
+		}
+		try{
+			if (args[0].equals("export")) {
+				MechanicShop esql = args[1].equals("--offline")
+					? new MechanicShop(MemoryShopRepository.load(new File(args[2])))
+					: new MechanicShop(args[1], args[2], args[3], "");
+				File file = new File(args[args.length - 1]);
+				long start = System.currentTimeMillis();
+				Writer writer = new Writer();
+				try{
+					esql.repository().closedHistory(writer);
+				}finally{
+					esql.cleanup();
+				}
+				long bytes = writer.write(file);
+				System.out.println("Archived " + writer.rows() + " closed request(s) in " + bytes + " bytes to " + file
+					+ " (" + (System.currentTimeMillis() - start) + " ms)");
+				return;
+			}
+			ColumnarArchive archive = open(new File(args[1]));
+			//"-" leaves an end of the range open
+			int from = args.length > 2 && !args[2].equals("-") ? MemoryShopRepository.parseDate(args[2]) : Integer.MIN_VALUE;
+			int to = args.length > 3 && !args[3].equals("-") ? MemoryShopRepository.parseDate(args[3]) : Integer.MAX_VALUE;
+			ArchiveQuery query = new ArchiveQuery(archive);
+			long start = System.nanoTime();
+			List<List<String>> result;
+			List<String> header;
+			if (args[0].equals("revenue")) {
+				header = Arrays.asList("make", "model", "year", "closed", "revenue");
+				result = query.revenueByMakeModelYear(from, to, args.length > 4 ? args[4] : null);
+			} else if (args[0].equals("experience")) {
+				header = Arrays.asList("experience", "closed", "average_bill");
+				result = query.averageBillByExperience(from, to);
+			} else {
+				System.err.println("Unknown command " + args[0]);
+				return;
+			}
+			long micros = (System.nanoTime() - start) / 1000;
+			MechanicShop.printRows(header, result);
+			System.out.println(result.size() + " group(s) from " + archive.rows() + " archived row(s) in " + micros + " us");
+		}catch(Exception e){
+			System.err.println(e.getMessage());
+		}
+	}
+}
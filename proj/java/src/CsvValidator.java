@@ -0,0 +1,612 @@
+/*
+ * Input data validator
+ * ====================
+ *
+ * Checks the CSV files create.sql loads against the constraints of the
+ * schema before Postgres sees them.
+ *
+ */
+
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A bad row makes Postgres reject the whole COPY it is in, and only the
+ * first bad row is named. This validator reports every row that would be
+ * refused: wrong number of fields, NULL or malformed values, values
+ * outside their domain (_PINTEGER, _YEAR, _YEARS), strings too long for
+ * their column, duplicate primary keys and dangling references, including
+ * Closed_Request.rid which the database checks in a trigger.
+ *
+ * Each file is memory-mapped and split on line boundaries into one chunk
+ * per core, every chunk is checked by its own thread straight from the
+ * mapped bytes. Keys are kept in primitive hash sets, VINs packed into
+ * two longs, so references are checked without creating objects. Files
+ * are checked in load order so the keys they reference are complete;
+ * a rejected row's key is not kept, its references are reported too.
+ *
+ * Usage: java CsvValidator <data dir> [rejects file, default rejects.txt]
+ * Exits with status 1 when a row was rejected.
+ *
+ */
+
+public class CsvValidator{
+	//chunks below this size are not worth a thread of their own
+	private static final long MIN_CHUNK = 1 << 20;
+	//a mapping can not exceed 2 GB
+	private static final long MAX_CHUNK = 1L << 30;
+	//longest part of a rejected line copied into the report
+	private static final int MAX_SHOWN = 200;
+
+	/**
+	 * Set of keys of up to 16 bytes held as two longs: an id with 0, a
+	 * date and id, or the bytes of a VIN. Adds are safe from many threads,
+	 * the set is split in stripes locked separately.
+	 */
+	static class KeySet{
+		private static final int STRIPES = 64;
+		private Stripe[] stripes = new Stripe[STRIPES];
+
+		KeySet() {
+			for (int i = 0; i < STRIPES; i++) {
+				stripes[i] = new Stripe();
+			}
+		}
+
+		private static long hash(long hi, long lo) {
+			long h = hi * 0x9E3779B97F4A7C15L + lo;
+			h = (h ^ (h >>> 32)) * 0xD6E8FEB86659FD93L;
+			return h ^ (h >>> 32);
+		}
+
+		/**
+		 * @return false if the key was in the set already
+		 */
+		boolean add(long hi, long lo) {
+			long h = hash(hi, lo);
+			Stripe s = stripes[(int) (h >>> 58)];
+			synchronized (s) {
+				return s.add(hi, lo, (int) h);
+			}
+		}
+
+		/**
+		 * Only called once every add is done, e.g. from a later file.
+		 */
+		boolean contains(long hi, long lo) {
+			long h = hash(hi, lo);
+			return stripes[(int) (h >>> 58)].contains(hi, lo, (int) h);
+		}
+	}
+
+	/**
+	 * Open addressing with linear probing, keys in two parallel arrays and
+	 * a bit per slot marking it used.
+	 */
+	private static class Stripe{
+		private long[] his = new long[16];
+		private long[] los = new long[16];
+		private long[] used = new long[1];
+		private int size = 0;
+
+		boolean add(long hi, long lo, int h) {
+			if ((size + 1) * 2 > his.length) grow();
+			int mask = his.length - 1;
+			int i = h & mask;
+			for (; isUsed(i); i = (i + 1) & mask) {
+				if (his[i] == hi && los[i] == lo) return false;
+			}
+			his[i] = hi;
+			los[i] = lo;
+			used[i >>> 6] |= 1L << i;
+			size++;
+			return true;
+		}
+
+		boolean contains(long hi, long lo, int h) {
+			int mask = his.length - 1;
+			for (int i = h & mask; isUsed(i); i = (i + 1) & mask) {
+				if (his[i] == hi && los[i] == lo) return true;
+			}
+			return false;
+		}
+
+		private boolean isUsed(int i) {
+			return (used[i >>> 6] & (1L << i)) != 0;
+		}
+
+		private void grow() {
+			long[] oldHis = his, oldLos = los, oldUsed = used;
+			his = new long[oldHis.length * 2];
+			los = new long[oldHis.length * 2];
+			used = new long[Math.max(1, his.length / 64)];
+			size = 0;
+			for (int i = 0; i < oldHis.length; i++) {
+				if ((oldUsed[i >>> 6] & (1L << i)) != 0) {
+					add(oldHis[i], oldLos[i], (int) KeySet.hash(oldHis[i], oldLos[i]));
+				}
+			}
+		}
+	}
+
+	/**
+	 * One line of a mapped chunk split into fields, read without decoding.
+	 * The checks set reason and return false (or a marker value) when the
+	 * field is not acceptable.
+	 */
+	static class Row{
+		static final long BAD = Long.MIN_VALUE;
+
+		private ByteBuffer buf;
+		private int start, end;
+		private int[] from = new int[16], to = new int[16];
+		private int fields;
+		private int[] parts = new int[5];
+		String reason;
+
+		Row(ByteBuffer buf) {
+			this.buf = buf;
+		}
+
+		/**
+		 * Splits the line [start, end) on commas, the way COPY's text format does.
+		 */
+		boolean split(int start, int end, int columns) {
+			this.start = start;
+			this.end = end;
+			fields = 0;
+			int f = start;
+			for (int i = start; i <= end; i++) {
+				if (i == end || buf.get(i) == ',') {
+					if (fields == from.length) break;
+					from[fields] = f;
+					to[fields] = i;
+					fields++;
+					f = i + 1;
+				}
+			}
+			if (fields != columns) {
+				reason = (fields < columns ? "missing data, " : "extra data, ") + "expected " + columns + " fields";
+				return false;
+			}
+			return true;
+		}
+
+		private boolean isNull(int i) {
+			return to[i] - from[i] == 2 && buf.get(from[i]) == '\\' && buf.get(from[i] + 1) == 'N';
+		}
+
+		/**
+		 * Checks a NOT NULL text column of at most max characters.
+		 */
+		boolean text(int i, String column, int max) {
+			if (isNull(i)) {
+				reason = column + " is null";
+				return false;
+			}
+			//UTF-8: every byte but continuation bytes starts a character
+			int chars = 0;
+			for (int p = from[i]; p < to[i]; p++) {
+				if ((buf.get(p) & 0xC0) != 0x80) chars++;
+			}
+			if (chars > max) {
+				reason = column + " longer than " + max + " characters";
+				return false;
+			}
+			return true;
+		}
+
+		/**
+		 * @return the NOT NULL integer column in [min, max], BAD otherwise
+		 */
+		long integer(int i, String column, long min, long max) {
+			if (isNull(i)) {
+				reason = column + " is null";
+				return BAD;
+			}
+			int p = from[i], e = to[i];
+			while (p < e && buf.get(p) == ' ') p++;
+			while (e > p && buf.get(e - 1) == ' ') e--;
+			boolean negative = p < e && buf.get(p) == '-';
+			if (p < e && (buf.get(p) == '-' || buf.get(p) == '+')) p++;
+			if (p == e) {
+				reason = column + " is not an integer";
+				return BAD;
+			}
+			long v = 0;
+			for (; p < e; p++) {
+				int d = buf.get(p) - '0';
+				if (d < 0 || d > 9) {
+					reason = column + " is not an integer";
+					return BAD;
+				}
+				//stays far from overflowing, anything above is out of range anyway
+				v = Math.min(v * 10 + d, 1L << 40);
+			}
+			if (negative) v = -v;
+			if (v < Integer.MIN_VALUE || v > Integer.MAX_VALUE) {
+				reason = column + " out of range for an integer";
+				return BAD;
+			}
+			if (v < min || v > max) {
+				reason = column + " " + v + " violates its domain (" + (max == Integer.MAX_VALUE ? "at least " + min : min + " to " + max) + ")";
+				return BAD;
+			}
+			return v;
+		}
+
+		/**
+		 * @return the NOT NULL M/D/YYYY date column, optionally followed by
+		 * a time, as epoch day; BAD otherwise
+		 */
+		long date(int i, String column) {
+			if (isNull(i)) {
+				reason = column + " is null";
+				return BAD;
+			}
+			Arrays.fill(parts, 0);
+			int part = 0, digits = 0;
+			for (int p = from[i]; p < to[i]; p++) {
+				byte b = buf.get(p);
+				if (b >= '0' && b <= '9' && digits < 4) {
+					parts[part] = parts[part] * 10 + (b - '0');
+					digits++;
+				} else if (digits > 0 && part < 4 && (b == (part < 2 ? '/' : part == 2 ? ' ' : ':'))) {
+					part++;
+					digits = 0;
+				} else {
+					part = -1;
+					break;
+				}
+			}
+			int month = parts[0], day = parts[1], year = parts[2];
+			if (digits == 0 || (part != 2 && part != 4) || (part == 4 && (parts[3] > 23 || parts[4] > 59))
+				|| month < 1 || month > 12 || day < 1 || day > daysIn(month, year) || year < 1) {
+				reason = column + " is not a valid M/D/YYYY date";
+				return BAD;
+			}
+			return LocalDate.of(year, month, day).toEpochDay();
+		}
+
+		private static int daysIn(int month, int year) {
+			if (month == 2) return (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+			return month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31;
+		}
+
+		/**
+		 * @return the first 8 bytes of the field, for packing a VIN
+		 */
+		long high(int i) {
+			return pack(from[i], Math.min(to[i], from[i] + 8));
+		}
+
+		/**
+		 * @return bytes 8 to 16 of the field
+		 */
+		long low(int i) {
+			long lo = pack(Math.min(to[i], from[i] + 8), to[i] - from[i] > 16 ? from[i] + 16 : to[i]);
+			//a VIN of non-ASCII characters can take more than 16 bytes, fold the rest in
+			for (int p = from[i] + 16; p < to[i]; p++) {
+				lo = lo * 31 + buf.get(p);
+			}
+			return lo;
+		}
+
+		private long pack(int p, int e) {
+			long v = 0;
+			for (int k = 0; k < 8; k++) {
+				v = (v << 8) | (p + k < e ? buf.get(p + k) & 0xFF : 0);
+			}
+			return v;
+		}
+
+		/**
+		 * @return the line as text, shortened for the report
+		 */
+		String text() {
+			int length = Math.min(end - start, MAX_SHOWN * 4);
+			byte[] bytes = new byte[length];
+			for (int k = 0; k < length; k++) {
+				bytes[k] = buf.get(start + k);
+			}
+			String s = new String(bytes, StandardCharsets.UTF_8);
+			return s.length() > MAX_SHOWN ? s.substring(0, MAX_SHOWN) + "..." : s;
+		}
+	}
+
+	/**
+	 * The checks of one file, run on each of its rows.
+	 */
+	abstract static class Table{
+		final String file;
+		final int columns;
+		final KeySet keys = new KeySet();
+
+		Table(String file, int columns) {
+			this.file = file;
+			this.columns = columns;
+		}
+
+		/**
+		 * @return false with row.reason set when the row would be refused
+		 */
+		abstract boolean check(Row row);
+
+		boolean unique(Row row, long hi, long lo, String what) {
+			if (keys.add(hi, lo)) return true;
+			row.reason = "duplicate " + what;
+			return false;
+		}
+	}
+
+	/**
+	 * A rejected row, its line counted from the start of its chunk until
+	 * the chunks before it are counted.
+	 */
+	private static class Reject{
+		long line;
+		String reason, text;
+
+		Reject(long line, String reason, String text) {
+			this.line = line;
+			this.reason = reason;
+			this.text = text;
+		}
+	}
+
+	/**
+	 * A line-aligned range of a file, checked by one thread.
+	 */
+	private static class Chunk implements Callable<Chunk>{
+		Table table;
+		FileChannel channel;
+		long start, end;
+		long lines = 0;
+		List<Reject> rejects = new ArrayList<Reject>();
+
+		Chunk(Table table, FileChannel channel, long start, long end) {
+			this.table = table;
+			this.channel = channel;
+			this.start = start;
+			this.end = end;
+		}
+
+		public Chunk call() throws IOException {
+			MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+			Row row = new Row(buf);
+			int limit = buf.limit();
+			int pos = 0;
+			while (pos < limit) {
+				int eol = pos;
+				while (eol < limit && buf.get(eol) != '\n') eol++;
+				int stop = eol > pos && buf.get(eol - 1) == '\r' ? eol - 1 : eol;
+				lines++;
+				if (!row.split(pos, stop, table.columns) || !table.check(row)) {
+					rejects.add(new Reject(lines, row.reason, row.text()));
+				}
+				pos = eol + 1;
+			}
+			return this;
+		}
+	}
+
+	private ExecutorService executor;
+	private int threads;
+	private long rejected = 0;
+
+	public CsvValidator(int threads) {
+		this.threads = threads;
+		this.executor = Executors.newFixedThreadPool(threads);
+	}
+
+	/**
+	 * @return the tables of create.sql in load order, referencing each other's keys
+	 */
+	static List<Table> tables() {
+		final Table customer = new Table("customer.csv", 5) {
+			boolean check(Row r) {
+				long id = r.integer(0, "id", Integer.MIN_VALUE, Integer.MAX_VALUE);
+				return id != Row.BAD && r.text(1, "fname", 32) && r.text(2, "lname", 32) && r.text(3, "phone", 13) && r.text(4, "address", 256)
+					&& unique(r, id, 0, "customer id " + id);
+			}
+		};
+		final Table mechanic = new Table("mechanic.csv", 4) {
+			boolean check(Row r) {
+				long id = r.integer(0, "id", Integer.MIN_VALUE, Integer.MAX_VALUE);
+				return id != Row.BAD && r.text(1, "fname", 32) && r.text(2, "lname", 32) && r.integer(3, "experience", 0, 99) != Row.BAD
+					&& unique(r, id, 0, "mechanic id " + id);
+			}
+		};
+		final Table car = new Table("car.csv", 4) {
+			boolean check(Row r) {
+				return r.text(0, "vin", 16) && r.text(1, "make", 32) && r.text(2, "model", 32) && r.integer(3, "year", 1970, Integer.MAX_VALUE) != Row.BAD
+					&& unique(r, r.high(0), r.low(0), "vin");
+			}
+		};
+		final Table owns = new Table("owns.csv", 3) {
+			boolean check(Row r) {
+				long id = r.integer(0, "ownership_id", Integer.MIN_VALUE, Integer.MAX_VALUE);
+				if (id == Row.BAD) return false;
+				long customerId = r.integer(1, "customer_id", Integer.MIN_VALUE, Integer.MAX_VALUE);
+				if (customerId == Row.BAD || !r.text(2, "car_vin", 16)) return false;
+				if (!customer.keys.contains(customerId, 0)) {
+					r.reason = "customer_id " + customerId + " not in customer.csv";
+					return false;
+				}
+				if (!car.keys.contains(r.high(2), r.low(2))) {
+					r.reason = "car_vin not in car.csv";
+					return false;
+				}
+				return unique(r, id, 0, "ownership_id " + id);
+			}
+		};
+		//the primary key is (rid, date), references only name the rid
+		final KeySet rids = new KeySet();
+		final Table request = new Table("service_request.csv", 6) {
+			boolean check(Row r) {
+				long rid = r.integer(0, "rid", Integer.MIN_VALUE, Integer.MAX_VALUE);
+				if (rid == Row.BAD) return false;
+				long customerId = r.integer(1, "customer_id", Integer.MIN_VALUE, Integer.MAX_VALUE);
+				if (customerId == Row.BAD || !r.text(2, "car_vin", 16)) return false;
+				long date = r.date(3, "date");
+				if (date == Row.BAD || r.integer(4, "odometer", 1, Integer.MAX_VALUE) == Row.BAD) return false;
+				if (!customer.keys.contains(customerId, 0)) {
+					r.reason = "customer_id " + customerId + " not in customer.csv";
+					return false;
+				}
+				if (!car.keys.contains(r.high(2), r.low(2))) {
+					r.reason = "car_vin not in car.csv";
+					return false;
+				}
+				if (!unique(r, rid, date, "rid " + rid + " on the same date")) return false;
+				rids.add(rid, 0);
+				return true;
+			}
+		};
+		final Table closed = new Table("closed_request.csv", 6) {
+			boolean check(Row r) {
+				long wid = r.integer(0, "wid", Integer.MIN_VALUE, Integer.MAX_VALUE);
+				if (wid == Row.BAD) return false;
+				long rid = r.integer(1, "rid", Integer.MIN_VALUE, Integer.MAX_VALUE);
+				if (rid == Row.BAD) return false;
+				long mid = r.integer(2, "mid", Integer.MIN_VALUE, Integer.MAX_VALUE);
+				if (mid == Row.BAD) return false;
+				long date = r.date(3, "date");
+				if (date == Row.BAD || r.integer(5, "bill", 1, Integer.MAX_VALUE) == Row.BAD) return false;
+				if (!rids.contains(rid, 0)) {
+					r.reason = "rid " + rid + " not in service_request.csv";
+					return false;
+				}
+				if (!mechanic.keys.contains(mid, 0)) {
+					r.reason = "mid " + mid + " not in mechanic.csv";
+					return false;
+				}
+				return unique(r, wid, date, "wid " + wid + " on the same date");
+			}
+		};
+		List<Table> tables = new ArrayList<Table>();
+		tables.add(customer);
+		tables.add(mechanic);
+		tables.add(car);
+		tables.add(owns);
+		tables.add(request);
+		tables.add(closed);
+		return tables;
+	}
+
+	/**
+	 * Checks one file and appends its rejected rows to the report.
+	 *
+	 * @return the number of lines read
+	 */
+	public long validate(File file, Table table, PrintWriter report) throws IOException, InterruptedException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try{
+			FileChannel channel = raf.getChannel();
+			long size = channel.size();
+			int n = (int) Math.max(1, Math.min(threads, size / MIN_CHUNK));
+			n = (int) Math.max(n, (size + MAX_CHUNK - 1) / MAX_CHUNK);
+			List<Future<Chunk>> futures = new ArrayList<Future<Chunk>>();
+			long start = 0;
+			for (int i = 1; i <= n && start < size; i++) {
+				long end = i == n ? size : lineStart(channel, size * i / n);
+				if (end > start) {
+					futures.add(executor.submit(new Chunk(table, channel, start, end)));
+					start = end;
+				}
+			}
+			long lines = 0;
+			for (Future<Chunk> f : futures) {
+				Chunk chunk;
+				try{
+					chunk = f.get();
+				}catch(ExecutionException e){
+					throw new IOException(file + ": " + e.getCause().getMessage());
+				}
+				for (Reject r : chunk.rejects) {
+					report.println(file.getName() + ":" + (lines + r.line) + ": " + r.reason + ": " + r.text);
+				}
+				rejected += chunk.rejects.size();
+				lines += chunk.lines;
+			}
+			return lines;
+		}finally{
+			raf.close();
+		}
+	}
+
+	/**
+	 * @return the offset of the first line starting at or after pos
+	 */
+	private static long lineStart(FileChannel channel, long pos) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+		long p = pos - 1;
+		while (true) {
+			buf.clear();
+			int read = channel.read(buf, p);
+			if (read <= 0) return channel.size();
+			for (int i = 0; i < read; i++) {
+				if (buf.get(i) == '\n') return p + i + 1;
+			}
+			p += read;
+		}
+	}
+
+	public void close() {
+		executor.shutdown();
+	}
+
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.err.println("Usage: java CsvValidator <data dir> [rejects file]");
+			return;
+		}
+		File dir = new File(args[0]);
+		File rejects = new File(args.length > 1 ? args[1] : "rejects.txt");
+		CsvValidator validator = new CsvValidator(Runtime.getRuntime().availableProcessors());
+		try{
+			PrintWriter report = new PrintWriter(new OutputStreamWriter(new FileOutputStream(rejects), StandardCharsets.UTF_8));
+			try{
+				for (Table table : tables()) {
+					File file = new File(dir, table.file);
+					long started = System.nanoTime();
+					long before = validator.rejected;
+					long lines = validator.validate(file, table, report);
+					double seconds = (System.nanoTime() - started) / 1e9;
+					System.out.println(String.format("%s: %d lines, %d rejected, %.0f MB/s",
+						table.file, lines, validator.rejected - before, file.length() / 1e6 / Math.max(seconds, 1e-6)));
+				}
+			}finally{
+				report.close();
+			}
+		}catch(Exception e){
+			System.err.println(e.getMessage());
+			validator.close();
+			System.exit(2);
+		}
+		validator.close();
+		if (validator.rejected > 0) {
+			System.out.println(validator.rejected + " row(s) rejected, see " + rejects);
+			System.exit(1);
+		}
+		System.out.println("No rows rejected");
+	}
+}
@@ -0,0 +1,147 @@
+/*
+ * End-of-day dashboard
+ * ====================
+ *
+ * Runs reports 6 to 10 at the same time on separate connections.
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Each report runs on its own ShopPool lease, with a session on every
+ * shard when the shop is sharded, so the dashboard takes about as long
+ * as its slowest report. All of them share one deadline: a report still
+ * running then is reported as unfinished, and on a database its queries
+ * are cancelled by a statement_timeout set to the time left on each
+ * session, which is reset before the lease goes back to the pool.
+ *
+ */
+
+public class Dashboard{
+	public static final int SECTIONS = 5;
+
+	/**
+	 * The result of one report.
+	 */
+	public static class Section{
+		public final String title;
+		public final RowSink.Collector rows = new RowSink.Collector();
+		public long millis = -1;
+		//null when the report completed
+		public String error = null;
+
+		Section(String title) {
+			this.title = title;
+		}
+	}
+
+	private ShopPool pool;
+	private ExecutorService executor = Executors.newFixedThreadPool(SECTIONS);
+
+	/**
+	 * @param pool at least SECTIONS sessions, for the dashboard alone
+	 */
+	public Dashboard(ShopPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Runs the reports and waits for them until the deadline.
+	 *
+	 * @param from start of the date range, null for open
+	 * @param to end of the date range, null for open
+	 * @param k number of cars in report 9
+	 * @param deadlineMs time allowed for all reports together
+	 * @return the sections in menu order
+	 */
+	public List<Section> run(final String from, final String to, final int k, long deadlineMs) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + deadlineMs;
+		final String[] titles = {
+			"6. Closed requests billed under 100",
+			"7. Customers with more than 20 cars",
+			"8. Cars before 1995 with under 50000 miles",
+			"9. " + k + " cars with the most services",
+			"10. Customers by total bill"};
+		List<Future<Section>> futures = new ArrayList<Future<Section>>();
+		for (int i = 0; i < SECTIONS; i++) {
+			final int report = i + 6;
+			final String title = titles[i];
+			futures.add(executor.submit(new Callable<Section>() {
+				public Section call() {
+					Section section = new Section(title);
+					long start = System.currentTimeMillis();
+					try{
+						runReport(report, from, to, k, section.rows, deadline);
+					}catch(Exception e){
+						section.error = e.getMessage();
+					}
+					section.millis = System.currentTimeMillis() - start;
+					return section;
+				}
+			}));
+		}
+		List<Section> sections = new ArrayList<Section>();
+		for (int i = 0; i < SECTIONS; i++) {
+			try{
+				sections.add(futures.get(i).get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS));
+			}catch(TimeoutException e){
+				futures.get(i).cancel(true);
+				Section late = new Section(titles[i]);
+				late.error = "not done within " + deadlineMs + " ms";
+				sections.add(late);
+			}catch(ExecutionException e){
+				Section failed = new Section(titles[i]);
+				failed.error = e.getMessage();
+				sections.add(failed);
+			}
+		}
+		return sections;
+	}
+
+	private void runReport(int report, String from, String to, int k, RowSink sink, long deadline) throws Exception {
+		ShopPool.Lease lease = pool.borrow();
+		try{
+			//the databases give up on the query themselves at the deadline and free the sessions
+			for (MechanicShop shop : lease.shops) {
+				shop.executeUpdate("SET statement_timeout = " + Math.max(1, deadline - System.currentTimeMillis()));
+			}
+			ShopRepository repo = lease.repo();
+			switch (report) {
+				case 6: repo.closedRequestsWithBillUnder100(from, to, sink); break;
+				case 7: repo.customersWithMoreThan20Cars(sink); break;
+				case 8: repo.carsBefore1995With50000Miles(from, to, sink); break;
+				case 9: repo.carsWithMostServices(k, from, to, sink); break;
+				case 10: repo.customersByTotalBill(from, to, sink); break;
+			}
+		}catch(Exception e){
+			lease.broken = true;
+			throw e;
+		}finally{
+			//the sessions go back to the pool, their next user must not inherit the deadline
+			for (MechanicShop shop : lease.shops) {
+				try{
+					shop.executeUpdate("RESET statement_timeout");
+				}catch(SQLException e){
+					lease.broken = true;
+				}
+			}
+			pool.release(lease);
+		}
+	}
+
+	public void close() {
+		executor.shutdownNow();
+		pool.close();
+	}
+}
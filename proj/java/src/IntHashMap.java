@@ -0,0 +1,132 @@
+/*
+ * Primitive int keyed hash map
+ * ============================
+ *
+ * Open addressing map from int to object, without boxing the keys.
+ *
+ */
+
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hash map with int keys and linear probing. Values may not be null, a
+ * null slot marks an empty bucket. Removal moves the later entries of the
+ * probe run back instead of leaving tombstones.
+ *
+ */
+
+public class IntHashMap<V>{
+	private int[] keys;
+	private Object[] values;
+	private int size = 0;
+	private int mask;
+
+	public IntHashMap() {
+		this(16);
+	}
+
+	public IntHashMap(int expected) {
+		int capacity = 16;
+		while (capacity < expected * 2) capacity <<= 1;
+		keys = new int[capacity];
+		values = new Object[capacity];
+		mask = capacity - 1;
+	}
+
+	private static int slot(int key, int mask) {
+		int h = key * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(int key) {
+		for (int i = slot(key, mask); values[i] != null; i = (i + 1) & mask) {
+			if (keys[i] == key) return (V) values[i];
+		}
+		return null;
+	}
+
+	public boolean containsKey(int key) {
+		return get(key) != null;
+	}
+
+	/**
+	 * Associates value with key, replacing any previous value.
+	 */
+	public void put(int key, V value) {
+		if (value == null) throw new IllegalArgumentException("null value");
+		if ((size + 1) * 2 > values.length) grow();
+		int i = slot(key, mask);
+		while (values[i] != null) {
+			if (keys[i] == key) {
+				values[i] = value;
+				return;
+			}
+			i = (i + 1) & mask;
+		}
+		keys[i] = key;
+		values[i] = value;
+		size++;
+	}
+
+	/**
+	 * Removes key and its value.
+	 *
+	 * @return the removed value, null if key was not there
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(int key) {
+		int i = slot(key, mask);
+		while (values[i] != null && keys[i] != key) i = (i + 1) & mask;
+		if (values[i] == null) return null;
+		V removed = (V) values[i];
+		values[i] = null;
+		size--;
+		int hole = i;
+		for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+			//an entry may fill the hole if the hole is between its home slot and j
+			if (((j - slot(keys[j], mask)) & mask) >= ((j - hole) & mask)) {
+				keys[hole] = keys[j];
+				values[hole] = values[j];
+				values[j] = null;
+				hole = j;
+			}
+		}
+		return removed;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return a snapshot of the values, in no particular order
+	 */
+	@SuppressWarnings("unchecked")
+	public List<V> values() {
+		List<V> result = new ArrayList<V>(size);
+		for (Object v : values) {
+			if (v != null) result.add((V) v);
+		}
+		return result;
+	}
+
+	private void grow() {
+		int[] oldKeys = keys;
+		Object[] oldValues = values;
+		keys = new int[oldKeys.length * 2];
+		values = new Object[oldValues.length * 2];
+		mask = keys.length - 1;
+		size = 0;
+		for (int i = 0; i < oldValues.length; i++) {
+			if (oldValues[i] == null) continue;
+			int j = slot(oldKeys[i], mask);
+			while (values[j] != null) j = (j + 1) & mask;
+			keys[j] = oldKeys[i];
+			values[j] = oldValues[i];
+			size++;
+		}
+	}
+}
@@ -0,0 +1,170 @@
+/*
+ * Intake journal
+ * ==============
+ *
+ * Memory-mapped, checksummed append log for intake operations waiting to
+ * be written to the database.
+ *
+ */
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Fixed size journal file mapped into memory. Layout:
+ *
+ *   header  [int magic][int unused][long confirmed offset][long unused]
+ *   records [int payload length][int crc32 of payload][payload] ...
+ *
+ * append() returns once the record is forced to disk. Records before the
+ * confirmed offset have been applied to the database; on open, the write
+ * position is found by scanning from there until a zero length or a bad
+ * checksum (a torn write). Once everything is confirmed the journal starts
+ * over at the beginning of the file.
+ *
+ */
+
+public class IntakeJournal{
+	private static final int MAGIC = 0x4D534A31; //"MSJ1"
+	private static final int HEADER = 32;
+	private static final int CONFIRMED_AT = 8;
+
+	/**
+	 * One record read back from the journal.
+	 */
+	public static class Record{
+		public final long offset;
+		public final long end;
+		public final byte[] payload;
+
+		Record(long offset, long end, byte[] payload) {
+			this.offset = offset;
+			this.end = end;
+			this.payload = payload;
+		}
+	}
+
+	private RandomAccessFile file;
+	private MappedByteBuffer map;
+	private int confirmed;
+	private int writeAt;
+
+	/**
+	 * Opens the journal, creating a file of the given size if needed, and
+	 * recovers the write position.
+	 *
+	 * @param path the journal file
+	 * @param capacity size of a new journal in bytes
+	 * @throws java.io.IOException when the file can not be mapped or is not a journal
+	 */
+	public IntakeJournal(File path, int capacity) throws IOException {
+		boolean created = !path.exists() || path.length() == 0;
+		file = new RandomAccessFile(path, "rw");
+		if (created) file.setLength(capacity);
+		map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+		if (created) {
+			map.putInt(0, MAGIC);
+			map.putLong(CONFIRMED_AT, HEADER);
+			map.force();
+		} else if (map.getInt(0) != MAGIC) {
+			throw new IOException(path + " is not an intake journal");
+		}
+		confirmed = (int) map.getLong(CONFIRMED_AT);
+		writeAt = confirmed;
+		for (Record r = readAt(writeAt); r != null; r = readAt(writeAt)) {
+			writeAt = (int) r.end;
+		}
+	}
+
+	/**
+	 * Appends a record and forces it to disk.
+	 *
+	 * @return offset of the record
+	 * @throws java.io.IOException when the journal is full
+	 */
+	public synchronized long append(byte[] payload) throws IOException {
+		int end = writeAt + 8 + payload.length;
+		//the 4 bytes after a record stay zero to mark the end of the log
+		if (end + 4 > map.capacity()) {
+			throw new IOException("Intake journal is full, " + (writeAt - confirmed) + " bytes waiting for the database");
+		}
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		int offset = writeAt;
+		map.putInt(end, 0);
+		for (int i = 0; i < payload.length; i++) {
+			map.put(offset + 8 + i, payload[i]);
+		}
+		map.putInt(offset + 4, (int) crc.getValue());
+		map.putInt(offset, payload.length);
+		map.force();
+		writeAt = end;
+		return offset;
+	}
+
+	/**
+	 * @return up to max records after the confirmed offset
+	 */
+	public synchronized List<Record> pending(int max) {
+		List<Record> records = new ArrayList<Record>();
+		int at = confirmed;
+		while (records.size() < max && at < writeAt) {
+			Record r = readAt(at);
+			if (r == null) break;
+			records.add(r);
+			at = (int) r.end;
+		}
+		return records;
+	}
+
+	/**
+	 * @return the number of bytes waiting to be applied
+	 */
+	public synchronized int pendingBytes() {
+		return writeAt - confirmed;
+	}
+
+	/**
+	 * Marks everything before end as applied. When nothing is left the
+	 * journal restarts at the beginning of the file.
+	 */
+	public synchronized void confirm(long end) {
+		confirmed = (int) end;
+		if (confirmed == writeAt) {
+			map.putInt(HEADER, 0);
+			confirmed = HEADER;
+			writeAt = HEADER;
+		}
+		map.putLong(CONFIRMED_AT, confirmed);
+		map.force();
+	}
+
+	public synchronized void close() {
+		try{
+			file.close();
+		}catch(IOException e){
+			// ignored.
+		}
+	}
+
+	private Record readAt(int at) {
+		if (at + 8 > map.capacity()) return null;
+		int length = map.getInt(at);
+		if (length <= 0 || at + 8 + length > map.capacity()) return null;
+		byte[] payload = new byte[length];
+		for (int i = 0; i < length; i++) {
+			payload[i] = map.get(at + 8 + i);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		if ((int) crc.getValue() != map.getInt(at + 4)) return null;
+		return new Record(at, at + 8 + length, payload);
+	}
+}
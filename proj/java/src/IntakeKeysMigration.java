@@ -0,0 +1,32 @@
+/*
+ * Migration 2: applied intake keys
+ * ================================
+ *
+ * Table of the client generated keys of journaled intake operations that
+ * reached the database.
+ *
+ */
+
+
+import java.sql.SQLException;
+
+/**
+ * Creates intake_applied. WriteBehindShopRepository inserts an operation's
+ * key in the same transaction as the operation itself, so a journal record
+ * replayed after a crash is recognized and not applied twice.
+ *
+ */
+
+public class IntakeKeysMigration implements Migration{
+	public int version() {
+		return 2;
+	}
+
+	public String description() {
+		return "intake_applied table for write-behind intake";
+	}
+
+	public void apply(MechanicShop esql) throws SQLException {
+		esql.executeUpdate("CREATE TABLE IF NOT EXISTS intake_applied (key UUID PRIMARY KEY, applied_at TIMESTAMP NOT NULL DEFAULT now())");
+	}
+}
@@ -0,0 +1,441 @@
+/*
+ * Postgres data access
+ * ====================
+ *
+ * The SQL behind the menu operations, run through MechanicShop's
+ * connection helpers.
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * ShopRepository over the Postgres schema in proj/sql. Writes and the
+ * reads that validate them go to the primary as prepared statements,
+ * reports go through executeReadQuery so they can be served by a replica.
+ *
+ */
+
+public class JdbcShopRepository implements ShopRepository{
+	//point lookups and writes, prepared once per connection (see prepareStatements)
+	private static final String ENSURE_PARTITIONS = "SELECT ensure_request_partitions(to_date(?, 'MM/DD/YYYY'))";
+	private static final String INSERT_CUSTOMER = "INSERT INTO Customer (id, fname, lname, phone, address) VALUES (COALESCE(?, nextval('seq_customer_id')), ?, ?, ?, ?) RETURNING id";
+	private static final String FIND_CUSTOMERS = "SELECT C.id, C.fname, C.lname FROM Customer C WHERE C.lname = ? ORDER BY C.id";
+	private static final String FIND_CUSTOMERS_BY_NAME = "SELECT C.id, C.fname, C.lname FROM Customer C WHERE C.lname = ? AND C.fname = ? ORDER BY C.id";
+	private static final String INSERT_MECHANIC = "INSERT INTO Mechanic (id, fname, lname, experience) VALUES (COALESCE(?, nextval('seq_mechanic_id')), ?, ?, ?) RETURNING id";
+	private static final String MECHANIC_EXISTS = "SELECT M.id FROM Mechanic M WHERE M.id = ?";
+	private static final String INSERT_CAR = "INSERT INTO Car (vin, make, model, year) VALUES (?, ?, ?, ?)";
+	private static final String CAR_EXISTS = "SELECT C.vin FROM Car C WHERE C.vin = ?";
+	private static final String FIND_CAR = "SELECT C.vin, C.make, C.model, C.year FROM Car C WHERE C.vin = ?";
+	private static final String INSERT_OWNERSHIP = "INSERT INTO Owns (ownership_id, customer_id, car_vin) VALUES (nextval('seq_ownership_id'), ?, ?)";
+	private static final String CARS_OWNED_BY = "SELECT K.vin, K.make, K.model, K.year FROM Owns O, Car K WHERE K.vin = O.car_vin AND O.customer_id = ?";
+	private static final String OWNERS_OF = "SELECT C.id, C.fname, C.lname FROM Customer C, Owns O WHERE C.id = O.customer_id AND O.car_vin = ?";
+	private static final String INSERT_SERVICE_REQUEST = "INSERT INTO Service_Request (rid, customer_id, car_vin, date, odometer, complain, status) VALUES (nextval('seq_rid_id'), ?, ?, to_date(?, 'MM/DD/YYYY'), ?, ?, 'W') RETURNING rid";
+	private static final String FIND_OPEN_SERVICE_REQUEST = "SELECT S.rid, to_char(S.date, 'MM/DD/YYYY'), S.mechanic_id FROM Service_Request S WHERE S.rid = ? AND S.status <> 'C'";
+	//closing also flips the request's status so it leaves the work queue; the UPDATE checks the status under
+	//the row lock, so of two clients closing the same request only one inserts a close
+	private static final String CLOSE_SERVICE_REQUEST = "WITH request AS (UPDATE Service_Request S SET status = 'C' WHERE S.rid = ? AND S.status <> 'C' RETURNING S.rid), "
+		+ "closed AS (INSERT INTO Closed_Request (wid, rid, mid, date, comment, bill) SELECT nextval('seq_wid_id'), request.rid, ?, to_date(?, 'MM/DD/YYYY'), ?, ? FROM request RETURNING wid) "
+		+ "SELECT wid FROM closed";
+	//bulk close: check every close in one query, then close the valid ones in one statement; DISTINCT ON
+	//keeps one row per input line even if the rid matched more than one request, a closed one first
+	private static final String VALIDATE_CLOSES = "SELECT DISTINCT ON (v.n) CASE"
+		+ " WHEN v.k > 1 THEN 'rid listed more than once'"
+		+ " WHEN S.rid IS NULL THEN 'no such service request'"
+		+ " WHEN S.status = 'C' THEN 'already closed'"
+		+ " WHEN M.id IS NULL THEN 'no such mechanic'"
+		+ " WHEN to_date(v.d, 'MM/DD/YYYY') < S.date THEN 'closed before it was opened'"
+		+ " WHEN v.bill <= 0 THEN 'bill must be positive' END"
+		+ " FROM (SELECT u.*, ROW_NUMBER() OVER (PARTITION BY u.rid ORDER BY u.n) AS k"
+		+ " FROM unnest(?::int[], ?::int[], ?::text[], ?::int[]) WITH ORDINALITY AS u(rid, mid, d, bill, n)) v"
+		+ " LEFT JOIN Service_Request S ON S.rid = v.rid LEFT JOIN Mechanic M ON M.id = v.mid ORDER BY v.n, S.status <> 'C'";
+	//the UPDATE re-checks the status under the row lock, a request closed by another client meanwhile drops out
+	private static final String CLOSE_SERVICE_REQUESTS = "WITH v AS (SELECT * FROM unnest(?::int[], ?::int[], ?::text[], ?::text[], ?::int[]) AS v(rid, mid, d, comment, bill)), "
+		+ "request AS (UPDATE Service_Request S SET status = 'C' FROM v WHERE S.rid = v.rid AND S.status <> 'C' RETURNING S.rid), "
+		+ "closed AS (INSERT INTO Closed_Request (wid, rid, mid, date, comment, bill) SELECT nextval('seq_wid_id'), v.rid, v.mid, to_date(v.d, 'MM/DD/YYYY'), v.comment, v.bill "
+		+ "FROM v JOIN request ON request.rid = v.rid RETURNING rid, wid) "
+		+ "SELECT rid, wid FROM closed";
+	private static final String MECHANIC_WORKLOADS = "SELECT M.id, M.experience, COUNT(S.rid) FROM Mechanic M LEFT JOIN Service_Request S ON S.mechanic_id = M.id AND S.status <> 'C' GROUP BY M.id, M.experience";
+	private static final String LOCK_MECHANIC = "SELECT M.id FROM Mechanic M WHERE M.id = ? FOR UPDATE";
+	private static final String OPEN_REQUESTS_OF = "SELECT COUNT(*) FROM Service_Request S WHERE S.mechanic_id = ? AND S.status <> 'C'";
+	private static final String ASSIGN_MECHANIC = "UPDATE Service_Request SET mechanic_id = ?, status = 'R' WHERE rid = ? AND status <> 'C'";
+	//statements that change data, warm-up can only parse them
+	private static final String[] WRITES = {INSERT_CUSTOMER, INSERT_MECHANIC, INSERT_CAR, INSERT_OWNERSHIP, INSERT_SERVICE_REQUEST, CLOSE_SERVICE_REQUEST, CLOSE_SERVICE_REQUESTS, LOCK_MECHANIC, ASSIGN_MECHANIC};
+	//rows per round trip when streaming every car
+	private static final int VIN_FETCH_SIZE = 10000;
+	//rows per round trip when streaming statement lines
+	private static final int STATEMENT_FETCH_SIZE = 10000;
+	//rows per round trip when streaming the closed history
+	private static final int HISTORY_FETCH_SIZE = 10000;
+
+	private MechanicShop esql;
+	//months (MM/YYYY) whose request partitions are known to exist
+	private Set<String> partitionMonths = new HashSet<String>();
+
+	public JdbcShopRepository(MechanicShop esql) {
+		this.esql = esql;
+	}
+
+	/**
+	 * @return the string as a SQL literal
+	 */
+	static String quote(String s) {
+		return s == null ? "NULL" : "'" + s.replace("'", "''") + "'";
+	}
+
+	/**
+	 * @return the MM/DD/YYYY string as a SQL date
+	 */
+	static String date(String mmddyyyy) {
+		return "to_date(" + quote(mmddyyyy) + ", 'MM/DD/YYYY')";
+	}
+
+	/**
+	 * @return condition restricting column to [from, to), "" when unbounded
+	 */
+	static String range(String column, String from, String to) {
+		String condition = "";
+		if (from != null) condition += " AND " + column + " >= " + date(from);
+		if (to != null) condition += " AND " + column + " < " + date(to);
+		return condition;
+	}
+
+	/**
+	 * Prepares every point lookup and write of the menu operations on the
+	 * connection. Lookups are run once with keys that match nothing, which
+	 * leaves a planned server-side statement behind; writes can not be run,
+	 * so they are only parsed and described.
+	 *
+	 * @throws java.sql.SQLException when a statement can not be prepared
+	 */
+	public void prepareStatements() throws SQLException {
+		esql.executePreparedQuery(FIND_CUSTOMERS, "");
+		esql.executePreparedQuery(FIND_CUSTOMERS_BY_NAME, "", "");
+		esql.executePreparedQuery(MECHANIC_EXISTS, -1);
+		esql.executePreparedQuery(CAR_EXISTS, "");
+		esql.executePreparedQuery(CARS_OWNED_BY, -1);
+		esql.executePreparedQuery(OWNERS_OF, "");
+		esql.executePreparedQuery(FIND_OPEN_SERVICE_REQUEST, -1);
+		esql.executePreparedQuery(OPEN_REQUESTS_OF, -1);
+		for (String sql : WRITES) {
+			esql.prepare(sql).getParameterMetaData();
+		}
+	}
+
+	/**
+	 * Reads the reference data and the recent requests, and the indexes
+	 * the point lookups use, into the database's buffers. Also creates this
+	 * month's request partitions ahead of the first request.
+	 *
+	 * @throws java.sql.SQLException when a query failed
+	 */
+	public void primeCaches() throws SQLException {
+		ensureRequestPartitions(new SimpleDateFormat("MM/dd/yyyy").format(new Date()));
+		esql.executePreparedQuery(MECHANIC_WORKLOADS);
+		esql.executeQueryAndReturnResult("SELECT COUNT(S.complain) FROM Service_Request S WHERE S.date >= current_date - 90");
+		//whole indexes only with the pg_prewarm extension, it is not installed by default
+		if (!esql.executeQueryAndReturnResult("SELECT 1 FROM pg_extension WHERE extname = 'pg_prewarm'").isEmpty()) {
+			esql.executeQueryAndReturnResult("SELECT pg_prewarm(c.oid) FROM pg_class c WHERE c.relname IN "
+				+ "('customer_pkey', 'mechanic_pkey', 'car_pkey', 'owns_pkey', 'idx_service_request_rid', 'idx_service_request_open')");
+		}
+	}
+
+	/**
+	 * Makes sure the monthly Service_Request and Closed_Request partitions
+	 * for the date exist. Each month is only checked once per session.
+	 */
+	private void ensureRequestPartitions(String date) throws SQLException {
+		String month = date.substring(0, 2) + "/" + date.substring(6);
+		if (partitionMonths.contains(month)) return;
+		esql.executePreparedQuery(ENSURE_PARTITIONS, date);
+		partitionMonths.add(month);
+	}
+
+	private static int firstInt(List<List<String>> result) {
+		return Integer.parseInt(result.get(0).get(0));
+	}
+
+	public int addCustomer(Integer id, String fname, String lname, String phone, String address) throws SQLException {
+		return firstInt(esql.executePreparedUpdateAndReturnResult(INSERT_CUSTOMER, id, fname, lname, phone, address));
+	}
+
+	public List<List<String>> findCustomers(String lname, String fname) throws SQLException {
+		if (fname == null) return esql.executePreparedQuery(FIND_CUSTOMERS, lname);
+		return esql.executePreparedQuery(FIND_CUSTOMERS_BY_NAME, lname, fname);
+	}
+
+	public int addMechanic(Integer id, String fname, String lname, int experience) throws SQLException {
+		return firstInt(esql.executePreparedUpdateAndReturnResult(INSERT_MECHANIC, id, fname, lname, experience));
+	}
+
+	public boolean mechanicExists(int id) throws SQLException {
+		return !esql.executePreparedQuery(MECHANIC_EXISTS, id).isEmpty();
+	}
+
+	public void addCar(String vin, String make, String model, int year) throws SQLException {
+		esql.executePreparedUpdate(INSERT_CAR, vin, make, model, year);
+	}
+
+	public boolean carExists(String vin) throws SQLException {
+		return !esql.executePreparedQuery(CAR_EXISTS, vin).isEmpty();
+	}
+
+	/**
+	 * @return (vin, make, model, year) of the car, null if it is not there
+	 */
+	public List<String> findCar(String vin) throws SQLException {
+		List<List<String>> result = esql.executePreparedQuery(FIND_CAR, vin);
+		return result.isEmpty() ? null : result.get(0);
+	}
+
+	public void vins(RowSink sink) throws SQLException {
+		esql.executeStreamingQuery("SELECT C.vin FROM Car C", VIN_FETCH_SIZE, sink);
+	}
+
+	public void addOwnership(int customerId, String vin) throws SQLException {
+		esql.executePreparedUpdate(INSERT_OWNERSHIP, customerId, vin);
+	}
+
+	public List<List<String>> carsOwnedBy(int customerId) throws SQLException {
+		return esql.executePreparedQuery(CARS_OWNED_BY, customerId);
+	}
+
+	public List<List<String>> ownersOf(String vin) throws SQLException {
+		return esql.executePreparedQuery(OWNERS_OF, vin);
+	}
+
+	public int openServiceRequest(int customerId, String vin, String date, int odometer, String complain) throws SQLException {
+		ensureRequestPartitions(date);
+		return firstInt(esql.executePreparedUpdateAndReturnResult(INSERT_SERVICE_REQUEST, customerId, vin, date, odometer, complain));
+	}
+
+	public List<String> findOpenServiceRequest(int rid) throws SQLException {
+		List<List<String>> result = esql.executePreparedQuery(FIND_OPEN_SERVICE_REQUEST, rid);
+		return result.isEmpty() ? null : result.get(0);
+	}
+
+	public int closeServiceRequest(int rid, int mechanicId, String date, String comment, int bill) throws SQLException {
+		ensureRequestPartitions(date);
+		List<List<String>> closed = esql.executePreparedUpdateAndReturnResult(CLOSE_SERVICE_REQUEST, rid, mechanicId, date, comment, bill);
+		if (closed.isEmpty()) throw new IllegalArgumentException("Service request " + rid + " is already closed");
+		return firstInt(closed);
+	}
+
+	public List<List<String>> closeServiceRequests(List<List<String>> closes) throws SQLException {
+		int n = closes.size();
+		Integer[] rids = new Integer[n], mids = new Integer[n], bills = new Integer[n];
+		String[] dates = new String[n], comments = new String[n];
+		for (int i = 0; i < n; i++) {
+			List<String> c = closes.get(i);
+			rids[i] = Integer.valueOf(c.get(0));
+			mids[i] = Integer.valueOf(c.get(1));
+			dates[i] = c.get(2);
+			comments[i] = c.get(3);
+			bills[i] = Integer.valueOf(c.get(4));
+			ensureRequestPartitions(dates[i]);
+		}
+		List<List<String>> reasons;
+		Map<String, String> wids = new HashMap<String, String>();
+		esql.beginTransaction();
+		try{
+			reasons = esql.executePreparedQuery(VALIDATE_CLOSES, esql.createArray("int4", rids), esql.createArray("int4", mids),
+				esql.createArray("text", dates), esql.createArray("int4", bills));
+			List<Integer> accepted = new ArrayList<Integer>();
+			for (int i = 0; i < n; i++) {
+				if (reasons.get(i).get(0) == null) accepted.add(i);
+			}
+			if (!accepted.isEmpty()) {
+				int m = accepted.size();
+				Integer[] aRids = new Integer[m], aMids = new Integer[m], aBills = new Integer[m];
+				String[] aDates = new String[m], aComments = new String[m];
+				for (int j = 0; j < m; j++) {
+					int i = accepted.get(j);
+					aRids[j] = rids[i];
+					aMids[j] = mids[i];
+					aDates[j] = dates[i];
+					aComments[j] = comments[i];
+					aBills[j] = bills[i];
+				}
+				for (List<String> row : esql.executePreparedUpdateAndReturnResult(CLOSE_SERVICE_REQUESTS, esql.createArray("int4", aRids), esql.createArray("int4", aMids),
+						esql.createArray("text", aDates), esql.createArray("text", aComments), esql.createArray("int4", aBills))) {
+					wids.put(row.get(0), row.get(1));
+				}
+			}
+			esql.commit();
+		}catch(SQLException e){
+			esql.rollback();
+			throw e;
+		}
+		List<List<String>> results = new ArrayList<List<String>>(n);
+		for (int i = 0; i < n; i++) {
+			String rid = rids[i].toString();
+			String reason = reasons.get(i).get(0);
+			if (reason == null && !wids.containsKey(rid)) reason = "closed by another client meanwhile";
+			results.add(Arrays.asList(rid, reason == null ? wids.get(rid) : null, reason));
+		}
+		return results;
+	}
+
+	public List<int[]> mechanicWorkloads() throws SQLException {
+		List<int[]> workloads = new ArrayList<int[]>();
+		for (List<String> row : esql.executePreparedQuery(MECHANIC_WORKLOADS)) {
+			workloads.add(new int[]{Integer.parseInt(row.get(0)), Integer.parseInt(row.get(1)), Integer.parseInt(row.get(2))});
+		}
+		return workloads;
+	}
+
+	public int assignMechanic(int rid, int mechanicId, int expectedOpen) throws SQLException {
+		esql.beginTransaction();
+		try{
+			//the row lock serializes clients assigning to the same mechanic
+			esql.executePreparedQuery(LOCK_MECHANIC, mechanicId);
+			int open = firstInt(esql.executePreparedQuery(OPEN_REQUESTS_OF, mechanicId));
+			if (open != expectedOpen) {
+				esql.rollback();
+				return open;
+			}
+			if (esql.executePreparedUpdate(ASSIGN_MECHANIC, mechanicId, rid) == 0) {
+				//closed by another client meanwhile
+				esql.rollback();
+				return -2;
+			}
+			esql.commit();
+			return -1;
+		}catch(SQLException e){
+			esql.rollback();
+			throw e;
+		}
+	}
+
+	public void closedRequestsWithBillUnder100(String from, String to, RowSink sink) throws SQLException {
+		esql.executeReadQuery("SELECT C.date, C.comment, C.bill FROM Closed_Request C WHERE C.bill<100" + range("C.date", from, to), sink);
+	}
+
+	public void customersWithMoreThan20Cars(RowSink sink) throws SQLException {
+		esql.executeReadQuery("SELECT C.fname, C.lname FROM Customer C, Owns O WHERE C.id=O.customer_id GROUP BY C.id HAVING COUNT(C.id)>20", sink);
+	}
+
+	public void carsBefore1995With50000Miles(String from, String to, RowSink sink) throws SQLException {
+		esql.executeReadQuery("SELECT C.make, C.model, C.year FROM Car C, Service_Request S WHERE C.vin=S.car_vin AND C.year<1995 AND S.odometer<50000" + range("S.date", from, to), sink);
+	}
+
+	public void carsWithMostServices(int k, String from, String to, RowSink sink) throws SQLException {
+		esql.executeReadQuery("SELECT C.make, C.model, M.N FROM Car C, (SELECT COUNT(S.rid) AS N, S.car_vin FROM Service_Request S WHERE TRUE" + range("S.date", from, to)
+			+ " GROUP BY S.car_vin) AS M WHERE M.car_vin=C.vin ORDER BY M.N DESC LIMIT " + k, sink);
+	}
+
+	/**
+	 * Report 9 before its top k: (make, model, n, vin) of every car with
+	 * requests, ordered by vin, for ShardedShopRepository to add up the
+	 * counts of a car across shards.
+	 */
+	public void serviceCountsByCar(String from, String to, RowSink sink) throws SQLException {
+		esql.executeReadQuery("SELECT C.make, C.model, M.N, M.car_vin FROM Car C, (SELECT COUNT(S.rid) AS N, S.car_vin FROM Service_Request S WHERE TRUE" + range("S.date", from, to)
+			+ " GROUP BY S.car_vin) AS M WHERE M.car_vin=C.vin ORDER BY M.car_vin COLLATE \"C\"", sink);
+	}
+
+	public void customersByTotalBill(String from, String to, RowSink sink) throws SQLException {
+		esql.executeReadQuery("SELECT C.fname, C.lname, M.N FROM Customer C, (SELECT SUM(R.bill) AS N, S.customer_id FROM Service_Request S, Closed_Request R WHERE S.rid=R.rid" + range("R.date", from, to)
+			+ " GROUP BY S.customer_id) AS M WHERE M.customer_id=C.id ORDER BY M.N DESC", sink);
+	}
+
+	public Page closedRequestsWithBillUnder100(String from, String to, Page.Cursor cursor) throws SQLException {
+		String seek = "";
+		if (cursor.key != null) {
+			seek = " AND (C.bill, C.wid) " + (cursor.backward ? "<" : ">") + " (" + Integer.parseInt(cursor.key.get(0)) + ", " + Integer.parseInt(cursor.key.get(1)) + ")";
+		}
+		String order = cursor.backward ? " DESC" : "";
+		return page("SELECT C.date, C.comment, C.bill, C.bill AS key_bill, C.wid AS key_wid FROM Closed_Request C WHERE C.bill<100" + range("C.date", from, to) + seek
+			+ " ORDER BY C.bill" + order + ", C.wid" + order, cursor, 2);
+	}
+
+	public Page carsBefore1995With50000Miles(String from, String to, Page.Cursor cursor) throws SQLException {
+		String seek = "";
+		if (cursor.key != null) {
+			seek = " AND (S.date, S.rid) " + (cursor.backward ? "<" : ">") + " (CAST(" + quote(cursor.key.get(0)) + " AS DATE), " + Integer.parseInt(cursor.key.get(1)) + ")";
+		}
+		String order = cursor.backward ? " DESC" : "";
+		return page("SELECT C.make, C.model, C.year, S.date AS key_date, S.rid AS key_rid FROM Car C, Service_Request S WHERE C.vin=S.car_vin AND C.year<1995 AND S.odometer<50000" + range("S.date", from, to) + seek
+			+ " ORDER BY S.date" + order + ", S.rid" + order, cursor, 2);
+	}
+
+	/**
+	 * The totals are computed per page, so only the rows sent are saved;
+	 * there is no index on an aggregate to seek to.
+	 */
+	public Page customersByTotalBill(String from, String to, Page.Cursor cursor) throws SQLException {
+		//(-total, id) ascending is total descending, then id
+		String seek = "";
+		if (cursor.key != null) {
+			seek = " AND (-M.N, C.id) " + (cursor.backward ? "<" : ">") + " (" + (-Long.parseLong(cursor.key.get(0))) + ", " + Integer.parseInt(cursor.key.get(1)) + ")";
+		}
+		String order = cursor.backward ? " ASC, C.id DESC" : " DESC, C.id";
+		return page("SELECT C.fname, C.lname, M.N, M.N AS key_total, C.id AS key_id FROM Customer C, (SELECT SUM(R.bill) AS N, S.customer_id FROM Service_Request S, Closed_Request R WHERE S.rid=R.rid" + range("R.date", from, to)
+			+ " GROUP BY S.customer_id) AS M WHERE M.customer_id=C.id" + seek + " ORDER BY M.N" + order, cursor, 2);
+	}
+
+	/**
+	 * Runs a report query for one page, one row more than the page to
+	 * know whether another follows.
+	 *
+	 * @param query ordered for the cursor's direction, key columns last
+	 */
+	private Page page(String query, Page.Cursor cursor, int keyColumns) throws SQLException {
+		RowSink.Collector rows = new RowSink.Collector();
+		esql.executeReadQuery(query + " LIMIT " + (cursor.limit + 1), rows);
+		return Page.of(cursor, rows.columns(), rows.rows(), keyColumns);
+	}
+
+	public void openServiceRequests(RowSink sink) throws SQLException {
+		esql.executeQuery("SELECT S.rid, S.status, S.date, S.customer_id, S.car_vin, S.complain FROM Service_Request S WHERE S.status <> 'C' ORDER BY S.date, S.rid", sink);
+	}
+
+	/**
+	 * Reads every close through a server-side cursor on the primary, the
+	 * history need not fit in memory and is too large to cache.
+	 */
+	public void closedHistory(RowSink sink) throws SQLException {
+		esql.executeStreamingQuery("SELECT C.date, C.bill, Car.make, Car.model, Car.year, M.id, M.experience FROM Closed_Request C "
+			+ "JOIN Service_Request S ON S.rid=C.rid JOIN Car ON Car.vin=S.car_vin JOIN Mechanic M ON M.id=C.mid", HISTORY_FETCH_SIZE, sink);
+	}
+
+	/**
+	 * Reads the lines through a server-side cursor, a month of them need
+	 * not fit in memory.
+	 */
+	public void statementLines(String from, String to, RowSink sink) throws SQLException {
+		esql.executeStreamingQuery("SELECT S.customer_id, U.fname, U.lname, U.address, C.wid, C.date, K.vin, K.make, K.model, K.year, S.complain, C.comment, C.bill "
+			+ "FROM Closed_Request C, Service_Request S, Car K, Customer U WHERE S.rid=C.rid AND K.vin=S.car_vin AND U.id=S.customer_id" + range("C.date", from, to)
+			+ " ORDER BY S.customer_id, C.date, C.wid", STATEMENT_FETCH_SIZE, sink);
+	}
+
+	public List<String> archiveRequestPartitions(String cutoff) throws SQLException {
+		List<String> archived = new ArrayList<String>();
+		for (List<String> table : esql.executeQueryAndReturnResult("SELECT archive_request_partitions(" + date(cutoff) + ")")) {
+			//rewrite the cold partition tightly packed, it is never updated again
+			esql.executeUpdate("VACUUM FULL " + table.get(0));
+			archived.add(table.get(0));
+		}
+		if (!archived.isEmpty()) {
+			//detaching fires no triggers, tell the report caches ourselves
+			esql.invalidateReports("service_request", "closed_request");
+			esql.executeUpdate("NOTIFY shop_tables, 'service_request'");
+			esql.executeUpdate("NOTIFY shop_tables, 'closed_request'");
+		}
+		return archived;
+	}
+
+	public void close() {
+		//the connection belongs to MechanicShop
+	}
+}
@@ -0,0 +1,188 @@
+/*
+ * Mechanic assignment scheduler
+ * =============================
+ *
+ * Keeps every mechanic in a priority queue ordered by open workload
+ * relative to experience, so the least loaded mechanic for a new service
+ * request is found in O(1) and kept current in O(log n).
+ *
+ */
+
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * In-memory indexed binary heap of mechanics. The heap is seeded from the
+ * database on startup and updated as requests are assigned and closed.
+ * Other clients assign requests too, so the load of a candidate is checked
+ * again atomically with the assignment (see ShopRepository.assignMechanic).
+ *
+ */
+
+public class MechanicScheduler{
+	//assignment gives up on reconciling after this many stale candidates
+	private static final int MAX_ATTEMPTS = 8;
+
+	private static class Entry{
+		int id;
+		int experience;
+		int open;
+		int index;
+	}
+
+	private Entry[] heap = new Entry[16];
+	private int size = 0;
+	private Map<Integer, Entry> byId = new HashMap<Integer, Entry>();
+
+	/**
+	 * Builds the scheduler from the mechanics and their open (not closed)
+	 * assigned requests.
+	 *
+	 * @param repo the shop's data
+	 * @return the seeded scheduler
+	 * @throws Exception when failed to read the workload
+	 */
+	public static MechanicScheduler load(ShopRepository repo) throws Exception {
+		MechanicScheduler scheduler = new MechanicScheduler();
+		for (int[] workload : repo.mechanicWorkloads()) {
+			scheduler.addMechanic(workload[0], workload[1]);
+			scheduler.setOpen(workload[0], workload[2]);
+		}
+		return scheduler;
+	}
+
+	/**
+	 * @return id of the least loaded mechanic, -1 if there are none
+	 */
+	public synchronized int suggest() {
+		return size == 0 ? -1 : heap[0].id;
+	}
+
+	/**
+	 * @return number of open requests assigned to the mechanic
+	 */
+	public synchronized int openRequests(int mechanicId) {
+		Entry e = byId.get(mechanicId);
+		return e == null ? 0 : e.open;
+	}
+
+	public synchronized int experience(int mechanicId) {
+		Entry e = byId.get(mechanicId);
+		return e == null ? 0 : e.experience;
+	}
+
+	public synchronized void addMechanic(int mechanicId, int experience) {
+		if (byId.containsKey(mechanicId)) return;
+		Entry e = new Entry();
+		e.id = mechanicId;
+		e.experience = experience;
+		if (size == heap.length) {
+			Entry[] grown = new Entry[size * 2];
+			System.arraycopy(heap, 0, grown, 0, size);
+			heap = grown;
+		}
+		e.index = size;
+		heap[size++] = e;
+		byId.put(mechanicId, e);
+		siftUp(e.index);
+	}
+
+	/**
+	 * Records a request assigned to the mechanic.
+	 */
+	public synchronized void opened(int mechanicId) {
+		Entry e = byId.get(mechanicId);
+		if (e == null) return;
+		e.open++;
+		siftDown(e.index);
+	}
+
+	/**
+	 * Records a request of the mechanic being closed.
+	 */
+	public synchronized void closed(int mechanicId) {
+		Entry e = byId.get(mechanicId);
+		if (e == null || e.open == 0) return;
+		e.open--;
+		siftUp(e.index);
+	}
+
+	/**
+	 * Replaces the open workload of the mechanic with a freshly read value.
+	 */
+	public synchronized void setOpen(int mechanicId, int open) {
+		Entry e = byId.get(mechanicId);
+		if (e == null) return;
+		int old = e.open;
+		e.open = open;
+		if (open < old) siftUp(e.index);
+		else siftDown(e.index);
+	}
+
+	/**
+	 * Assigns the open service request to the least loaded mechanic and
+	 * marks it as being repaired. The repository only assigns if the
+	 * candidate's open count is still the one the heap was ordered by, so
+	 * concurrent clients never pick a mechanic based on a stale count.
+	 *
+	 * @param repo the shop's data
+	 * @param rid the service request to assign
+	 * @return the assigned mechanic id, -1 if nobody could be assigned
+	 * @throws Exception when the assignment failed
+	 */
+	public int assign(ShopRepository repo, int rid) throws Exception {
+		for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+			int mid = suggest();
+			if (mid < 0) return -1;
+			int actual = repo.assignMechanic(rid, mid, openRequests(mid));
+			if (actual == -1) {
+				opened(mid);
+				return mid;
+			}
+			//the request was closed meanwhile, nobody's load changed
+			if (actual == -2) return -1;
+			//someone else changed this mechanic's load meanwhile, pick again
+			setOpen(mid, actual);
+		}
+		return -1;
+	}
+
+	private boolean less(Entry a, Entry b) {
+		//open / (experience + 1), compared without division
+		long la = (long) a.open * (b.experience + 1);
+		long lb = (long) b.open * (a.experience + 1);
+		if (la != lb) return la < lb;
+		if (a.open != b.open) return a.open < b.open;
+		return a.id < b.id;
+	}
+
+	private void siftUp(int i) {
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (!less(heap[i], heap[parent])) break;
+			swap(i, parent);
+			i = parent;
+		}
+	}
+
+	private void siftDown(int i) {
+		while (true) {
+			int left = 2 * i + 1;
+			if (left >= size) break;
+			int smallest = left;
+			if (left + 1 < size && less(heap[left + 1], heap[left])) smallest = left + 1;
+			if (!less(heap[smallest], heap[i])) break;
+			swap(i, smallest);
+			i = smallest;
+		}
+	}
+
+	private void swap(int i, int j) {
+		Entry t = heap[i];
+		heap[i] = heap[j];
+		heap[j] = t;
+		heap[i].index = i;
+		heap[j].index = j;
+	}
+}
@@ -11,8 +11,12 @@
  */
 
 
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
 import java.sql.DriverManager;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.Statement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
@@ -21,8 +25,18 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.format.ResolverStyle;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -33,7 +47,36 @@ import java.util.ArrayList;
 public class MechanicShop{
 	//reference to physical database connection
 	private Connection _connection = null;
+	//picks a replica or the primary for read-only report queries
+	private ReplicaRouter _router = null;
+	//data access used by the menu operations
+	private ShopRepository _repo = null;
+	//least loaded mechanic suggestions, seeded after connecting
+	private MechanicScheduler _scheduler = null;
+	//how to connect again, e.g. for a background session
+	private String _url, _user, _passwd;
+	//server-side prepared statements of this connection, by SQL text
+	private Map<String, PreparedStatement> _prepared = new HashMap<String, PreparedStatement>();
+	//prepares statements and primes caches after connecting, see startWarmUp()
+	private Thread _warmUp = null;
+	//results of report queries, shared with the sessions opened by newSession()
+	private ReportCache _reports = null;
+	//follows other clients' changes for the report cache, change feed and VIN filter, see notifications()
+	private NotificationListener _notifications = null;
+	//runs reports 6 to 10 in parallel, connected on first use
+	private Dashboard _dashboard = null;
+	//changes to service requests made by any client, null when offline
+	private ChangeFeed _feed = null;
+	//the databases the shop's data is split across, this shop's first (see ShardedShopRepository)
+	private List<MechanicShop> _shards = new ArrayList<MechanicShop>();
 	static BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+	//rows per round trip for queries read into a sink, e.g. reports
+	static final int SINK_FETCH_SIZE = 1000;
+	//menu operations by number, as named in round-trip traces and budgets; 11 is EXIT
+	static final String[] OPERATIONS = {null, "AddCustomer", "AddMechanic", "AddCar", "InsertServiceRequest", "CloseServiceRequest",
+		"ListCustomersWithBillLessThan100", "ListCustomersWithMoreThan20Cars", "ListCarsBefore1995With50000Milles", "ListKCarsWithTheMostServices",
+		"ListCustomersInDescendingOrderOfTheirTotalBill", null, "ListOpenServiceRequests", "BulkCloseServiceRequests",
+		"Dashboard", "WatchServiceRequests", "GenerateStatements"};
 	
 	public MechanicShop(String dbname, String dbport, String user, String passwd) throws SQLException {
 		System.out.print("Connecting to database...");
@@ -43,7 +86,12 @@ public class MechanicShop{
 			System.out.println ("Connection URL: " + url + "\n");
 			
 			// obtain a physical connection
-	        this._connection = DriverManager.getConnection(url, user, passwd);
+	        this._connection = connect(url, user, passwd);
+	        this._router = new ReplicaRouter(this._connection, user, passwd);
+	        this._repo = new JdbcShopRepository(this);
+	        this._url = url;
+	        this._user = user;
+	        this._passwd = passwd;
 	        System.out.println("Done");
 		}catch(Exception e){
 			System.err.println("Error - Unable to Connect to Database: " + e.getMessage());
@@ -52,22 +100,219 @@ public class MechanicShop{
 		}
 	}
 	
+	/**
+	 * Creates a shop without a database connection, every operation is
+	 * answered by the given repository (offline mode).
+	 * 
+	 * @param repo the repository holding the shop's data
+	 */
+	public MechanicShop(ShopRepository repo) {
+		this._repo = repo;
+	}
+	
+	private MechanicShop(Connection connection, String url, String user, String passwd) {
+		this._connection = connection;
+		this._router = new ReplicaRouter(connection, user, passwd);
+		this._repo = new JdbcShopRepository(this);
+		this._url = url;
+		this._user = user;
+		this._passwd = passwd;
+	}
+	
+	/**
+	 * Method to open another connection to the same database, for work
+	 * running next to the menu. Unlike the constructor it does not exit
+	 * when the database can not be reached.
+	 * 
+	 * @return a new shop with its own connection and no replicas
+	 * @throws java.sql.SQLException when failed to connect
+	 */
+	public MechanicShop newSession() throws SQLException {
+		MechanicShop session = new MechanicShop(connect(this._url, this._user, this._passwd), this._url, this._user, this._passwd);
+		session._reports = this._reports;
+		return session;
+	}
+	
+	/**
+	 * Method to connect to another shard of the shop's data, see
+	 * ShardedShopRepository. The shard has no replicas and no report cache,
+	 * its reports always run on the shard.
+	 * 
+	 * @param url JDBC URL of the shard
+	 * @return the connected shard
+	 * @throws java.sql.SQLException when failed to connect
+	 */
+	public MechanicShop connectShard(String url) throws SQLException {
+		return new MechanicShop(connect(url, this._user, this._passwd), url, this._user, this._passwd);
+	}
+	
+	/**
+	 * Method to get the listener shared by everything in this client that
+	 * follows other clients' changes, started on first use and stopped on
+	 * cleanup.
+	 * 
+	 * @return the shop's notification listener
+	 */
+	public synchronized NotificationListener notifications() {
+		if (this._notifications == null) this._notifications = new NotificationListener();
+		return this._notifications;
+	}
+	
+	/**
+	 * Method to cache the results of report queries. Other clients' writes
+	 * are picked up through notifications().
+	 * 
+	 * @param maxBytes estimated memory the cached results may take
+	 */
+	public void enableReportCache(long maxBytes) {
+		this._reports = new ReportCache(maxBytes);
+		this._reports.listen(notifications(), this);
+	}
+	
+	/**
+	 * Method to follow the changes to service requests on every shard, see
+	 * ChangeFeed.
+	 */
+	public void enableChangeFeed() {
+		this._feed = new ChangeFeed();
+		for (MechanicShop shard : this._shards) {
+			this._feed.listen(notifications(), shard);
+		}
+	}
+	
+	/**
+	 * @return the report cache, null if reports are not cached
+	 */
+	public ReportCache reportCache() {
+		return this._reports;
+	}
+	
+	/**
+	 * Method to read the notifications that arrived on the channels this
+	 * connection LISTENs to.
+	 * 
+	 * @return (channel, payload) of each, oldest first
+	 * @throws java.sql.SQLException when the connection failed
+	 */
+	public List<List<String>> pollNotifications() throws SQLException {
+		//the driver only reads notifications from the socket while a statement runs
+		executeQuery("SELECT 1");
+		List<List<String>> received = new ArrayList<List<String>>();
+		PGNotification[] notifications = this._connection.unwrap(PGConnection.class).getNotifications();
+		if (notifications != null) {
+			for (PGNotification n : notifications) {
+				received.add(Arrays.asList(n.getName(), n.getParameter()));
+			}
+		}
+		return received;
+	}
+	
+	private static Connection connect(String url, String user, String passwd) throws SQLException {
+		Properties props = new Properties();
+		props.setProperty("user", user);
+		props.setProperty("password", passwd);
+		//prepared statements become named server-side statements on their first execution instead of their fifth
+		props.setProperty("prepareThreshold", "1");
+		return RoundTripTracer.wrap(DriverManager.getConnection(url, props));
+	}
+	
+	/**
+	 * Method to prepare warm-up work in the background: every statement of
+	 * the menu operations is prepared on this connection and the hot tables
+	 * and indexes are read into the database's buffers. Operations call
+	 * awaitWarmUp() first, the connection is not shared while it runs.
+	 */
+	public void startWarmUp() {
+		final long start = System.currentTimeMillis();
+		this._warmUp = new Thread(new Runnable() {
+			public void run() {
+				try{
+					JdbcShopRepository repo = new JdbcShopRepository(MechanicShop.this);
+					repo.prepareStatements();
+					repo.primeCaches();
+				}catch(SQLException e){
+					//only slower, the operations prepare what they need themselves
+					System.err.println("Warm-up failed: " + e.getMessage());
+				}
+				System.out.println("(warm-up done in " + (System.currentTimeMillis() - start) + " ms)");
+			}
+		}, "warm-up");
+		this._warmUp.setDaemon(true);
+		this._warmUp.start();
+	}
+	
+	/**
+	 * Method to wait until the warm-up started by startWarmUp() is done.
+	 * Returns immediately if there is none.
+	 */
+	public void awaitWarmUp() {
+		if (this._warmUp == null) return;
+		try{
+			this._warmUp.join();
+		}catch(InterruptedException e){
+			// ignored.
+		}
+		this._warmUp = null;
+	}
+	
+	/**
+	 * Method to open a new connection in place of one the driver gave up
+	 * on, e.g. after the database restarted. The statements prepared on
+	 * the old connection are dropped, they are prepared again on use.
+	 * Checking costs no round trip: the driver closes a connection whose
+	 * socket failed.
+	 * 
+	 * @return true when a lost connection was replaced
+	 * @throws java.sql.SQLException when the connection is lost and the database still can not be reached
+	 */
+	public boolean reconnectIfLost() throws SQLException {
+		if (this._connection == null || !this._connection.isClosed()) return false;
+		Connection fresh = connect(this._url, this._user, this._passwd);
+		this._connection = fresh;
+		this._prepared.clear();
+		this._router.setPrimary(fresh);
+		return true;
+	}
+	
+	/**
+	 * @return the data access of this shop
+	 */
+	public ShopRepository repository() {
+		return this._repo;
+	}
+	
+	/**
+	 * Method to check that the connection still works.
+	 * 
+	 * @return false when the connection is closed or broken
+	 */
+	public boolean isConnected() {
+		try{
+			return this._connection != null && this._connection.isValid(2);
+		}catch(SQLException e){
+			return false;
+		}
+	}
+	
 	/**
 	 * Method to execute an update SQL statement.  Update SQL instructions
 	 * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
 	 * 
 	 * @param sql the input SQL string
+	 * @return the number of rows affected
 	 * @throws java.sql.SQLException when update failed
 	 * */
-	public void executeUpdate (String sql) throws SQLException { 
+	public int executeUpdate (String sql) throws SQLException { 
 		// creates a statement object
 		Statement stmt = this._connection.createStatement ();
 
 		// issues the update instruction
-		stmt.executeUpdate (sql);
+		int rowCount = stmt.executeUpdate (sql);
 
 		// close the instruction
 	    stmt.close ();
+	    noteWrite(sql);
+	    return rowCount;
 	}//end executeUpdate
 
 	/**
@@ -80,8 +325,261 @@ public class MechanicShop{
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
 	public int executeQueryAndPrintResult (String query) throws SQLException {
+		return executeQueryAndPrintResult(this._connection, query);
+	}
+
+	/**
+	 * Method to execute a read-only report query and print its results to
+	 * standard out. The query runs on a replica when one is configured and
+	 * has caught up, and on the primary otherwise. Never use it for reads
+	 * that validate input of a write.
+	 * 
+	 * @param query the input query string
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeReadQueryAndPrintResult (String query) throws SQLException {
+		return executeQueryAndPrintResult(this._router.forRead(), query);
+	}
+
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT) and
+	 * stream the column names and rows into a sink, SINK_FETCH_SIZE rows
+	 * at a time (see executeStreamingQuery).
+	 * 
+	 * @param query the input query string
+	 * @param sink receives the header and every row
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeQuery (String query, RowSink sink) throws SQLException {
+		return executeStreamingQuery(this._connection, query, SINK_FETCH_SIZE, sink);
+	}
+
+	/**
+	 * Same as executeQuery(String, RowSink), but runs on a replica when one
+	 * is configured and has caught up. Only for read-only report queries.
+	 * Only results read on the primary are cached: a replica may not have
+	 * replayed a write whose invalidation already arrived.
+	 */
+	public int executeReadQuery (String query, RowSink sink) throws SQLException {
+		if (this._reports == null) return executeStreamingQuery(this._router.forRead(), query, SINK_FETCH_SIZE, sink);
+		ReportCache.Entry cached = this._reports.get(query);
+		if (cached != null) {
+			sink.header(cached.columns);
+			for (List<String> row : cached.rows) {
+				sink.row(row);
+			}
+			return cached.rows.size();
+		}
+		Connection connection = this._router.forRead();
+		if (connection != this._connection) return executeStreamingQuery(connection, query, SINK_FETCH_SIZE, sink);
+		ReportCache.Recorder recorder = this._reports.record(query, sink);
+		int rowCount = executeStreamingQuery(connection, query, SINK_FETCH_SIZE, recorder);
+		recorder.done();
+		return rowCount;
+	}
+
+	/**
+	 * Method to note a write: reports on replicas wait until they caught
+	 * up with it, cached reports of the written tables are dropped.
+	 */
+	private void noteWrite (String sql) {
+		this._router.noteWrite();
+		if (this._reports != null) this._reports.invalidateWritten(sql);
+	}
+
+	/**
+	 * Method to drop the cached reports of tables changed other than by
+	 * an INSERT, UPDATE or DELETE of this client, e.g. by detaching
+	 * partitions.
+	 * 
+	 * @param tables the changed tables
+	 */
+	public void invalidateReports (String... tables) {
+		if (this._reports == null) return;
+		for (String table : tables) {
+			this._reports.invalidate(table);
+		}
+	}
+
+	/**
+	 * Method to execute a query whose result need not fit in memory. The
+	 * rows are read through a server-side cursor, fetchSize at a time, and
+	 * handed to the sink as they arrive. A cursor only lives in a
+	 * transaction, so the query runs in one of its own unless a
+	 * transaction is already open.
+	 * 
+	 * @param query the input query string
+	 * @param fetchSize rows read per round trip
+	 * @param sink receives the header and every row
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeStreamingQuery (String query, int fetchSize, RowSink sink) throws SQLException {
+		return executeStreamingQuery(this._connection, query, fetchSize, sink);
+	}
+
+	private int executeStreamingQuery (Connection connection, String query, int fetchSize, RowSink sink) throws SQLException {
+		boolean autoCommit = connection.getAutoCommit();
+		if (autoCommit) connection.setAutoCommit(false);
+		boolean committed = false;
+		try{
+			int rowCount = executeQuery(connection, query, sink, fetchSize);
+			if (autoCommit) connection.commit();
+			committed = true;
+			return rowCount;
+		}finally{
+			if (autoCommit) {
+				//ends the transaction when the query failed
+				if (!committed) connection.rollback();
+				connection.setAutoCommit(true);
+			}//end if
+		}//end try
+	}
+
+	private int executeQuery (Connection connection, String query, RowSink sink) throws SQLException {
+		return executeQuery(connection, query, sink, 0);
+	}
+
+	private int executeQuery (Connection connection, String query, RowSink sink, int fetchSize) throws SQLException {
+		Statement stmt = connection.createStatement ();
+		try{
+			stmt.setFetchSize(fetchSize);
+			ResultSet rs = stmt.executeQuery (query);
+
+			ResultSetMetaData rsmd = rs.getMetaData ();
+			int numCol = rsmd.getColumnCount ();
+			List<String> header = new ArrayList<String>();
+			for (int i = 1; i <= numCol; i++) {
+				header.add(rsmd.getColumnLabel(i));
+			}
+			sink.header(header);
+
+			int rowCount = 0;
+			while (rs.next()){
+				List<String> record = new ArrayList<String>(numCol);
+				for (int i=1; i<=numCol; ++i)
+					record.add(rs.getString (i));
+				sink.row(record);
+				++rowCount;
+			}//end while
+			return rowCount;
+		}finally{
+			//also when the sink threw
+			stmt.close ();
+		}//end try
+	}
+
+	/**
+	 * Method to execute an INSERT, UPDATE or DELETE with a RETURNING clause
+	 * and return the returned rows, saving a round trip for generated keys.
+	 * 
+	 * @param sql the input SQL string
+	 * @return the returned rows as a list of records
+	 * @throws java.sql.SQLException when the statement failed
+	 */
+	public List<List<String>> executeUpdateAndReturnResult (String sql) throws SQLException {
+		RowSink.Collector collector = new RowSink.Collector();
+		executeQuery(this._connection, sql, collector);
+		noteWrite(sql);
+		return collector.rows();
+	}
+
+	/**
+	 * Method to get the prepared statement for the SQL, preparing it the
+	 * first time. Statements stay open as long as the connection and are
+	 * only planned once by the server.
+	 * 
+	 * @param sql the SQL string with ? placeholders
+	 * @return the prepared statement
+	 * @throws java.sql.SQLException when the statement can not be prepared
+	 */
+	public synchronized PreparedStatement prepare (String sql) throws SQLException {
+		PreparedStatement stmt = this._prepared.get(sql);
+		if (stmt == null) {
+			stmt = this._connection.prepareStatement(sql);
+			this._prepared.put(sql, stmt);
+		}
+		return stmt;
+	}
+
+	/**
+	 * Method to create a SQL array, e.g. to pass many rows to a prepared
+	 * statement as one parameter.
+	 * 
+	 * @param type the element type, e.g. int4 or text
+	 * @param values the elements
+	 * @return the array to bind as a parameter
+	 * @throws java.sql.SQLException when the array can not be created
+	 */
+	public java.sql.Array createArray (String type, Object[] values) throws SQLException {
+		return this._connection.createArrayOf(type, values);
+	}
+
+	private PreparedStatement bind (String sql, Object[] params) throws SQLException {
+		PreparedStatement stmt = prepare(sql);
+		for (int i = 0; i < params.length; i++) {
+			stmt.setObject(i + 1, params[i]);
+		}
+		return stmt;
+	}
+
+	/**
+	 * Method to execute a prepared query and return the results as a list
+	 * of records.
+	 * 
+	 * @param sql the SQL string with ? placeholders
+	 * @param params the values of the placeholders
+	 * @return the query result as a list of records
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public List<List<String>> executePreparedQuery (String sql, Object... params) throws SQLException {
+		ResultSet rs = bind(sql, params).executeQuery();
+		int numCol = rs.getMetaData().getColumnCount();
+		List<List<String>> result = new ArrayList<List<String>>();
+		while (rs.next()){
+			List<String> record = new ArrayList<String>(numCol);
+			for (int i=1; i<=numCol; ++i)
+				record.add(rs.getString (i));
+			result.add(record);
+		}//end while
+		rs.close();
+		return result;
+	}
+
+	/**
+	 * Method to execute a prepared INSERT, UPDATE or DELETE.
+	 * 
+	 * @param sql the SQL string with ? placeholders
+	 * @param params the values of the placeholders
+	 * @return the number of rows affected
+	 * @throws java.sql.SQLException when the update failed
+	 */
+	public int executePreparedUpdate (String sql, Object... params) throws SQLException {
+		int rowCount = bind(sql, params).executeUpdate();
+		noteWrite(sql);
+		return rowCount;
+	}
+
+	/**
+	 * Method to execute a prepared INSERT, UPDATE or DELETE with a
+	 * RETURNING clause and return the returned rows.
+	 * 
+	 * @param sql the SQL string with ? placeholders
+	 * @param params the values of the placeholders
+	 * @return the returned rows as a list of records
+	 * @throws java.sql.SQLException when the statement failed
+	 */
+	public List<List<String>> executePreparedUpdateAndReturnResult (String sql, Object... params) throws SQLException {
+		List<List<String>> result = executePreparedQuery(sql, params);
+		noteWrite(sql);
+		return result;
+	}
+
+	private int executeQueryAndPrintResult (Connection connection, String query) throws SQLException {
 		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
+		Statement stmt = connection.createStatement ();
 
 		//issues the query instruction
 		ResultSet rs = stmt.executeQuery (query);
@@ -193,11 +691,64 @@ public class MechanicShop{
 		return -1;
 	}
 
+	/**
+	 * Method to start a transaction. Statements issued afterwards only
+	 * become permanent on commit().
+	 * 
+	 * @throws java.sql.SQLException when failed to turn off autocommit
+	 */
+	public void beginTransaction() throws SQLException {
+		this._connection.setAutoCommit(false);
+	}
+
+	/**
+	 * Method to commit the current transaction and return to autocommit.
+	 * 
+	 * @throws java.sql.SQLException when failed to commit
+	 */
+	public void commit() throws SQLException {
+		this._connection.commit();
+		this._connection.setAutoCommit(true);
+	}
+
+	/**
+	 * Method to roll back the current transaction and return to autocommit.
+	 */
+	public void rollback() {
+		try{
+			this._connection.rollback();
+			this._connection.setAutoCommit(true);
+		}catch (SQLException e){
+			// ignored.
+		}
+	}
+
+	/**
+	 * Method to register a read replica for report queries.
+	 * 
+	 * @param url JDBC URL of the replica
+	 */
+	public void addReplica(String url){
+		this._router.addReplica(url);
+	}
+
 	/**
 	 * Method to close the physical connection if it is open.
 	 */
 	public void cleanup(){
 		try{
+			if (this._dashboard != null){
+				this._dashboard.close();
+			}//end if
+			if (this._notifications != null){
+				this._notifications.close();
+			}//end if
+			if (this._repo != null){
+				this._repo.close();
+			}//end if
+			if (this._router != null){
+				this._router.close();
+			}//end if
 			if (this._connection != null){
 				this._connection.close ();
 			}//end if
@@ -212,36 +763,87 @@ public class MechanicShop{
 	 * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
 	 */
 	public static void main (String[] args) {
-		if (args.length != 3) {
+		boolean offline = args.length == 2 && args[0].equals("--offline");
+		if (args.length < 3 && !offline) {
 			System.err.println (
 				"Usage: " + "java [-classpath <classpath>] " + MechanicShop.class.getName () +
-		            " <dbname> <port> <user>");
+		            " <dbname> <port> <user> [<replica port or JDBC URL> ...]\n" +
+		            "       java [-classpath <classpath>] " + MechanicShop.class.getName () +
+		            " --offline <data directory>");
 			return;
 		}//end if
 		
 		MechanicShop esql = null;
+		long started = System.currentTimeMillis();
 		
 		try{
 			System.out.println("(1)");
 			
-			try {
-				Class.forName("org.postgresql.Driver");
-			}catch(Exception e){
+			if (offline) {
+				//no database, answer from an in-memory copy of the csv files
+				System.out.println("Offline mode, loading " + args[1] + " (changes are not saved)");
+				esql = new MechanicShop(MemoryShopRepository.load(new File(args[1])));
+			} else {
+				try {
+					Class.forName("org.postgresql.Driver");
+				}catch(Exception e){
 
-				System.out.println("Where is your PostgreSQL JDBC Driver? " + "Include in your library path!");
-				e.printStackTrace();
-				return;
-			}
-			//Runtime.getRuntime().exec("../postgresql/startPostgreSQL.sh");
-			//Runtime.getRuntime().exec("../postgresql/createPostgreDB.sh");
+					System.out.println("Where is your PostgreSQL JDBC Driver? " + "Include in your library path!");
+					e.printStackTrace();
+					return;
+				}
+				//Runtime.getRuntime().exec("../postgresql/startPostgreSQL.sh");
+				//Runtime.getRuntime().exec("../postgresql/createPostgreDB.sh");
 
-			System.out.println("(2)");
-			String dbname = args[0];
-			String dbport = args[1];
-			String user = args[2];
-			
-			esql = new MechanicShop (dbname, dbport, user, "");
+				System.out.println("(2)");
+				String dbname = args[0];
+				String dbport = args[1];
+				String user = args[2];
 			
+				esql = new MechanicShop (dbname, dbport, user, "");
+				for (int i = 3; i < args.length; i++) {
+					//a bare port means a replica of the same database on this machine
+					esql.addReplica(args[i].startsWith("jdbc:") ? args[i] : "jdbc:postgresql://localhost:" + args[i] + "/" + dbname);
+				}
+				Migrator.migrate(esql);
+				esql._shards.add(esql);
+				String shards = System.getProperty("shop.shards");
+				if (shards != null) {
+					//customers are split across this database and the shards, by id
+					for (String shard : shards.split(",")) {
+						shard = shard.trim();
+						MechanicShop s = esql.connectShard(shard.startsWith("jdbc:") ? shard : "jdbc:postgresql://localhost:" + shard + "/" + dbname);
+						Migrator.migrate(s);
+						esql._shards.add(s);
+					}
+					esql._repo = new ShardedShopRepository(esql._shards);
+					System.out.println("Sharded across " + esql._shards.size() + " databases");
+				}
+				long cacheBytes = Long.getLong("shop.reportCacheBytes", 16L << 20);
+				if (cacheBytes > 0) {
+					esql.enableReportCache(cacheBytes);
+				}
+				esql.enableChangeFeed();
+				String journal = System.getProperty("shop.journal");
+				if (journal != null && esql._shards.size() > 1) {
+					System.err.println("shop.journal is ignored with shop.shards, the journal is written to a single database");
+				} else if (journal != null) {
+					//service requests are journaled locally and written to the database in the background
+					IntakeJournal log = new IntakeJournal(new File(journal), Integer.getInteger("shop.journalBytes", 64 << 20));
+					esql._repo = new WriteBehindShopRepository(esql._repo, log, new File(journal + ".rejects"), esql);
+				}
+				long vinCapacity = Long.getLong("shop.vinFilterCapacity", 1000000L);
+				if (vinCapacity > 0) {
+					//VINs certainly not in Car are answered without a lookup
+					esql._repo = new VinFilterShopRepository(esql._repo, vinCapacity, Double.parseDouble(System.getProperty("shop.vinFilterFpp", "0.01")), esql.notifications(), esql._shards);
+				}
+			}
+			esql._scheduler = MechanicScheduler.load(esql._repo);
+			if (!offline) {
+				//runs while the clerk reads the menu
+				esql.startWarmUp();
+			}
+			boolean first = true;
 
 			boolean keepon = true;
 			while(keepon){
@@ -258,11 +860,31 @@ public class MechanicShop{
 				System.out.println("9. ListKCarsWithTheMostServices");
 				System.out.println("10. ListCustomersInDescendingOrderOfTheirTotalBill");
 				System.out.println("11. < EXIT");
+				System.out.println("12. ListOpenServiceRequests");
+				System.out.println("13. BulkCloseServiceRequests");
+				System.out.println("14. Dashboard");
+				System.out.println("15. WatchServiceRequests");
+				System.out.println("16. GenerateStatements");
 				
 				/*
 				 * FOLLOW THE SPECIFICATION IN THE PROJECT DESCRIPTION
 				 */
-				switch (readChoice()){
+				int choice = readChoice();
+				if (first) {
+					long waitStart = System.currentTimeMillis();
+					esql.awaitWarmUp();
+					long now = System.currentTimeMillis();
+					System.out.println("(time to first operation " + (now - started) + " ms, waited " + (now - waitStart) + " ms for warm-up)");
+					first = false;
+				}
+				try{
+					//the database may have restarted since the last operation
+					if (esql.reconnectIfLost()) System.out.println("(reconnected to the database)");
+				}catch(SQLException e){
+					System.err.println("Database still unreachable: " + e.getMessage());
+				}
+				RoundTripTracer.begin();
+				switch (choice){
 					case 1: AddCustomer(esql); break;
 					case 2: AddMechanic(esql); break;
 					case 3: AddCar(esql); break;
@@ -274,6 +896,14 @@ public class MechanicShop{
 					case 9: ListKCarsWithTheMostServices(esql); break;
 					case 10: ListCustomersInDescendingOrderOfTheirTotalBill(esql); break;
 					case 11: keepon = false; break;
+					case 12: ListOpenServiceRequests(esql); break;
+					case 13: BulkCloseServiceRequests(esql); break;
+					case 14: ShowDashboard(esql); break;
+					case 15: WatchServiceRequests(esql); break;
+					case 16: GenerateStatements(esql); break;
+				}
+				if (choice >= 1 && choice < OPERATIONS.length && OPERATIONS[choice] != null) {
+					RoundTripTracer.end(OPERATIONS[choice]);
 				}
 			}
 		}catch(Exception e){
@@ -281,10 +911,20 @@ public class MechanicShop{
 		}finally{
 			try{
 				if(esql != null) {
+					if (esql.reportCache() != null) {
+						System.out.println("Report cache: " + esql.reportCache().stats());
+					}
+					if (esql._repo instanceof VinFilterShopRepository) {
+						System.out.println("VIN filter: " + ((VinFilterShopRepository) esql._repo).stats());
+					}
 					System.out.print("Disconnecting from database...");
 					esql.cleanup ();
 					System.out.println("Done\n\nBye !");
 				}//end if				
+				if (RoundTripTracer.violations() > 0) {
+					//lets scripts running operations against their budgets fail
+					System.exit(3);
+				}
 			}catch(Exception e){
 				// ignored.
 			}
@@ -306,6 +946,72 @@ public class MechanicShop{
 		}while (true);
 		return input;
 	}//end readChoice
+	/**
+	 * Asks for an optional date range to restrict a report to, so that only
+	 * the matching monthly partitions are scanned.
+	 * 
+	 * @return {from, until exclusive} as MM/DD/YYYY, null for an open end
+	 */
+	public static String[] readDateRange() throws Exception {
+		String from, to;
+		do {
+			System.out.print("From date (XX/XX/XXXX, blank for all history): ");
+			from = in.readLine();
+			if (from.length() == 0 || (from.length() == 10 && from.charAt(2) == '/' && from.charAt(5) == '/')) {
+				break;
+			}
+			System.out.println("Please enter valid date format (XX/XX/XXXX)");
+		} while (true);
+		do {
+			System.out.print("Until date, exclusive (XX/XX/XXXX, blank for no end): ");
+			to = in.readLine();
+			if (to.length() == 0 || (to.length() == 10 && to.charAt(2) == '/' && to.charAt(5) == '/')) {
+				break;
+			}
+			System.out.println("Please enter valid date format (XX/XX/XXXX)");
+		} while (true);
+		return new String[]{from.length() > 0 ? from : null, to.length() > 0 ? to : null};
+	}
+	/**
+	 * Prints rows returned by the repository with a header, the way
+	 * executeQueryAndPrintResult prints a query result.
+	 * 
+	 * @return the number of rows printed
+	 */
+	public static int printRows(List<String> header, List<List<String>> rows) {
+		RowSink.Printer printer = new RowSink.Printer();
+		printer.header(header);
+		for (List<String> row : rows) {
+			printer.row(row);
+		}
+		return printer.rowCount();
+	}
+	/**
+	 * Prints a report a page of shop.pageSize rows at a time, moving to the
+	 * next or previous page as asked.
+	 */
+	public static void browse(Page.Source source) throws Exception {
+		Page page = source.read(Page.first(Integer.getInteger("shop.pageSize", 20)));
+		int number = 1;
+		while (true) {
+			printRows(page.columns, page.rows);
+			Page.Cursor next = page.next(), previous = page.previous();
+			if (next == null && previous == null) {
+				return;
+			}
+			System.out.print("Page " + number + (next != null ? ", n for next" : "") + (previous != null ? ", p for previous" : "") + ", anything else to stop: ");
+			String choice = in.readLine();
+			if (choice != null && choice.trim().equalsIgnoreCase("n") && next != null) {
+				page = source.read(next);
+				number++;
+			} else if (choice != null && choice.trim().equalsIgnoreCase("p") && previous != null) {
+				page = source.read(previous);
+				number--;
+			} else {
+				return;
+			}
+		}
+	}
 	public static boolean isNumber(String input) {
 		try {
 			int d = Integer.parseInt(input);
@@ -315,54 +1021,11 @@ public class MechanicShop{
 		return true;
 	} 
 	public static boolean compareDates(String dateOpened, String dateClosed) {
-		String mO, dO, yO, mC, dC, yC;
-		int imO, idO, iyO, imC, idC, iyC;
-		
-		String dateO = dateOpened; String dateC = dateClosed;
-		
-		mO = dateO.substring(0,2);
-		if (mO.charAt(1) == '/') {        //"1/"
-			mO = "0" + mO.substring(0,1); //"1/" -> "01"
-			dateO = dateO.substring(2);   //0/2/3456 -> 2/3456 ...
-		}else if (mO.charAt(2) == '/' ) { //"10/"
-			mO = mO.substring(0,2); //	  "10" -> "10"
-			dateO = dateO.substring(3);   //10/2/3456 -> 2/3456 ...			
-		}
-		
-		dO = dateO.substring(0,2);
-		if (dO.charAt(1) == '/') {        //"1/"
-			dO = "0" + dO.substring(0,1); //"1/" -> "01"
-			dateO = dateO.substring(2);   //2/3456 -> 3456 ...
-		}else if (dO.charAt(2) == '/' ) { //"10/"
-			dO = dO.substring(0,2); //	  "10" -> "10"
-			dateO = dateO.substring(3);   //10/3456 -> 3456 ...			
-		}
-		
-		yO = dateO.substring(0, 5);
-		
-		mC = dateC.substring(0,2);
-		if (mC.charAt(1) == '/') {        //"1/"
-			mC = "0" + mC.substring(0,1); //"1/" -> "01"
-			dateC = dateC.substring(2);   //0/2/3456 -> 2/3456 ...
-		}else if (mC.charAt(2) == '/' ) { //"10/"
-			mC = mC.substring(0,2); //	  "10" -> "10"
-			dateC = dateC.substring(3);   //10/2/3456 -> 2/3456 ...			
-		}
-		
-		dC = dateC.substring(0,2);
-		if (dC.charAt(1) == '/') {        //"1/"
-			dC = "0" + dC.substring(0,1); //"1/" -> "01"
-			dateC = dateC.substring(2);   //2/3456 -> 3456 ...
-		}else if (dC.charAt(2) == '/' ) { //"10/"
-			dC = dC.substring(0,2); //	  "10" -> "10"
-			dateC = dateC.substring(3);   //10/3456 -> 3456 ...			
-		}
-		
-		yC = dateC.substring(0, 5);
-		
-		imO = Integer.parseInt(mO);	imC = Integer.parseInt(mC);
-		idO = Integer.parseInt(dO);	idC = Integer.parseInt(dC);
-		iyO = Integer.parseInt(yO);	iyC = Integer.parseInt(yC);
+		//M/D/YYYY or MM/DD/YYYY, anything after the year (a time) is ignored
+		String[] o = dateOpened.split("[/ ]");
+		String[] c = dateClosed.split("[/ ]");
+		int imO = Integer.parseInt(o[0]), idO = Integer.parseInt(o[1]), iyO = Integer.parseInt(o[2]);
+		int imC = Integer.parseInt(c[0]), idC = Integer.parseInt(c[1]), iyC = Integer.parseInt(c[2]);
 		
 		if (iyC > iyO) {
 			return true;
@@ -388,8 +1051,8 @@ public class MechanicShop{
 	}
 	public static void AddCustomer(MechanicShop esql){//1
 		String input, fname, lname, phone, address;
+		Integer id = null;
 		try {
-			String query = "INSERT INTO Customer VALUES (nextval('seq_customer_id'),'";
 			System.out.println("To add new customer into database input the following customer information");
 			do {
 				System.out.print("Auto generate customer ID? (y/n): ");
@@ -400,20 +1063,24 @@ public class MechanicShop{
 				}
 				System.out.println("Please enter 'y' or 'n'");
 			} while (true);
-			
+
 			if (input.equals("y")) {
-				//do nothing query info set correctly	
+				//do nothing id generated on insert
 			} else if (input.equals("n")){
-				query = "INSERT INTO Customer VALUES (";
-				System.out.print("Please enter unique customer id: ");
-				input = in.readLine();
-				query += input;
-				query += ", '";
+				do {
+					System.out.print("Please enter unique customer id: ");
+					input = in.readLine();
+					if (isNumber(input)) {
+						break;
+					}
+					System.out.println("Customer id must be a number");
+				} while (true);
+				id = Integer.parseInt(input);
 			} else {
 				System.out.println("Error: incorrect input parse, exiting...");
 				return;
 			}
-			
+
 			do {
 				System.out.print("Please enter first name: ");
 				fname = in.readLine();
@@ -422,9 +1089,7 @@ public class MechanicShop{
 				}
 				System.out.println("Cannot leave field blank");
 			} while (true);
-			query += fname;
-			query += "','";
-			
+
 			do {
 				System.out.print("Please enter last name: ");
 				lname = in.readLine();
@@ -433,9 +1098,7 @@ public class MechanicShop{
 				}
 				System.out.println("Cannot leave field blank");
 			} while (true);
-			query += lname;
-			query += "','";
-			
+
 			do {
 				System.out.print("Please enter phone number: ");
 				phone = in.readLine();
@@ -444,9 +1107,7 @@ public class MechanicShop{
 				}
 				System.out.println("Format (XXX)XXX-XXXX ");
 			} while (true);
-			query += phone;
-			query += "','";
-			
+
 			do {
 				System.out.print("Please enter address: ");
 				address = in.readLine();
@@ -455,23 +1116,22 @@ public class MechanicShop{
 				}
 				System.out.println("Cannot leave field blank");
 			} while (true);
-			query += address;
-			query += "')";
-			
+
 			System.out.println("------------Adding New Customer into Database-------------");
 			System.out.println("Name: " + fname + " " + lname);
 			System.out.println("Phone: " + phone);
 			System.out.println("Address: " + address);
-			esql.executeUpdate(query);
+			int cID = esql._repo.addCustomer(id, fname, lname, phone, address);
+			System.out.println("Customer ID: " + cID);
 		}catch (Exception e) {
 			System.out.println(e.getMessage());
 		}
 	}
-	
+
 	public static void AddMechanic(MechanicShop esql){//2
 		String input, fname, lname, experience;
+		Integer id = null;
 		try {
-			String query = "INSERT INTO MECHANIC VALUES (";
 			System.out.println("To add new mechanic into database input the following mechanic information");
 			do {
 				System.out.print("Auto generate mechanic ID? (y/n): ");
@@ -482,20 +1142,24 @@ public class MechanicShop{
 				}
 				System.out.println("Please enter 'y' or 'n'");
 			} while (true);
-			
+
 			if (input.equals("y")) {
-				query += "nextval('seq_mechanic_id'),'";
+				//do nothing id generated on insert
 			} else if (input.equals("n")){
-				query = "INSERT INTO Mechanic VALUES (";
-				System.out.print("Please enter unique mechanic id: ");
-				input = in.readLine();
-				query += input;
-				query += ", '";
+				do {
+					System.out.print("Please enter unique mechanic id: ");
+					input = in.readLine();
+					if (isNumber(input)) {
+						break;
+					}
+					System.out.println("Mechanic id must be a number");
+				} while (true);
+				id = Integer.parseInt(input);
 			} else {
 				System.out.println("Error: incorrect input parse, exiting...");
 				return;
 			}
-			
+
 			do {
 				System.out.print("Please enter first name: ");
 				fname = in.readLine();
@@ -504,9 +1168,7 @@ public class MechanicShop{
 				}
 				System.out.println("Cannot leave field blank");
 			} while (true);
-			query += fname;
-			query += "','";
-			
+
 			do {
 				System.out.print("Please enter last name: ");
 				lname = in.readLine();
@@ -515,9 +1177,7 @@ public class MechanicShop{
 				}
 				System.out.println("Cannot leave field blank");
 			} while (true);
-			query += lname;
-			query += "',";
-			
+
 			do {
 				System.out.print("Please enter years of experience: ");
 				experience = in.readLine();
@@ -526,26 +1186,24 @@ public class MechanicShop{
 				}
 				System.out.println("Please enter years as a single number");
 			} while (true);
-			query += experience;
-			query += ")";
-			
+
 			System.out.println("------------Adding New Mechanic into Database-------------");
 			System.out.println("Name: " + fname + " " + lname);
 			System.out.println("Years Experience: " + experience);
-			System.out.println(query);
-			
-			esql.executeUpdate(query);
+
+			int mID = esql._repo.addMechanic(id, fname, lname, Integer.parseInt(experience));
+			System.out.println("Mechanic ID: " + mID);
+			esql._scheduler.addMechanic(mID, Integer.parseInt(experience));
 		}catch (Exception e) {
 			System.out.println(e.getMessage());
 		}
 	}
-	
+
 	public static void AddCar(MechanicShop esql){//3
-		String input, vin, make, model, year;
+		String vin, make, model, year;
 		try {
-			String query = "INSERT INTO CAR VALUES ('";
 			System.out.println("To add new car into database input the following vehicle information");
-			
+
 			do {
 				System.out.print("Please enter vehicle identification number (VIN): ");
 				vin = in.readLine();
@@ -554,9 +1212,12 @@ public class MechanicShop{
 				}
 				System.out.println("Please enter 16 digit VIN");
 			} while (true);
-			query += vin;
-			query += "','";
-			
+			//answered by the VIN filter without a lookup for a new car
+			if (esql._repo.carExists(vin)) {
+				System.out.println("Car with VIN " + vin + " is already in the database");
+				return;
+			}
+
 			do {
 				System.out.print("Please enter vehicle make: ");
 				make = in.readLine();
@@ -565,9 +1226,7 @@ public class MechanicShop{
 				}
 				System.out.println("Cannot leave field blank");
 			} while (true);
-			query += make;
-			query += "','";
-			
+
 			do {
 				System.out.print("Please enter vehicle model: ");
 				model = in.readLine();
@@ -576,9 +1235,7 @@ public class MechanicShop{
 				}
 				System.out.println("Cannot leave field blank");
 			} while (true);
-			query += model;
-			query += "', ";
-			
+
 			do {
 				System.out.print("Please enter vehicle year: ");
 				year = in.readLine();
@@ -587,27 +1244,23 @@ public class MechanicShop{
 				}
 				System.out.println("Format: XXXX");
 			} while (true);
-			query += year;
-			query += ")";
 
 			System.out.println("------------Adding Following Car into Database------------");
 			System.out.println("VIN: " + vin);
 			System.out.println("Make: " + make);
 			System.out.println("Model: " + model);
 			System.out.println("Year: " + year);
-			
-			esql.executeUpdate(query);
+
+			esql._repo.addCar(vin, make, model, Integer.parseInt(year));
 		}catch (Exception e) {
 			System.out.println(e.getMessage());
 		}
 	}
-	
+
 	public static void InsertServiceRequest(MechanicShop esql){//4
-		String input, query, lname, fname, vin, date, odometer, complain;
-		String cID = "";
-		String fullNameSearch = "";
+		String input, lname, fname, vin, date, odometer, complain;
+		int cID;
 		try{
-			query = "SELECT C.lname FROM Customer C WHERE C.lname = '";
 			System.out.print("Inserting service request for customer with last name: ");
 			do {
 				lname = in.readLine();
@@ -617,10 +1270,9 @@ public class MechanicShop{
 				}
 				System.out.println("Please enter customer last name: ");
 			} while (true);
-			query += lname;
-			query += "';";
-			
-			int numCustomers = esql.executeQueryAndPrintResult(query);
+
+			List<List<String>> customers = esql._repo.findCustomers(lname, null);
+			int numCustomers = customers.size();
 			if(numCustomers == 0) {
 				do {
 					System.out.print("Customer last name not in database, add new customer? (y/n) ");
@@ -630,7 +1282,7 @@ public class MechanicShop{
 					}
 					System.out.println("Please enter 'y' or 'n'");
 				} while (true);
-			
+
 				if(input.equals("n")) {
 					return;
 				}else if (input.equals("y")) {
@@ -638,13 +1290,11 @@ public class MechanicShop{
 					InsertServiceRequest(esql);
 					return;
 				}
+				return;
 			}else if (numCustomers == 1) {
 				System.out.println("Listing all cars owned by " + lname);
-				query = "SELECT K.vin, K.make, K.model, K.year FROM Owns O, Customer C, Car K WHERE C.id = O.customer_id AND K.vin = O.car_vin AND C.lname = '" + lname + "';";
-				fullNameSearch = "SELECT O.car_vin FROM Owns O, Customer C WHERE O.customer_id = C.id AND C.lname = '" + lname;
-				esql.executeQueryAndPrintResult(query);
-				cID = esql.executeQueryAndReturnResult("SELECT C.id AS cID FROM Customer C WHERE C.lname = '" + lname + "';").get(0).get(0);
-			}else if (numCustomers > 1) {
+				cID = Integer.parseInt(customers.get(0).get(0));
+			}else {
 				System.out.println("Multiple persons with " + lname + " as last name");
 				System.out.print("Please enter first name of customer: ");
 				do {
@@ -655,15 +1305,16 @@ public class MechanicShop{
 					}
 					System.out.println("First name cannot be empty");
 				} while (true);
+				customers = esql._repo.findCustomers(lname, fname);
+				if (customers.isEmpty()) {
+					System.out.println("No customer named " + fname + " " + lname);
+					return;
+				}
 				System.out.println("Listing all cars owned by " + fname + " " + lname);
-				query = "SELECT K.vin, K.make, K.model, K.year FROM Owns O, Customer C, Car K WHERE C.id = O.customer_id AND K.vin = O.car_vin AND C.lname = '" + lname + "' AND C.fname = '" + fname + "';";
-				fullNameSearch = "SELECT O.car_vin FROM Owns O, Customer C WHERE O.customer_id = C.id AND C.lname = '" + lname + "' AND C.fname = '" + fname;
-				esql.executeQueryAndPrintResult(query);
-				cID = esql.executeQueryAndReturnResult("SELECT C.id AS cID FROM Customer C WHERE C.lname = '" + lname + "' AND C.fname = '" + fname + "';").get(0).get(0);
-			}else {
-				System.out.println("ERROR: negative number of customers ...exiting");
-				return;
+				cID = Integer.parseInt(customers.get(0).get(0));
 			}
+			printRows(Arrays.asList("vin", "make", "model", "year"), esql._repo.carsOwnedBy(cID));
+
 			do {
 				System.out.print("Please enter vehicle identification number (VIN) of car for service request: ");
 				vin = in.readLine();
@@ -672,72 +1323,63 @@ public class MechanicShop{
 				}
 				System.out.println("Please enter 16 digit VIN");
 			} while (true);
-			
-			int isCarOwnedByUser = esql.executeQueryAndPrintResult(fullNameSearch + "' AND O.car_vin = '" + vin + "';");
-			List<List<String>> carAlredyHaveOwner = esql.executeQueryAndReturnResult("SELECT C.fname, C.lname FROM Customer C, Owns O WHERE C.id = O.customer_id AND O.car_vin = '" + vin + "';");
-			int isCarInDB = esql.executeQuery("SELECT C.vin FROM Car C WHERE C.vin = '" + vin + "';");
-			if(isCarInDB == 0) { //car is not in car database at ALL
+
+			//a car the VIN filter rules out has no owners either, no lookup needed
+			boolean carExists = esql._repo.carExists(vin);
+			List<List<String>> carAlredyHaveOwner = carExists ? esql._repo.ownersOf(vin) : new ArrayList<List<String>>();
+			boolean isCarOwnedByUser = false;
+			for (List<String> owner : carAlredyHaveOwner) {
+				if (Integer.parseInt(owner.get(0)) == cID) {
+					isCarOwnedByUser = true;
+				}
+			}
+			if(!carExists) { //car is not in car database at ALL
 				System.out.println("Car with VIN " + vin + " not in DB");
-				AddCar(esql, vin, lname, cID);
-				//query = "INSERT INTO Owns VALUES (nextval(\'seq_ownership_id\'), " + cID + ", " + vin + ");";
-				//esql.executeQueryAndPrintResult(query);
-				//System.out.println("we got here!");
-			}else if (isCarInDB == 1) { //car in car database
-				if(isCarOwnedByUser == 0) { //not owned by you
-					if(carAlredyHaveOwner.isEmpty()) { //but car has no owner
-						System.out.print("Car with VIN: " + vin + "has no owner registered. Are you the owner? (y/n): ");
+				vin = AddCar(esql, vin, lname, cID);
+				if (vin == null) {
+					return;
+				}
+			}else if (!isCarOwnedByUser) { //not owned by you
+				if(carAlredyHaveOwner.isEmpty()) { //but car has no owner
+					System.out.print("Car with VIN: " + vin + "has no owner registered. Are you the owner? (y/n): ");
+					do {
+						input = in.readLine();
+						if(input.equals("y") || input.equals("n")){
+							break;
+						}
+						System.out.println("Please enter 'y' or 'n'");
+					} while (true);
+
+					if (input.equals("y")) {
+						System.out.print("For security reasons please enter confirm your last name: ");
+						int attempt = 3;
 						do {
 							input = in.readLine();
-							if(input.equals("y") || input.equals("n")){
+							if(input.equals(lname)){
 								break;
 							}
-							System.out.println("Please enter 'y' or 'n'");
+							attempt = attempt - 1;
+							System.out.println("Incorrect last name! You have " + attempt + " trie(s) remaining before you are logged out...");
+							if (attempt <= 0) {
+								return;
+							}
 						} while (true);
-						
-						if (input.equals("y")) {
-							System.out.print("For security reasons please enter confirm your last name: ");
-							int attempt = 3;
-							do {
-								input = in.readLine();
-								if(input.equals(lname)){
-									break;
-								}
-								attempt = attempt - 1;
-								System.out.println("Incorrect last name! You have " + attempt + " trie(s) remaining before you are logged out...");
-								if (attempt <= 0) {
-									return;
-								}
-							} while (true);
-							query = "INSERT INTO Owns VALUES (nextval('seq_ownership_id'), " + cID + ", " + vin + ");";
-							esql.executeUpdate(query);
-							System.out.println("The car is now registered under your name!");
-						} else if (input.equals("n")){
-							System.out.println("Sorry! It is illegal issue a service request for someone else's car!");
-							return;
-						} else {
-							System.out.println("Error: incorrect input parse, exiting...");
-							return;
-						}
-					}else { //but car has owner
+						esql._repo.addOwnership(cID, vin);
+						System.out.println("The car is now registered under your name!");
+					} else {
 						System.out.println("Sorry! It is illegal issue a service request for someone else's car!");
-						System.out.println("VIN: " + vin + " is owned by " + carAlredyHaveOwner.get(0).get(0).replace(" ", "") + " " + carAlredyHaveOwner.get(0).get(1).replace(" ", ""));
 						return;
 					}
-				}else if (isCarOwnedByUser == 1) {
-							//do nothing until we need to issue service requests
-				}else {
-					System.out.println("Error: incorrect input parse, exiting...");
+				}else { //but car has owner
+					System.out.println("Sorry! It is illegal issue a service request for someone else's car!");
+					System.out.println("VIN: " + vin + " is owned by " + carAlredyHaveOwner.get(0).get(1) + " " + carAlredyHaveOwner.get(0).get(2));
 					return;
 				}
-			}else {
-				System.out.println("Error: incorrect input parse, exiting...");
-				return;
 			}
-			
+
 			//---ACTUALLY ISSUING THE SERVICE REQUEST----
-			
+
 			System.out.println("Adding service request for car VIN: " + vin);
-			query = "INSERT INTO Service_Request VALUES (nextval('seq_rid_id'), " + cID + ", '" + vin + "', '";
 			System.out.print("Please enter date service request was opened (XX/XX/XXXX): ");
 			do {
 				date = in.readLine();
@@ -747,18 +1389,18 @@ public class MechanicShop{
 				}
 				System.out.print("Please enter valid date format (XX/XX/XXXX): ");
 			} while (true);
-			query += date;
-			query += "', ";
-			
+
 			System.out.print("Please enter odometer reading: ");
-			odometer = in.readLine();
-			query += odometer;
-			query += ", '";			
-			
+			do {
+				odometer = in.readLine();
+				if (isNumber(odometer) && Integer.parseInt(odometer) > 0) {
+					break;
+				}
+				System.out.print("Please enter odometer reading as a positive number: ");
+			} while (true);
+
 			System.out.print("Please enter complaint: ");
 			complain = in.readLine();
-			query += complain;
-			query += "');";
 
 			System.out.println("-------------Opening following service request-------------");
 			System.out.println("Customer ID: " + cID);
@@ -766,51 +1408,73 @@ public class MechanicShop{
 			System.out.println("Date Opened: " + date);
 			System.out.println("Odometer:" + odometer);
 			System.out.println("Complaint: " + complain);
-			
-			esql.executeUpdate(query);
-			
+
+			int rid = esql._repo.openServiceRequest(cID, vin, date, Integer.parseInt(odometer), complain);
+			if (rid < 0) {
+				//journaled, the rid is only known once it reaches the database
+				System.out.println("Service request queued, it gets its number when it is written to the database");
+				return;
+			}
+			System.out.println("Opened service request " + rid);
+
+			int suggested = esql._scheduler.suggest();
+			if (suggested >= 0) {
+				System.out.print("Least loaded mechanic is " + suggested + " (" + esql._scheduler.openRequests(suggested) + " open request(s), "
+					+ esql._scheduler.experience(suggested) + " years experience). Assign now? (y/n): ");
+				do {
+					input = in.readLine();
+					if(input.equals("y") || input.equals("n")){
+						break;
+					}
+					System.out.println("Please enter 'y' or 'n'");
+				} while (true);
+				if (input.equals("y")) {
+					int assigned = esql._scheduler.assign(esql._repo, rid);
+					if (assigned >= 0) {
+						System.out.println("Service request " + rid + " assigned to mechanic " + assigned);
+					} else {
+						System.out.println("Could not assign a mechanic, request stays in the work queue");
+					}
+				}
+			}
+
 		}catch(Exception e){
 			System.err.println (e.getMessage());
-		}	
+		}
 	}
-	
+
 	public static void CloseServiceRequest(MechanicShop esql) throws Exception{//5
-		String input, fquery, query, sNum, dateClosed, dateOpened, eID, bill;
-		int isValid = 0;
+		String input, sNum, dateClosed, dateOpened, eID, bill;
+		String assignedID = null;
 		try{
-			fquery = "INSERT INTO Closed_Request VALUES (nextval('seq_win_id'), ";
 			System.out.print("Please enter service request number of request to close: ");
 			do {
 				sNum = in.readLine();
 				System.out.println();
-				query = "SELECT S.rid FROM Service_Request S WHERE S.rid = " + sNum + ";";
-				isValid = esql.executeQuery(query);
-				if (sNum.length() > 0 && isNumber(sNum) && isValid == 1) {
+				List<String> request = isNumber(sNum) ? esql._repo.findOpenServiceRequest(Integer.parseInt(sNum)) : null;
+				if (request != null) {
+					dateOpened = request.get(1);
+					assignedID = request.get(2);
 					break;
 				}
-				if (isValid == 0) {
-					System.out.println("Invalid service request number");
-				}
+				System.out.println("Invalid or already closed service request number");
 				System.out.println("Please enter exsisting service request number: ");
 			} while (true);
-			fquery += sNum + ", ";
-			
+
+			if (assignedID != null) {
+				System.out.println("Request " + sNum + " is assigned to mechanic " + assignedID);
+			}
 			System.out.print("Please enter employee ID of employee assigned to request: ");
 			do {
 				eID = in.readLine();
 				System.out.println();
-				query = "SELECT M.id FROM Mechanic M WHERE M.id = " + eID + ";";
-				isValid = esql.executeQuery(query);
-				if (sNum.length() > 0 && isNumber(sNum) && isValid == 1) {
+				if (isNumber(eID) && esql._repo.mechanicExists(Integer.parseInt(eID))) {
 					break;
 				}
-				if (isValid == 0) {
-					System.out.println("Invalid employee ID");
-				}
+				System.out.println("Invalid employee ID");
 				System.out.println("Please enter valid employee ID: ");
 			} while (true);
-			fquery += eID + ", '";
-			
+
 			System.out.print("Please enter date service request " + sNum + " was closed (XX/XX/XXXX): ");
 			do {
 				do {
@@ -821,7 +1485,6 @@ public class MechanicShop{
 					}
 					System.out.print("Please enter valid date format (XX/XX/XXXX): ");
 				} while (true);
-				dateOpened = esql.executeQueryAndReturnResult("SELECT S.date FROM Service_Request S WHERE S.rid = " + sNum + ";").get(0).get(0);
 				boolean dateClosedCorrect = compareDates(dateOpened, dateClosed);
 				if (dateClosed.length() > 0 && dateClosedCorrect == true) {
 					break;
@@ -830,12 +1493,10 @@ public class MechanicShop{
 					System.out.println("Please enter date after service request was opened");
 				}
 			} while (true);
-			fquery += dateClosed + " 12:00:00 AM', '";
-			
+
 			System.out.print("Please enter any comments here: ");
 			input = in.readLine();
-			fquery += input + "', ";
-			
+
 			System.out.print("Please enter final bill ammout for service: $");
 			do {
 				bill = in.readLine();
@@ -848,55 +1509,67 @@ public class MechanicShop{
 				}
 				System.out.println("Please enter valid bill: $");
 			} while (true);
-			fquery += bill + ");";
-			
+
 			System.out.println("---------Creating following closed service request---------");
 			System.out.println("Service Request ID: " + sNum);
 			System.out.println("Mechanic ID:" + eID);
 			System.out.println("Date Closed: " + dateClosed);
 			System.out.println("Comments:" + input);
 			System.out.println("Bill: $" + bill);
-			esql.executeUpdate(fquery);
+			int wid = esql._repo.closeServiceRequest(Integer.parseInt(sNum), Integer.parseInt(eID), dateClosed, input, Integer.parseInt(bill));
+			System.out.println(wid < 0 ? "Closed service request queued" : "Closed service request " + wid);
+			if (assignedID != null) {
+				esql._scheduler.closed(Integer.parseInt(assignedID));
+			}
 
 		}catch(Exception e){
 			System.err.println (e.getMessage());
 		}
-			
+
 	}
-	
+
 	public static void ListCustomersWithBillLessThan100(MechanicShop esql){//6
 		try{
-			String query = "SELECT C.date, C.comment, C.bill FROM Closed_Request C WHERE C.bill<100";
-			esql.executeQueryAndPrintResult(query);
+			final String[] range = readDateRange();
+			final ShopRepository repo = esql._repo;
+			browse(new Page.Source() {
+				public Page read(Page.Cursor cursor) throws Exception {
+					return repo.closedRequestsWithBillUnder100(range[0], range[1], cursor);
+				}
+			});
 		}catch(Exception e){
 			System.err.println (e.getMessage());
 		}
-		
+
 	}
-	
+
 	public static void ListCustomersWithMoreThan20Cars(MechanicShop esql){//7
 		try{
 			System.out.println("The following customers own more than 20 cars");
-			String query = "SELECT C.fname, C.lname FROM Customer C, Owns O WHERE C.id=O.customer_id GROUP BY C.id HAVING COUNT(C.id)>20";
-			esql.executeQueryAndPrintResult(query);
+			esql._repo.customersWithMoreThan20Cars(new RowSink.Printer());
 		}catch(Exception e){
 			System.err.println (e.getMessage());
 		}
 	}
-	
+
 	public static void ListCarsBefore1995With50000Milles(MechanicShop esql){//8
 		try{
 			System.out.println("The following cars were build before 1995 and have less than 50000 miles");
-			String query = "SELECT C.make, C.model, C.year FROM Car C, Service_Request S WHERE C.vin=S.car_vin AND C.year<1995 AND S.odometer<50000";
-			esql.executeQueryAndPrintResult(query);
+			final String[] range = readDateRange();
+			final ShopRepository repo = esql._repo;
+			browse(new Page.Source() {
+				public Page read(Page.Cursor cursor) throws Exception {
+					return repo.carsBefore1995With50000Miles(range[0], range[1], cursor);
+				}
+			});
 		}catch(Exception e){
 			System.err.println (e.getMessage());
 		}
 	}
-	
+
 	public static void ListKCarsWithTheMostServices(MechanicShop esql){//9
 		try{
-			String query = "SELECT C.make, C.model, M.N FROM Car C, (SELECT COUNT(S.rid) AS N, S.car_vin FROM Service_Request S GROUP BY S.car_vin) AS M WHERE M.car_vin=C.vin ORDER BY M.N DESC LIMIT ";
+			String[] range = readDateRange();
 			int input = 0;
 			do {
 				System.out.print("Please enter a number larger than 0: ");
@@ -908,30 +1581,265 @@ public class MechanicShop{
 					continue;
 				}//end try
 			}while (input<1);
-			query += input;
 
-			esql.executeQueryAndPrintResult(query);
+			esql._repo.carsWithMostServices(input, range[0], range[1], new RowSink.Printer());
 		}catch(Exception e){
 			System.err.println (e.getMessage());
 		}
 	}
-	
+
 	public static void ListCustomersInDescendingOrderOfTheirTotalBill(MechanicShop esql){//10
 		try{
-			String query = "SELECT C.fname, C.lname, M.N FROM Customer C, (SELECT SUM(R.bill) AS N, S.customer_id FROM Service_Request S, Closed_Request R WHERE S.rid=R.rid GROUP BY S.customer_id) AS M WHERE M.customer_id=C.id ORDER BY M.N DESC";
-			esql.executeQueryAndPrintResult(query);
+			final String[] range = readDateRange();
+			final ShopRepository repo = esql._repo;
+			browse(new Page.Source() {
+				public Page read(Page.Cursor cursor) throws Exception {
+					return repo.customersByTotalBill(range[0], range[1], cursor);
+				}
+			});
 		}catch(Exception e){
 			System.err.println (e.getMessage());
 		}
-		
+
 	}
-	
-	public static void AddCar(MechanicShop esql, String vin, String lname, String cID){//3
+
+	public static void ListOpenServiceRequests(MechanicShop esql){//12
+		try{
+			System.out.println("Work queue: service requests that are not closed yet, oldest first");
+			RowSink.Printer printer = new RowSink.Printer();
+			esql._repo.openServiceRequests(printer);
+			System.out.println(printer.rowCount() + " open request(s)");
+		}catch(Exception e){
+			System.err.println (e.getMessage());
+		}
+	}
+
+	public static void WatchServiceRequests(MechanicShop esql){//15
+		if (esql._feed == null) {
+			System.out.println("Watching needs a database connection, nothing else changes requests offline");
+			return;
+		}
+		try{
+			final ShopRepository repo = esql._repo;
+			final ChangeFeed.Subscription subscription = esql._feed.subscribe(Integer.getInteger("shop.feedCapacity", 10000));
+			final WorkQueue queue = new WorkQueue();
+			subscription.takeResync();
+			queue.load(repo);
+			printRows(WorkQueue.COLUMNS, queue.rows());
+			System.out.println(queue.size() + " open request(s). Watching for changes, press Enter to stop");
+			Thread watcher = new Thread(new Runnable() {
+				public void run() {
+					try{
+						while (true) {
+							List<ChangeFeed.Event> events = subscription.poll(1000);
+							if (subscription.takeResync()) {
+								//changes were missed, start over from the tables
+								queue.load(repo);
+								System.out.println("Read the work queue again after missing changes: " + queue.size() + " open request(s)");
+								continue;
+							}
+							for (ChangeFeed.Event e : events) {
+								String line = queue.apply(e);
+								if (line != null) {
+									System.out.println(line + ", " + queue.size() + " open");
+								}
+							}
+						}
+					}catch(InterruptedException e){
+						// stopped.
+					}catch(Exception e){
+						System.err.println(e.getMessage());
+					}
+				}
+			}, "work-queue-watcher");
+			watcher.start();
+			in.readLine();
+			watcher.interrupt();
+			watcher.join();
+			subscription.close();
+			System.out.println(subscription.stats());
+		}catch(Exception e){
+			System.err.println (e.getMessage());
+		}
+	}
+
+	public static void GenerateStatements(MechanicShop esql){//16
+		String month, dir;
+		try{
+			System.out.println("Writes a statement of the requests closed in a month for every customer, one file each");
+			do {
+				System.out.print("Please enter month (XX/XXXX): ");
+				month = in.readLine();
+				if (month.length() == 7 && month.charAt(2) == '/') {
+					break;
+				}
+				System.out.println("Please enter valid month format (XX/XXXX)");
+			} while (true);
+			System.out.print("Please enter output directory (blank for statements_MM_YYYY): ");
+			dir = in.readLine();
+			if (dir.length() == 0) dir = "statements_" + month.replace('/', '_');
+
+			LocalDate first = LocalDate.of(Integer.parseInt(month.substring(3)), Integer.parseInt(month.substring(0, 2)), 1);
+			DateTimeFormatter mmddyyyy = DateTimeFormatter.ofPattern("MM/dd/yyyy");
+			long start = System.currentTimeMillis();
+			StatementWriter writer = new StatementWriter(new File(dir), month, Integer.getInteger("shop.statementThreads", Runtime.getRuntime().availableProcessors()));
+			try{
+				esql._repo.statementLines(first.format(mmddyyyy), first.plusMonths(1).format(mmddyyyy), writer);
+				writer.finish();
+			}finally{
+				writer.close();
+			}
+			System.out.println(writer.stats() + " in " + (System.currentTimeMillis() - start) + " ms");
+		}catch(Exception e){
+			System.err.println (e.getMessage());
+		}
+	}
+
+	public static void BulkCloseServiceRequests(MechanicShop esql){//13
+		String input;
+		try{
+			System.out.println("Closes: one per line as rid,mechanic id,date (XX/XX/XXXX),comment,bill");
+			System.out.print("Please enter a file to read them from, or nothing to type them here: ");
+			input = in.readLine();
+			List<String> lines = new ArrayList<String>();
+			if (input.length() > 0) {
+				BufferedReader file = new BufferedReader(new FileReader(input));
+				try{
+					String line;
+					while ((line = file.readLine()) != null) {
+						if (line.trim().length() > 0) lines.add(line.trim());
+					}
+				}finally{
+					file.close();
+				}
+			} else {
+				System.out.println("Enter an empty line when done");
+				while ((input = in.readLine()) != null && input.trim().length() > 0) {
+					lines.add(input.trim());
+				}
+			}
+
+			//malformed lines are rejected here, the rest is checked by the database in one go
+			List<List<String>> closes = new ArrayList<List<String>>();
+			List<Integer> lineOf = new ArrayList<Integer>();
+			List<List<String>> report = new ArrayList<List<String>>();
+			for (int i = 0; i < lines.size(); i++) {
+				String line = lines.get(i);
+				List<String> close = parseClose(line);
+				if (close == null) {
+					report.add(Arrays.asList(Integer.toString(i + 1), line, "rejected: expected rid,mechanic id,XX/XX/XXXX,comment,bill"));
+				} else {
+					closes.add(close);
+					lineOf.add(i + 1);
+				}
+			}
+			int closed = 0;
+			if (!closes.isEmpty()) {
+				List<List<String>> results = esql._repo.closeServiceRequests(closes);
+				for (int i = 0; i < results.size(); i++) {
+					List<String> r = results.get(i);
+					String outcome = r.get(2) == null ? "closed as " + r.get(1) : "rejected: " + r.get(2);
+					if (r.get(2) == null) closed++;
+					report.add(Arrays.asList(lineOf.get(i).toString(), "rid " + r.get(0), outcome));
+				}
+			}
+			Collections.sort(report, new Comparator<List<String>>() {
+				public int compare(List<String> a, List<String> b) {
+					return Integer.compare(Integer.parseInt(a.get(0)), Integer.parseInt(b.get(0)));
+				}
+			});
+			printRows(Arrays.asList("line", "request", "result"), report);
+			System.out.println(closed + " of " + lines.size() + " request(s) closed");
+			if (closed > 0) {
+				//closed requests may have been assigned to anyone, reread the workloads
+				esql._scheduler = MechanicScheduler.load(esql._repo);
+			}
+		}catch(Exception e){
+			System.err.println (e.getMessage());
+		}
+	}
+
+	public static void ShowDashboard(MechanicShop esql){//14
+		try{
+			System.out.println("Runs reports 6 to 10 at the same time");
+			String[] range = readDateRange();
+			int k = 10;
+			System.out.print("Please enter the number of cars for report 9 (default 10): ");
+			String input = in.readLine();
+			if (isNumber(input) && Integer.parseInt(input) > 0) {
+				k = Integer.parseInt(input);
+			}
+			long deadlineMs = Long.getLong("shop.dashboardDeadlineMs", 30000L);
+			if (esql._dashboard == null) {
+				//a sharded shop's sessions span every shard
+				ShopPool pool = esql._connection == null
+					? new ShopPool(esql._repo, Dashboard.SECTIONS, deadlineMs)
+					: new ShopPool(esql._shards, Dashboard.SECTIONS, deadlineMs);
+				esql._dashboard = new Dashboard(pool);
+			}
+
+			long start = System.currentTimeMillis();
+			List<Dashboard.Section> sections = esql._dashboard.run(range[0], range[1], k, deadlineMs);
+			long total = System.currentTimeMillis() - start;
+			int shown = Integer.getInteger("shop.dashboardRows", 20);
+			long sum = 0;
+			for (Dashboard.Section section : sections) {
+				System.out.println();
+				System.out.println("=== " + section.title + " ===");
+				if (section.error != null) {
+					System.out.println("Failed: " + section.error);
+					continue;
+				}
+				List<List<String>> rows = section.rows.rows();
+				printRows(section.rows.columns(), rows.size() > shown ? rows.subList(0, shown) : rows);
+				if (rows.size() > shown) {
+					System.out.println("... " + (rows.size() - shown) + " more row(s)");
+				}
+				System.out.println(rows.size() + " row(s) in " + section.millis + " ms");
+				sum += section.millis;
+			}
+			System.out.println();
+			System.out.println("Dashboard done in " + total + " ms (reports took " + sum + " ms together)");
+		}catch(Exception e){
+			System.err.println (e.getMessage());
+		}
+	}
+
+	/**
+	 * Splits a bulk close line. The comment may contain commas, so the
+	 * bill is taken from the end of the line.
+	 *
+	 * @return (rid, mechanic id, date, comment, bill), null if malformed
+	 */
+	static List<String> parseClose(String line) {
+		int c1 = line.indexOf(',');
+		int c2 = c1 < 0 ? -1 : line.indexOf(',', c1 + 1);
+		int c3 = c2 < 0 ? -1 : line.indexOf(',', c2 + 1);
+		int last = line.lastIndexOf(',');
+		if (c3 < 0 || last <= c3) return null;
+		String rid = line.substring(0, c1).trim(), mid = line.substring(c1 + 1, c2).trim(), date = line.substring(c2 + 1, c3).trim();
+		String comment = line.substring(c3 + 1, last).trim(), bill = line.substring(last + 1).trim();
+		if (!isNumber(rid) || !isNumber(mid) || !isNumber(bill)) return null;
+		try{
+			//one impossible date would fail the whole batch in the database
+			LocalDate.parse(date, DateTimeFormatter.ofPattern("MM/dd/uuuu").withResolverStyle(ResolverStyle.STRICT));
+		}catch(DateTimeParseException e){
+			return null;
+		}
+		return Arrays.asList(rid, mid, date, comment, bill);
+	}
+
+	/**
+	 * Adds a car for a customer during InsertServiceRequest and registers
+	 * the customer as its owner.
+	 *
+	 * @return the VIN of the added car, null if nothing was added
+	 */
+	public static String AddCar(MechanicShop esql, String vin, String lname, int cID){//3
 		String input, make, model, year;
 		try {
-			String query = "INSERT INTO Car VALUES ('";
 			System.out.println("To add car, confirm VIN and input the rest of the vehicle's information");
-			
+
 			do {
 				System.out.print("Is this the correct vehicle identification number (VIN): " + vin + " (y/n)? ");
 				input = in.readLine();
@@ -940,9 +1848,9 @@ public class MechanicShop{
 				}
 				System.out.println("Please confirm 'y' or 'n'");
 			} while (true);
-			
+
 			if (input.equals("y")) {
-				query += vin + "', '";	
+				//VIN confirmed
 			} else if (input.equals("n")){
 				do {
 					System.out.print("Restart entering vehicle information for " + lname + "'s new car (y/n)? ");
@@ -952,29 +1860,28 @@ public class MechanicShop{
 					}
 					System.out.println("Please confirm 'y' or 'n'");
 				} while (true);
-				
+
 				if (input.equals("y")) {
 					do {
 						System.out.print("Please re-enter vehicle identification number (VIN): ");
 						input = in.readLine();
 						if (input.length() == 16) {
-							query += input;
-							query += "','";
+							vin = input;
 							break;
 						}
 						System.out.println("Please enter 16 digit VIN");
 					} while (true);
 				} else if (input.equals("n")){
-					return;
+					return null;
 				} else {
 					System.out.println("Error: incorrect input parse, exiting...");
-					return;
+					return null;
 				}
 			} else {
 				System.out.println("Error: incorrect input parse, exiting...");
-				return;
+				return null;
 			}
-					
+
 			do {
 				System.out.print("Please enter vehicle make: ");
 				make = in.readLine();
@@ -983,9 +1890,7 @@ public class MechanicShop{
 				}
 				System.out.println("Cannot leave field blank");
 			} while (true);
-			query += make;
-			query += "', '";
-			
+
 			do {
 				System.out.print("Please enter vehicle model: ");
 				model = in.readLine();
@@ -994,9 +1899,7 @@ public class MechanicShop{
 				}
 				System.out.println("Cannot leave field blank");
 			} while (true);
-			query += model;
-			query += "',";
-			
+
 			do {
 				System.out.print("Please enter vehicle year: ");
 				year = in.readLine();
@@ -1005,30 +1908,27 @@ public class MechanicShop{
 				}
 				System.out.println("Format: XXXX");
 			} while (true);
-			query += year;
-			query += ")";
-			
+
 			System.out.println("------------Adding " + lname + "'s Car into Database------------");
 			System.out.println("VIN: " + vin);
 			System.out.println("Make: " + make);
 			System.out.println("Model: " + model);
 			System.out.println("Year: " + year);
-			
-			esql.executeUpdate(query);
-			
-			query = "INSERT INTO Owns VALUES (nextval('seq_ownership_id'), " + cID + ", '" + vin + "');";
-			esql.executeUpdate(query);
-			
+
+			esql._repo.addCar(vin, make, model, Integer.parseInt(year));
+			esql._repo.addOwnership(cID, vin);
+			return vin;
 		}catch (Exception e) {
 			System.out.println(e.getMessage());
+			return null;
 		}
 
 	}
-	
+
 	public static void AddCustomer(MechanicShop esql, String lname){//1
 		String input, fname, phone, address;
+		Integer id = null;
 		try {
-			String query = "INSERT INTO Customer VALUES (nextval('seq_customer_id'),'";
 			System.out.println("To add new customer " + lname + " into database input the following customer information");
 			do {
 				System.out.print("Auto generate customer ID? (y/n): ");
@@ -1039,20 +1939,24 @@ public class MechanicShop{
 				}
 				System.out.println("Please enter 'y' or 'n'");
 			} while (true);
-			
+
 			if (input.equals("y")) {
-				//do nothing query info set correctly	
+				//do nothing id generated on insert
 			} else if (input.equals("n")){
-				query = "INSERT INTO Customer VALUES (";
-				System.out.print("Please enter unique customer id: ");
-				input = in.readLine();
-				query += input;
-				query += ", '";
+				do {
+					System.out.print("Please enter unique customer id: ");
+					input = in.readLine();
+					if (isNumber(input)) {
+						break;
+					}
+					System.out.println("Customer id must be a number");
+				} while (true);
+				id = Integer.parseInt(input);
 			} else {
 				System.out.println("Error: incorrect input parse, exiting...");
 				return;
 			}
-			
+
 			do {
 				System.out.print("Please enter first name: ");
 				fname = in.readLine();
@@ -1061,21 +1965,19 @@ public class MechanicShop{
 				}
 				System.out.println("Cannot leave field blank");
 			} while (true);
-			query += fname;
-			query += "','";
-			
+
 
 			do {
-				System.out.print("Is " + lname + " the correct last name of " + query + " (y/n)? ");
+				System.out.print("Is " + lname + " the correct last name of " + fname + " (y/n)? ");
 				input = in.readLine();
 				if(input.equals("y") || input.equals("n")){
 					break;
 				}
 				System.out.println("Please confirm 'y' or 'n'");
 			} while (true);
-			
+
 			if (input.equals("y")) {
-				query += lname + "','";	
+				//last name confirmed
 			} else if (input.equals("n")){
 				do {
 					System.out.print("Enter correct last name for customer (y/n)? ");
@@ -1085,14 +1987,13 @@ public class MechanicShop{
 					}
 					System.out.println("Please confirm 'y' or 'n'");
 				} while (true);
-				
+
 				if (input.equals("y")) {
 					do {
 						System.out.print("Please re-enter customer last name: ");
 						input = in.readLine();
 						if (input.length() > 0) {
-							query += input;
-							query += "','";
+							lname = input;
 							break;
 						}
 						System.out.println("Cannot leave field blank");
@@ -1107,7 +2008,7 @@ public class MechanicShop{
 				System.out.println("Error: incorrect input parse, exiting...");
 				return;
 			}
-			
+
 			do {
 				System.out.print("Please enter phone number: ");
 				phone = in.readLine();
@@ -1116,9 +2017,7 @@ public class MechanicShop{
 				}
 				System.out.println("Format (XXX)XXX-XXXX ");
 			} while (true);
-			query += phone;
-			query += "','";
-			
+
 			do {
 				System.out.print("Please enter address: ");
 				address = in.readLine();
@@ -1127,15 +2026,13 @@ public class MechanicShop{
 				}
 				System.out.println("Cannot leave field blank");
 			} while (true);
-			query += address;
-			query += "')";
-			
+
 			System.out.println("------------Adding New Customer into Database-------------");
 			System.out.println("Name: " + fname + " " + lname);
 			System.out.println("Phone: " + phone);
 			System.out.println("Address: " + address);
-			
-			esql.executeUpdate(query);
+
+			esql._repo.addCustomer(id, fname, lname, phone, address);
 		}catch (Exception e) {
 			System.out.println(e.getMessage());
 		}
@@ -0,0 +1,728 @@
+/*
+ * In-memory data access
+ * =====================
+ *
+ * An in-process copy of the shop, loaded from the CSV files in proj/data.
+ * Used for fast tests and as an offline mode when no database is reachable.
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * ShopRepository answering from primitive keyed hash maps and sorted
+ * indexes instead of SQL. Point lookups (customer, mechanic, car, request)
+ * are single hash probes; reports walk sorted indexes that are kept
+ * current on every write, e.g. closed requests ordered by (bill, wid) and
+ * customers ordered by total bill.
+ *
+ * Writes only change the in-memory copy. All methods are synchronized.
+ *
+ */
+
+public class MemoryShopRepository implements ShopRepository{
+	private static final DateTimeFormatter MMDDYYYY = DateTimeFormatter.ofPattern("M/d/yyyy");
+
+	private static class Customer{
+		int id;
+		String fname, lname, phone, address;
+		List<Car> cars = new ArrayList<Car>();
+		long totalBill;
+	}
+
+	private static class Mechanic{
+		int id;
+		String fname, lname;
+		int experience;
+		int open;
+	}
+
+	private static class Car{
+		String vin, make, model;
+		int year;
+		List<Customer> owners = new ArrayList<Customer>();
+		List<Request> requests = new ArrayList<Request>();
+	}
+
+	private static class Request{
+		int rid;
+		Customer customer;
+		Car car;
+		int date;
+		int odometer;
+		String complain;
+		char status = 'W';
+		Mechanic mechanic;
+	}
+
+	private static class Closed{
+		int wid;
+		Request request;
+		Mechanic mechanic;
+		int date;
+		String comment;
+		int bill;
+	}
+
+	private IntHashMap<Customer> customers = new IntHashMap<Customer>();
+	private Map<String, List<Customer>> customersByLname = new HashMap<String, List<Customer>>();
+	private IntHashMap<Mechanic> mechanics = new IntHashMap<Mechanic>();
+	private Map<String, Car> cars = new HashMap<String, Car>();
+	private TreeMap<Integer, List<Car>> carsByYear = new TreeMap<Integer, List<Car>>();
+	private IntHashMap<Request> requests = new IntHashMap<Request>();
+	//(date, rid) packed into one long, see key()
+	private TreeMap<Long, Request> requestsByDate = new TreeMap<Long, Request>();
+	private TreeMap<Long, Request> openByDate = new TreeMap<Long, Request>();
+	private IntHashMap<Closed> closed = new IntHashMap<Closed>();
+	//(bill, wid)
+	private TreeMap<Long, Closed> closedByBill = new TreeMap<Long, Closed>();
+	//customers with at least one closed request, highest total first
+	private TreeSet<Customer> customersByTotal = new TreeSet<Customer>(new Comparator<Customer>() {
+		public int compare(Customer a, Customer b) {
+			if (a.totalBill != b.totalBill) return a.totalBill > b.totalBill ? -1 : 1;
+			return Integer.compare(a.id, b.id);
+		}
+	});
+
+	//next generated ids, start where the sequences in function.sql start
+	private int nextCustomerId = 500, nextMechanicId = 250, nextOwnershipId = 5000, nextRid = 30001, nextWid = 30001;
+
+	/**
+	 * Loads the shop from customer.csv, mechanic.csv, car.csv, owns.csv,
+	 * service_request.csv and closed_request.csv in the directory.
+	 *
+	 * @param dir the data directory, e.g. proj/data
+	 * @return the loaded repository
+	 * @throws java.io.IOException when a file can not be read
+	 */
+	public static MemoryShopRepository load(File dir) throws IOException {
+		MemoryShopRepository repo = new MemoryShopRepository();
+		for (String[] f : readCsv(new File(dir, "customer.csv"))) {
+			repo.putCustomer(Integer.parseInt(f[0]), f[1], f[2], f[3], f[4]);
+		}
+		for (String[] f : readCsv(new File(dir, "mechanic.csv"))) {
+			repo.putMechanic(Integer.parseInt(f[0]), f[1], f[2], Integer.parseInt(f[3]));
+		}
+		for (String[] f : readCsv(new File(dir, "car.csv"))) {
+			repo.putCar(f[0], f[1], f[2], Integer.parseInt(f[3]));
+		}
+		for (String[] f : readCsv(new File(dir, "owns.csv"))) {
+			repo.putOwnership(Integer.parseInt(f[0]), Integer.parseInt(f[1]), f[2]);
+		}
+		for (String[] f : readCsv(new File(dir, "service_request.csv"))) {
+			repo.putRequest(Integer.parseInt(f[0]), Integer.parseInt(f[1]), f[2], parseDate(f[3]), Integer.parseInt(f[4]), f[5]);
+		}
+		for (String[] f : readCsv(new File(dir, "closed_request.csv"))) {
+			repo.putClosed(Integer.parseInt(f[0]), Integer.parseInt(f[1]), Integer.parseInt(f[2]), parseDate(f[3]), f[4], Integer.parseInt(f[5]));
+		}
+		return repo;
+	}
+
+	private static List<String[]> readCsv(File file) throws IOException {
+		List<String[]> rows = new ArrayList<String[]>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try{
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.endsWith("\r")) line = line.substring(0, line.length() - 1);
+				if (line.length() == 0) continue;
+				rows.add(line.split(",", -1));
+			}
+		}finally{
+			reader.close();
+		}
+		return rows;
+	}
+
+	/**
+	 * @return epoch day of an M/D/YYYY date, any time of day after it is ignored
+	 */
+	static int parseDate(String date) {
+		int space = date.indexOf(' ');
+		return (int) LocalDate.parse(space < 0 ? date : date.substring(0, space), MMDDYYYY).toEpochDay();
+	}
+
+	private static String isoDate(int epochDay) {
+		return LocalDate.ofEpochDay(epochDay).toString();
+	}
+
+	private static long key(int high, int low) {
+		return ((long) high << 32) | (low & 0xFFFFFFFFL);
+	}
+
+	private static int dayOrMin(String date) {
+		return date == null ? Integer.MIN_VALUE : parseDate(date);
+	}
+
+	private static int dayOrMax(String date) {
+		return date == null ? Integer.MAX_VALUE : parseDate(date);
+	}
+
+	private static String str(int value) {
+		return Integer.toString(value);
+	}
+
+	//--- loading and inserting ---
+
+	private Customer putCustomer(int id, String fname, String lname, String phone, String address) {
+		if (customers.containsKey(id)) throw new IllegalArgumentException("duplicate customer id " + id);
+		Customer c = new Customer();
+		c.id = id;
+		c.fname = fname;
+		c.lname = lname;
+		c.phone = phone;
+		c.address = address;
+		customers.put(id, c);
+		List<Customer> same = customersByLname.get(lname);
+		if (same == null) {
+			same = new ArrayList<Customer>();
+			customersByLname.put(lname, same);
+		}
+		same.add(c);
+		nextCustomerId = Math.max(nextCustomerId, id + 1);
+		return c;
+	}
+
+	private Mechanic putMechanic(int id, String fname, String lname, int experience) {
+		if (mechanics.containsKey(id)) throw new IllegalArgumentException("duplicate mechanic id " + id);
+		if (experience < 0 || experience >= 100) throw new IllegalArgumentException("experience must be between 0 and 99");
+		Mechanic m = new Mechanic();
+		m.id = id;
+		m.fname = fname;
+		m.lname = lname;
+		m.experience = experience;
+		mechanics.put(id, m);
+		nextMechanicId = Math.max(nextMechanicId, id + 1);
+		return m;
+	}
+
+	private Car putCar(String vin, String make, String model, int year) {
+		if (cars.containsKey(vin)) throw new IllegalArgumentException("duplicate car vin " + vin);
+		if (year < 1970) throw new IllegalArgumentException("year must be 1970 or later");
+		Car car = new Car();
+		car.vin = vin;
+		car.make = make;
+		car.model = model;
+		car.year = year;
+		cars.put(vin, car);
+		List<Car> sameYear = carsByYear.get(year);
+		if (sameYear == null) {
+			sameYear = new ArrayList<Car>();
+			carsByYear.put(year, sameYear);
+		}
+		sameYear.add(car);
+		return car;
+	}
+
+	private void putOwnership(int ownershipId, int customerId, String vin) {
+		Customer c = customer(customerId);
+		Car car = car(vin);
+		c.cars.add(car);
+		car.owners.add(c);
+		nextOwnershipId = Math.max(nextOwnershipId, ownershipId + 1);
+	}
+
+	private Request putRequest(int rid, int customerId, String vin, int date, int odometer, String complain) {
+		if (requests.containsKey(rid)) throw new IllegalArgumentException("duplicate service request " + rid);
+		if (odometer <= 0) throw new IllegalArgumentException("odometer must be positive");
+		Request r = new Request();
+		r.rid = rid;
+		r.customer = customer(customerId);
+		r.car = car(vin);
+		r.date = date;
+		r.odometer = odometer;
+		r.complain = complain;
+		requests.put(rid, r);
+		requestsByDate.put(key(date, rid), r);
+		openByDate.put(key(date, rid), r);
+		r.car.requests.add(r);
+		nextRid = Math.max(nextRid, rid + 1);
+		return r;
+	}
+
+	private Closed putClosed(int wid, int rid, int mechanicId, int date, String comment, int bill) {
+		if (closed.containsKey(wid)) throw new IllegalArgumentException("duplicate closed request " + wid);
+		if (bill <= 0) throw new IllegalArgumentException("bill must be positive");
+		Request r = requests.get(rid);
+		if (r == null) throw new IllegalArgumentException("service request " + rid + " does not exist");
+		Mechanic m = mechanic(mechanicId);
+		Closed w = new Closed();
+		w.wid = wid;
+		w.request = r;
+		w.mechanic = m;
+		w.date = date;
+		w.comment = comment;
+		w.bill = bill;
+		closed.put(wid, w);
+		closedByBill.put(key(bill, wid), w);
+		if (r.status != 'C') {
+			if (r.mechanic != null) r.mechanic.open--;
+			r.status = 'C';
+			openByDate.remove(key(r.date, r.rid));
+		}
+		customersByTotal.remove(r.customer);
+		r.customer.totalBill += bill;
+		customersByTotal.add(r.customer);
+		nextWid = Math.max(nextWid, wid + 1);
+		return w;
+	}
+
+	private Customer customer(int id) {
+		Customer c = customers.get(id);
+		if (c == null) throw new IllegalArgumentException("customer " + id + " does not exist");
+		return c;
+	}
+
+	private Mechanic mechanic(int id) {
+		Mechanic m = mechanics.get(id);
+		if (m == null) throw new IllegalArgumentException("mechanic " + id + " does not exist");
+		return m;
+	}
+
+	private Car car(String vin) {
+		Car car = cars.get(vin);
+		if (car == null) throw new IllegalArgumentException("car " + vin + " does not exist");
+		return car;
+	}
+
+	//--- ShopRepository ---
+
+	public synchronized int addCustomer(Integer id, String fname, String lname, String phone, String address) {
+		return putCustomer(id == null ? nextCustomerId : id, fname, lname, phone, address).id;
+	}
+
+	public synchronized List<List<String>> findCustomers(String lname, String fname) {
+		List<List<String>> rows = new ArrayList<List<String>>();
+		List<Customer> same = customersByLname.get(lname);
+		if (same == null) return rows;
+		for (Customer c : same) {
+			if (fname == null || fname.equals(c.fname)) {
+				rows.add(Arrays.asList(str(c.id), c.fname, c.lname));
+			}
+		}
+		return rows;
+	}
+
+	public synchronized int addMechanic(Integer id, String fname, String lname, int experience) {
+		return putMechanic(id == null ? nextMechanicId : id, fname, lname, experience).id;
+	}
+
+	public synchronized boolean mechanicExists(int id) {
+		return mechanics.containsKey(id);
+	}
+
+	public synchronized void addCar(String vin, String make, String model, int year) {
+		putCar(vin, make, model, year);
+	}
+
+	public synchronized boolean carExists(String vin) {
+		return cars.containsKey(vin);
+	}
+
+	public synchronized void vins(RowSink sink) {
+		sink.header(Arrays.asList("vin"));
+		for (Car car : cars.values()) {
+			sink.row(Arrays.asList(car.vin));
+		}
+	}
+
+	public synchronized void addOwnership(int customerId, String vin) {
+		putOwnership(nextOwnershipId, customerId, vin);
+	}
+
+	public synchronized List<List<String>> carsOwnedBy(int customerId) {
+		List<List<String>> rows = new ArrayList<List<String>>();
+		Customer c = customers.get(customerId);
+		if (c == null) return rows;
+		for (Car car : c.cars) {
+			rows.add(Arrays.asList(car.vin, car.make, car.model, str(car.year)));
+		}
+		return rows;
+	}
+
+	public synchronized List<List<String>> ownersOf(String vin) {
+		List<List<String>> rows = new ArrayList<List<String>>();
+		Car car = cars.get(vin);
+		if (car == null) return rows;
+		for (Customer c : car.owners) {
+			rows.add(Arrays.asList(str(c.id), c.fname, c.lname));
+		}
+		return rows;
+	}
+
+	public synchronized int openServiceRequest(int customerId, String vin, String date, int odometer, String complain) {
+		return putRequest(nextRid, customerId, vin, parseDate(date), odometer, complain).rid;
+	}
+
+	public synchronized List<String> findOpenServiceRequest(int rid) {
+		Request r = requests.get(rid);
+		if (r == null || r.status == 'C') return null;
+		LocalDate opened = LocalDate.ofEpochDay(r.date);
+		return Arrays.asList(str(rid), String.format("%02d/%02d/%04d", opened.getMonthValue(), opened.getDayOfMonth(), opened.getYear()),
+			r.mechanic == null ? null : str(r.mechanic.id));
+	}
+
+	public synchronized List<List<String>> closeServiceRequests(List<List<String>> closes) {
+		List<List<String>> results = new ArrayList<List<String>>();
+		IntHashMap<Boolean> listed = new IntHashMap<Boolean>();
+		for (List<String> c : closes) {
+			int rid = Integer.parseInt(c.get(0));
+			int mechanicId = Integer.parseInt(c.get(1));
+			int date = parseDate(c.get(2));
+			int bill = Integer.parseInt(c.get(4));
+			Request r = requests.get(rid);
+			String reason = null;
+			if (listed.containsKey(rid)) reason = "rid listed more than once";
+			else if (r == null) reason = "no such service request";
+			else if (r.status == 'C') reason = "already closed";
+			else if (!mechanics.containsKey(mechanicId)) reason = "no such mechanic";
+			else if (date < r.date) reason = "closed before it was opened";
+			else if (bill <= 0) reason = "bill must be positive";
+			listed.put(rid, Boolean.TRUE);
+			if (reason != null) {
+				results.add(Arrays.asList(c.get(0), null, reason));
+			} else {
+				results.add(Arrays.asList(c.get(0), str(putClosed(nextWid, rid, mechanicId, date, c.get(3), bill).wid), null));
+			}
+		}
+		return results;
+	}
+
+	public synchronized int closeServiceRequest(int rid, int mechanicId, String date, String comment, int bill) {
+		Request r = requests.get(rid);
+		if (r == null || r.status == 'C') throw new IllegalArgumentException("service request " + rid + " is not open");
+		return putClosed(nextWid, rid, mechanicId, parseDate(date), comment, bill).wid;
+	}
+
+	public synchronized List<int[]> mechanicWorkloads() {
+		List<int[]> workloads = new ArrayList<int[]>();
+		for (Mechanic m : mechanics.values()) {
+			workloads.add(new int[]{m.id, m.experience, m.open});
+		}
+		return workloads;
+	}
+
+	public synchronized int assignMechanic(int rid, int mechanicId, int expectedOpen) {
+		Mechanic m = mechanic(mechanicId);
+		if (m.open != expectedOpen) return m.open;
+		Request r = requests.get(rid);
+		if (r == null || r.status == 'C') return -2;
+		if (r.mechanic != null) r.mechanic.open--;
+		r.mechanic = m;
+		r.status = 'R';
+		m.open++;
+		return -1;
+	}
+
+	public synchronized void closedRequestsWithBillUnder100(String from, String to, RowSink sink) {
+		int lo = dayOrMin(from), hi = dayOrMax(to);
+		sink.header(Arrays.asList("date", "comment", "bill"));
+		for (Closed w : closedByBill.headMap(key(100, 0)).values()) {
+			if (w.date >= lo && w.date < hi) {
+				sink.row(Arrays.asList(isoDate(w.date), w.comment, str(w.bill)));
+			}
+		}
+	}
+
+	public synchronized void customersWithMoreThan20Cars(RowSink sink) {
+		sink.header(Arrays.asList("fname", "lname"));
+		for (Customer c : customers.values()) {
+			if (c.cars.size() > 20) {
+				sink.row(Arrays.asList(c.fname, c.lname));
+			}
+		}
+	}
+
+	public synchronized void carsBefore1995With50000Miles(String from, String to, RowSink sink) {
+		int lo = dayOrMin(from), hi = dayOrMax(to);
+		sink.header(Arrays.asList("make", "model", "year"));
+		for (List<Car> sameYear : carsByYear.headMap(1995).values()) {
+			for (Car car : sameYear) {
+				for (Request r : car.requests) {
+					if (r.odometer < 50000 && r.date >= lo && r.date < hi) {
+						sink.row(Arrays.asList(car.make, car.model, str(car.year)));
+					}
+				}
+			}
+		}
+	}
+
+	public synchronized void carsWithMostServices(int k, String from, String to, RowSink sink) {
+		sink.header(Arrays.asList("make", "model", "n"));
+		final Map<Car, Integer> counts = new HashMap<Car, Integer>();
+		if (from == null && to == null) {
+			for (Car car : cars.values()) {
+				if (!car.requests.isEmpty()) counts.put(car, car.requests.size());
+			}
+		} else {
+			long lo = key(dayOrMin(from), 0), hi = key(dayOrMax(to), 0);
+			for (Request r : requestsByDate.subMap(lo, hi).values()) {
+				Integer n = counts.get(r.car);
+				counts.put(r.car, n == null ? 1 : n + 1);
+			}
+		}
+		//keep the k largest in a min-heap
+		Comparator<Car> byCount = new Comparator<Car>() {
+			public int compare(Car a, Car b) {
+				return Integer.compare(counts.get(a), counts.get(b));
+			}
+		};
+		PriorityQueue<Car> top = new PriorityQueue<Car>(Math.max(k, 1), byCount);
+		for (Car car : counts.keySet()) {
+			top.add(car);
+			if (top.size() > k) top.poll();
+		}
+		List<Car> ordered = new ArrayList<Car>(top);
+		Collections.sort(ordered, Collections.reverseOrder(byCount));
+		for (Car car : ordered) {
+			sink.row(Arrays.asList(car.make, car.model, str(counts.get(car))));
+		}
+	}
+
+	public synchronized void customersByTotalBill(String from, String to, RowSink sink) {
+		sink.header(Arrays.asList("fname", "lname", "n"));
+		if (from == null && to == null) {
+			for (Customer c : customersByTotal) {
+				sink.row(Arrays.asList(c.fname, c.lname, Long.toString(c.totalBill)));
+			}
+			return;
+		}
+		final Map<Customer, Long> totals = totalsBetween(from, to);
+		List<Customer> ordered = new ArrayList<Customer>(totals.keySet());
+		Collections.sort(ordered, new Comparator<Customer>() {
+			public int compare(Customer a, Customer b) {
+				return Long.compare(totals.get(b), totals.get(a));
+			}
+		});
+		for (Customer c : ordered) {
+			sink.row(Arrays.asList(c.fname, c.lname, Long.toString(totals.get(c))));
+		}
+	}
+
+	/**
+	 * @return total closed bill per customer over closes in [from, to)
+	 */
+	private Map<Customer, Long> totalsBetween(String from, String to) {
+		int lo = dayOrMin(from), hi = dayOrMax(to);
+		Map<Customer, Long> totals = new HashMap<Customer, Long>();
+		for (Closed w : closed.values()) {
+			if (w.date >= lo && w.date < hi) {
+				Long t = totals.get(w.request.customer);
+				totals.put(w.request.customer, (t == null ? 0 : t) + w.bill);
+			}
+		}
+		return totals;
+	}
+
+	public synchronized Page closedRequestsWithBillUnder100(String from, String to, Page.Cursor cursor) {
+		int lo = dayOrMin(from), hi = dayOrMax(to);
+		NavigableMap<Long, Closed> seek = closedByBill.headMap(key(100, 0), false);
+		if (cursor.key != null) {
+			long k = key(Integer.parseInt(cursor.key.get(0)), Integer.parseInt(cursor.key.get(1)));
+			seek = cursor.backward ? seek.headMap(k, false) : seek.tailMap(k, false);
+		}
+		List<List<String>> rows = new ArrayList<List<String>>();
+		for (Closed w : (cursor.backward ? seek.descendingMap() : seek).values()) {
+			if (rows.size() > cursor.limit) break;
+			if (w.date >= lo && w.date < hi) {
+				rows.add(Arrays.asList(isoDate(w.date), w.comment, str(w.bill), str(w.bill), str(w.wid)));
+			}
+		}
+		return Page.of(cursor, Arrays.asList("date", "comment", "bill", "key_bill", "key_wid"), rows, 2);
+	}
+
+	public synchronized Page carsBefore1995With50000Miles(String from, String to, Page.Cursor cursor) {
+		NavigableMap<Long, Request> seek = requestsByDate.subMap(key(dayOrMin(from), 0), true, key(dayOrMax(to), 0), false);
+		if (cursor.key != null) {
+			long k = key((int) LocalDate.parse(cursor.key.get(0)).toEpochDay(), Integer.parseInt(cursor.key.get(1)));
+			seek = cursor.backward ? seek.headMap(k, false) : seek.tailMap(k, false);
+		}
+		List<List<String>> rows = new ArrayList<List<String>>();
+		for (Request r : (cursor.backward ? seek.descendingMap() : seek).values()) {
+			if (rows.size() > cursor.limit) break;
+			if (r.car.year < 1995 && r.odometer < 50000) {
+				rows.add(Arrays.asList(r.car.make, r.car.model, str(r.car.year), isoDate(r.date), str(r.rid)));
+			}
+		}
+		return Page.of(cursor, Arrays.asList("make", "model", "year", "key_date", "key_rid"), rows, 2);
+	}
+
+	public synchronized Page customersByTotalBill(String from, String to, Page.Cursor cursor) {
+		List<String> columns = Arrays.asList("fname", "lname", "n", "key_total", "key_id");
+		List<List<String>> rows = new ArrayList<List<String>>();
+		if (from == null && to == null) {
+			NavigableSet<Customer> seek = customersByTotal;
+			if (cursor.key != null) {
+				Customer probe = new Customer();
+				probe.totalBill = Long.parseLong(cursor.key.get(0));
+				probe.id = Integer.parseInt(cursor.key.get(1));
+				seek = cursor.backward ? seek.headSet(probe, false) : seek.tailSet(probe, false);
+			}
+			for (Customer c : cursor.backward ? seek.descendingSet() : seek) {
+				if (rows.size() > cursor.limit) break;
+				String total = Long.toString(c.totalBill);
+				rows.add(Arrays.asList(c.fname, c.lname, total, total, str(c.id)));
+			}
+			return Page.of(cursor, columns, rows, 2);
+		}
+		//totals over a date range are not indexed, order them for this page
+		Map<Customer, Long> totals = totalsBetween(from, to);
+		NavigableMap<long[], Customer> seek = new TreeMap<long[], Customer>(new Comparator<long[]>() {
+			public int compare(long[] a, long[] b) {
+				if (a[0] != b[0]) return a[0] > b[0] ? -1 : 1;
+				return Long.compare(a[1], b[1]);
+			}
+		});
+		for (Map.Entry<Customer, Long> e : totals.entrySet()) {
+			seek.put(new long[]{e.getValue(), e.getKey().id}, e.getKey());
+		}
+		if (cursor.key != null) {
+			long[] k = {Long.parseLong(cursor.key.get(0)), Integer.parseInt(cursor.key.get(1))};
+			seek = cursor.backward ? seek.headMap(k, false) : seek.tailMap(k, false);
+		}
+		for (Map.Entry<long[], Customer> e : (cursor.backward ? seek.descendingMap() : seek).entrySet()) {
+			if (rows.size() > cursor.limit) break;
+			Customer c = e.getValue();
+			String total = Long.toString(e.getKey()[0]);
+			rows.add(Arrays.asList(c.fname, c.lname, total, total, str(c.id)));
+		}
+		return Page.of(cursor, columns, rows, 2);
+	}
+
+	public synchronized void openServiceRequests(RowSink sink) {
+		sink.header(Arrays.asList("rid", "status", "date", "customer_id", "car_vin", "complain"));
+		for (Request r : openByDate.values()) {
+			sink.row(Arrays.asList(str(r.rid), String.valueOf(r.status), isoDate(r.date), str(r.customer.id), r.car.vin, r.complain));
+		}
+	}
+
+	public synchronized void closedHistory(RowSink sink) {
+		sink.header(Arrays.asList("date", "bill", "make", "model", "year", "id", "experience"));
+		for (Closed w : closed.values()) {
+			Car car = w.request.car;
+			sink.row(Arrays.asList(isoDate(w.date), str(w.bill), car.make, car.model, str(car.year), str(w.mechanic.id), str(w.mechanic.experience)));
+		}
+	}
+
+	public synchronized void statementLines(String from, String to, RowSink sink) {
+		int lo = dayOrMin(from), hi = dayOrMax(to);
+		List<Closed> lines = new ArrayList<Closed>();
+		for (Closed w : closed.values()) {
+			if (w.date >= lo && w.date < hi) lines.add(w);
+		}
+		Collections.sort(lines, new Comparator<Closed>() {
+			public int compare(Closed a, Closed b) {
+				if (a.request.customer.id != b.request.customer.id) return Integer.compare(a.request.customer.id, b.request.customer.id);
+				if (a.date != b.date) return Integer.compare(a.date, b.date);
+				return Integer.compare(a.wid, b.wid);
+			}
+		});
+		sink.header(Arrays.asList("customer_id", "fname", "lname", "address", "wid", "date", "vin", "make", "model", "year", "complain", "comment", "bill"));
+		for (Closed w : lines) {
+			Customer c = w.request.customer;
+			Car car = w.request.car;
+			sink.row(Arrays.asList(str(c.id), c.fname, c.lname, c.address, str(w.wid), isoDate(w.date), car.vin, car.make, car.model, str(car.year),
+				w.request.complain, w.comment, str(w.bill)));
+		}
+	}
+
+	/**
+	 * Drops the requests and closes of the months ending on or before
+	 * cutoff by the rule of archive_request_partitions (partition.sql): a
+	 * month goes with its requests and its closes, and only when none of
+	 * its requests is open, closed in a month that stays or opened in a
+	 * month that stays.
+	 *
+	 * @return the partitions holding rows the database would archive
+	 */
+	public synchronized List<String> archiveRequestPartitions(String cutoff) {
+		int end = parseDate(cutoff);
+		TreeSet<Integer> months = new TreeSet<Integer>();
+		for (Request r : requests.values()) {
+			if (monthAfter(r.date) <= end) months.add(month(r.date));
+		}
+		for (Closed w : closed.values()) {
+			if (monthAfter(w.date) <= end) months.add(month(w.date));
+		}
+		//keeping a month can keep others, repeat until nothing changes
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (Request r : requests.values()) {
+				if (r.status != 'C' && months.remove(month(r.date))) changed = true;
+			}
+			for (Closed w : closed.values()) {
+				int opened = month(w.request.date), done = month(w.date);
+				if (months.contains(opened) != months.contains(done)) {
+					months.remove(opened);
+					months.remove(done);
+					changed = true;
+				}
+			}
+		}
+
+		TreeSet<String> archived = new TreeSet<String>();
+		for (Closed w : closed.values()) {
+			if (!months.contains(month(w.date))) continue;
+			closed.remove(w.wid);
+			closedByBill.remove(key(w.bill, w.wid));
+			Customer c = w.request.customer;
+			customersByTotal.remove(c);
+			c.totalBill -= w.bill;
+			//bills are positive, a customer without closes is left out like in the database
+			if (c.totalBill > 0) customersByTotal.add(c);
+			archived.add("archive.closed_request_" + partition(w.date));
+		}
+		for (Request r : requests.values()) {
+			if (!months.contains(month(r.date))) continue;
+			requests.remove(r.rid);
+			requestsByDate.remove(key(r.date, r.rid));
+			r.car.requests.remove(r);
+			archived.add("archive.service_request_" + partition(r.date));
+		}
+		return new ArrayList<String>(archived);
+	}
+
+	/**
+	 * @return epoch day of the first day of the month of epochDay
+	 */
+	private static int month(int epochDay) {
+		return (int) LocalDate.ofEpochDay(epochDay).withDayOfMonth(1).toEpochDay();
+	}
+
+	/**
+	 * @return epoch day of the first day of the month after epochDay's
+	 */
+	private static int monthAfter(int epochDay) {
+		return (int) LocalDate.ofEpochDay(epochDay).withDayOfMonth(1).plusMonths(1).toEpochDay();
+	}
+
+	/**
+	 * @return the partition suffix of the month of epochDay, e.g. y2016m05
+	 */
+	private static String partition(int epochDay) {
+		LocalDate d = LocalDate.ofEpochDay(epochDay);
+		return String.format("y%04dm%02d", d.getYear(), d.getMonthValue());
+	}
+
+	public void close() {
+	}
+}
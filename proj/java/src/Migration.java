@@ -0,0 +1,39 @@
+/*
+ * Schema migration
+ * ================
+ *
+ * One versioned change to the database schema, applied once by Migrator.
+ *
+ */
+
+
+import java.sql.SQLException;
+
+/**
+ * A schema change applied by Migrator at startup. Versions are applied in
+ * ascending order and recorded in the schema_version table, so apply() is
+ * only ever called once per database. An implementation must still
+ * tolerate being re-run after a crash halfway through.
+ *
+ */
+
+public interface Migration{
+	/**
+	 * @return version number, unique and increasing
+	 */
+	int version();
+
+	/**
+	 * @return one line description recorded in schema_version
+	 */
+	String description();
+
+	/**
+	 * Applies the change. The connection is in autocommit mode, the
+	 * migration decides itself how to batch its work in transactions.
+	 *
+	 * @param esql the database connection
+	 * @throws java.sql.SQLException when the migration failed
+	 */
+	void apply(MechanicShop esql) throws SQLException;
+}
@@ -0,0 +1,68 @@
+/*
+ * Schema migration runner
+ * =======================
+ *
+ * Brings the database schema up to date when the client starts.
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Applies every pending Migration in version order and records it in the
+ * schema_version table. Clients starting at the same time serialize on an
+ * advisory lock, so each migration runs exactly once.
+ *
+ */
+
+public class Migrator{
+	//advisory lock key held while migrating
+	private static final int LOCK_KEY = 1660029;
+
+	/**
+	 * @return every migration known to this client, in version order
+	 */
+	public static List<Migration> migrations() {
+		List<Migration> migrations = new ArrayList<Migration>();
+		migrations.add(new VarcharNamesMigration());
+		migrations.add(new IntakeKeysMigration());
+		migrations.add(new ReportNotifyMigration());
+		migrations.add(new PageKeysMigration());
+		migrations.add(new RequestFeedMigration());
+		migrations.add(new VinNotifyMigration());
+		migrations.add(new RequestIdsMigration());
+		return migrations;
+	}
+
+	/**
+	 * Applies the pending migrations.
+	 *
+	 * @param esql the database connection
+	 * @return the number of migrations applied
+	 * @throws java.sql.SQLException when a migration failed
+	 */
+	public static int migrate(MechanicShop esql) throws SQLException {
+		esql.executeUpdate("CREATE TABLE IF NOT EXISTS schema_version (version INTEGER PRIMARY KEY, description TEXT NOT NULL, applied_at TIMESTAMP NOT NULL DEFAULT now())");
+		esql.executeQuery("SELECT pg_advisory_lock(" + LOCK_KEY + ")");
+		int applied = 0;
+		try{
+			String current = esql.executeQueryAndReturnResult("SELECT COALESCE(MAX(version), 0) FROM schema_version").get(0).get(0);
+			int version = Integer.parseInt(current);
+			for (Migration m : migrations()) {
+				if (m.version() <= version) continue;
+				System.out.println("Applying schema migration " + m.version() + ": " + m.description());
+				long start = System.currentTimeMillis();
+				m.apply(esql);
+				esql.executeUpdate("INSERT INTO schema_version (version, description) VALUES (" + m.version() + ", '" + m.description().replace("'", "''") + "')");
+				System.out.println("Migration " + m.version() + " done in " + (System.currentTimeMillis() - start) + " ms");
+				applied++;
+			}
+		}finally{
+			esql.executeQuery("SELECT pg_advisory_unlock(" + LOCK_KEY + ")");
+		}
+		return applied;
+	}
+}
@@ -0,0 +1,151 @@
+/*
+ * Notification listener
+ * =====================
+ *
+ * One LISTEN connection per database for every part of this client that
+ * follows what other clients change.
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Opens one session per database on a thread of its own, LISTENs there on
+ * every channel asked for and passes each notification to the handlers of
+ * its channel. The report cache, the change feed and the VIN filter share
+ * it, so a client holds one extra connection per database whatever it
+ * follows.
+ *
+ * A handler is told when its channel is listened to on a fresh session,
+ * and when the session is lost: notifications sent while it is down are
+ * not delivered, the handler reads the current state again on the next
+ * connected(). The thread polls every POLL_MS and retries connecting every
+ * RETRY_MS.
+ *
+ */
+
+public class NotificationListener{
+	private static final long POLL_MS = 250;
+	private static final long RETRY_MS = 2000;
+
+	/**
+	 * Follows one channel of one database. Called on the listener thread,
+	 * a slow handler delays the others of its database.
+	 */
+	public interface Handler{
+		/**
+		 * The channel is listened to from now on.
+		 *
+		 * @param session the listening session, e.g. to read the current state
+		 * @throws java.sql.SQLException ends the session, it is opened again
+		 */
+		void connected(MechanicShop session) throws SQLException;
+
+		void notified(String payload);
+
+		/**
+		 * The session was lost, notifications may be missed until the next
+		 * connected().
+		 */
+		void disconnected();
+	}
+
+	private static class Registration{
+		final String channel;
+		final Handler handler;
+
+		Registration(String channel, Handler handler) {
+			this.channel = channel;
+			this.handler = handler;
+		}
+	}
+
+	//the databases listened to, by the shop they are opened from
+	private Map<MechanicShop, List<Registration>> databases = new IdentityHashMap<MechanicShop, List<Registration>>();
+	private List<Thread> threads = new ArrayList<Thread>();
+	private volatile boolean stopped = false;
+
+	/**
+	 * Passes the notifications on a channel of the origin's database to
+	 * the handler, starting the database's thread on first use.
+	 *
+	 * @param origin the connected shop to open the listening session from
+	 * @param channel the channel name
+	 * @param handler receives the channel's notifications
+	 */
+	public synchronized void listen(MechanicShop origin, String channel, Handler handler) {
+		List<Registration> registrations = databases.get(origin);
+		if (registrations == null) {
+			registrations = new CopyOnWriteArrayList<Registration>();
+			databases.put(origin, registrations);
+			start(origin, registrations);
+		}
+		registrations.add(new Registration(channel, handler));
+	}
+
+	private void start(final MechanicShop origin, final List<Registration> registrations) {
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				MechanicShop session = null;
+				List<Registration> attached = new ArrayList<Registration>();
+				List<String> listening = new ArrayList<String>();
+				while (!stopped) {
+					try{
+						if (session == null) session = origin.newSession();
+						//handlers registered since the last poll, or all of them after reconnecting
+						for (Registration r : registrations) {
+							if (attached.contains(r)) continue;
+							if (!listening.contains(r.channel)) {
+								session.executeUpdate("LISTEN " + r.channel);
+								listening.add(r.channel);
+							}
+							attached.add(r);
+							r.handler.connected(session);
+						}
+						for (List<String> notification : session.pollNotifications()) {
+							for (Registration r : attached) {
+								if (r.channel.equals(notification.get(0))) r.handler.notified(notification.get(1));
+							}
+						}
+						Thread.sleep(POLL_MS);
+					}catch(SQLException e){
+						for (Registration r : attached) {
+							r.handler.disconnected();
+						}
+						attached.clear();
+						listening.clear();
+						if (session != null) session.cleanup();
+						session = null;
+						try{
+							Thread.sleep(RETRY_MS);
+						}catch(InterruptedException ie){
+							break;
+						}
+					}catch(InterruptedException e){
+						break;
+					}
+				}
+				if (session != null) session.cleanup();
+			}
+		}, "notification-listener");
+		thread.setDaemon(true);
+		thread.start();
+		threads.add(thread);
+	}
+
+	/**
+	 * Stops the threads.
+	 */
+	public synchronized void close() {
+		stopped = true;
+		for (Thread thread : threads) {
+			thread.interrupt();
+		}
+	}
+}
@@ -0,0 +1,153 @@
+/*
+ * Report page
+ * ===========
+ *
+ * One page of a report read with keyset ("seek") pagination.
+ *
+ */
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A page of report rows together with the ordering key of each row. The
+ * next page is read as the rows after the key of the last row, the
+ * previous one as the rows before the key of the first row. With an index
+ * on the key every page costs the same, unlike OFFSET which reads and
+ * discards all rows before the page.
+ *
+ */
+
+public class Page{
+	/**
+	 * Where a page starts: the first page, or the rows after (before when
+	 * backward) a key.
+	 */
+	public static class Cursor{
+		public final List<String> key;
+		public final boolean backward;
+		public final int limit;
+
+		Cursor(List<String> key, boolean backward, int limit) {
+			this.key = key;
+			this.backward = backward;
+			this.limit = limit;
+		}
+	}
+
+	/**
+	 * A paged report.
+	 */
+	public interface Source{
+		Page read(Cursor cursor) throws Exception;
+	}
+
+	public final List<String> columns;
+	public final List<List<String>> rows;
+	//ordering key per row
+	public final List<List<String>> keys;
+	private final Cursor cursor;
+	//another row exists past the page in the direction it was read
+	private final boolean more;
+
+	private Page(Cursor cursor, List<String> columns, List<List<String>> rows, List<List<String>> keys, boolean more) {
+		this.cursor = cursor;
+		this.columns = columns;
+		this.rows = rows;
+		this.keys = keys;
+		this.more = more;
+	}
+
+	/**
+	 * @return cursor for the first page of limit rows
+	 */
+	public static Cursor first(int limit) {
+		return new Cursor(null, false, limit);
+	}
+
+	/**
+	 * @return cursor for the page after this one, null if this is the last
+	 */
+	public Cursor next() {
+		boolean exists = cursor.backward ? cursor.key != null : more;
+		return exists && !rows.isEmpty() ? new Cursor(keys.get(keys.size() - 1), false, cursor.limit) : null;
+	}
+
+	/**
+	 * @return cursor for the page before this one, null if this is the first
+	 */
+	public Cursor previous() {
+		boolean exists = cursor.backward ? more : cursor.key != null;
+		return exists && !rows.isEmpty() ? new Cursor(keys.get(0), true, cursor.limit) : null;
+	}
+
+	/**
+	 * Builds a page from rows read for the cursor: limit + 1 rows in the
+	 * direction of the cursor (descending order when backward), each made
+	 * of the shown columns followed by keyColumns key columns.
+	 *
+	 * @param cursor the cursor the rows were read for
+	 * @param columns all column names, key columns included
+	 * @param fetched the rows as read
+	 * @param keyColumns number of key columns at the end of each row
+	 * @return the page in ascending order
+	 */
+	public static Page of(Cursor cursor, List<String> columns, List<List<String>> fetched, int keyColumns) {
+		boolean more = fetched.size() > cursor.limit;
+		List<List<String>> read = new ArrayList<List<String>>(more ? fetched.subList(0, cursor.limit) : fetched);
+		if (cursor.backward) Collections.reverse(read);
+		int shown = columns.size() - keyColumns;
+		List<List<String>> rows = new ArrayList<List<String>>(read.size());
+		List<List<String>> keys = new ArrayList<List<String>>(read.size());
+		for (List<String> row : read) {
+			rows.add(row.subList(0, shown));
+			keys.add(row.subList(shown, row.size()));
+		}
+		return new Page(cursor, columns.subList(0, shown), rows, keys, more);
+	}
+
+	/**
+	 * Merges pages read for the same cursor from several databases holding
+	 * disjoint rows (see ShardedShopRepository) into the page one database
+	 * holding all of them would have returned.
+	 *
+	 * @param cursor the cursor every page was read for
+	 * @param pages at least one page
+	 * @param order the ascending order of the keys
+	 * @return the merged page
+	 */
+	public static Page merge(Cursor cursor, List<Page> pages, final Comparator<List<String>> order) {
+		final List<List<String>> rows = new ArrayList<List<String>>();
+		final List<List<String>> keys = new ArrayList<List<String>>();
+		boolean more = false;
+		for (Page page : pages) {
+			rows.addAll(page.rows);
+			keys.addAll(page.keys);
+			more |= page.more;
+		}
+		Integer[] sorted = new Integer[rows.size()];
+		for (int i = 0; i < sorted.length; i++) {
+			sorted[i] = i;
+		}
+		Arrays.sort(sorted, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return order.compare(keys.get(a), keys.get(b));
+			}
+		});
+		//a page holds the limit rows nearest the cursor: the first ones forward, the last ones backward
+		more |= sorted.length > cursor.limit;
+		int from = cursor.backward ? Math.max(0, sorted.length - cursor.limit) : 0;
+		int to = Math.min(sorted.length, from + cursor.limit);
+		List<List<String>> pageRows = new ArrayList<List<String>>(to - from);
+		List<List<String>> pageKeys = new ArrayList<List<String>>(to - from);
+		for (int i = from; i < to; i++) {
+			pageRows.add(rows.get(sorted[i]));
+			pageKeys.add(keys.get(sorted[i]));
+		}
+		return new Page(cursor, pages.get(0).columns, pageRows, pageKeys, more);
+	}
+}
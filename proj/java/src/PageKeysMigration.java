@@ -0,0 +1,33 @@
+/*
+ * Migration 4: report page keys
+ * =============================
+ *
+ * Indexes on the ordering keys that paged reports seek to.
+ *
+ */
+
+
+import java.sql.SQLException;
+
+/**
+ * Indexes Closed_Request on (bill, wid) for report 6 and Service_Request
+ * on (date, rid) for report 8. A page then starts with an index seek to
+ * the key it continues from; each monthly partition gets its own index and
+ * the planner merges them in key order.
+ *
+ */
+
+public class PageKeysMigration implements Migration{
+	public int version() {
+		return 4;
+	}
+
+	public String description() {
+		return "indexes on the keys of paged reports";
+	}
+
+	public void apply(MechanicShop esql) throws SQLException {
+		esql.executeUpdate("CREATE INDEX IF NOT EXISTS idx_closed_request_bill ON Closed_Request (bill, wid)");
+		esql.executeUpdate("CREATE INDEX IF NOT EXISTS idx_service_request_date ON Service_Request (date, rid)");
+	}
+}
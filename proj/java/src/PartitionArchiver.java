@@ -0,0 +1,67 @@
+/*
+ * Partition archiver
+ * ==================
+ *
+ * Administrative entry point that moves old service request partitions out
+ * of the live tables. Kept out of the clerk menu, it detaches tables and
+ * rewrites them.
+ *
+ */
+
+
+import java.util.List;
+
+/**
+ * Archives the request and close partitions of months ending on or before
+ * a cutoff date in one database, and in each shard named after it: a
+ * customer's requests and closes live on the same shard, so every database
+ * is archived on its own.
+ *
+ */
+
+public class PartitionArchiver{
+	public static void main(String[] args) {
+		if (args.length < 4) {
+			System.err.println("Usage: java PartitionArchiver <dbname> <port> <user> <cutoff XX/XX/XXXX> [shard port or jdbc url ...]");
+			return;
+		}
+		String cutoff = args[3];
+		if (cutoff.length() != 10 || cutoff.charAt(2) != '/' || cutoff.charAt(5) != '/') {
+			System.err.println("Please enter valid date format (XX/XX/XXXX)");
+			return;
+		}
+		try{
+			Class.forName("org.postgresql.Driver");
+			MechanicShop esql = new MechanicShop(args[0], args[1], args[2], "");
+			try{
+				archive(esql, cutoff);
+				for (int i = 4; i < args.length; i++) {
+					MechanicShop shard = esql.connectShard(args[i].startsWith("jdbc:") ? args[i] : "jdbc:postgresql://localhost:" + args[i] + "/" + args[0]);
+					try{
+						archive(shard, cutoff);
+					}finally{
+						shard.cleanup();
+					}
+				}
+			}finally{
+				esql.cleanup();
+			}
+		}catch(Exception e){
+			System.err.println(e.getMessage());
+		}
+	}//end main
+
+	/**
+	 * Method to archive the partitions of one database, after bringing its
+	 * schema up to date
+	 */
+	private static void archive(MechanicShop esql, String cutoff) throws Exception {
+		Migrator.migrate(esql);
+		System.out.println("Requests in months ending on or before " + cutoff + " are moved to the archive schema");
+		List<String> archived = esql.repository().archiveRequestPartitions(cutoff);
+		for (String table : archived) {
+			System.out.println("Archived " + table);
+		}
+		System.out.println(archived.size() + " partition(s) archived");
+	}//end archive
+}
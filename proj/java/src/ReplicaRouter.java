@@ -0,0 +1,172 @@
+/*
+ * Read replica routing
+ * ====================
+ *
+ * Sends read-only report queries to streaming replicas so they do not
+ * compete with the intake writes on the primary.
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Picks the connection a read-only query runs on. Replicas are used round
+ * robin as long as they have replayed the primary's WAL to within
+ * shop.maxReplicaLagBytes (default 1MB). After this client writes, the
+ * primary's WAL position is read once the write is committed, and a
+ * replica is only used again once it has replayed up to that position,
+ * so a clerk always sees their own changes however much other clients
+ * keep writing. Lagging or unreachable replicas fall back to the primary
+ * and are re-checked every LAG_CHECK_INTERVAL ms.
+ *
+ */
+
+public class ReplicaRouter{
+	private static final long LAG_CHECK_INTERVAL = 1000;
+
+	private static class Replica{
+		String url;
+		Connection connection;
+		long checkedAt;
+		boolean usable;
+	}
+
+	private Connection primary;
+	private String user, passwd;
+	private long maxLagBytes = Long.getLong("shop.maxReplicaLagBytes", 1024 * 1024);
+	private List<Replica> replicas = new ArrayList<Replica>();
+	private int next = 0;
+	//this client wrote, its commit position is not read yet
+	private boolean writePending = false;
+	//WAL position of this client's last committed write, replicas must have replayed it
+	private String writeLsn = null;
+
+	public ReplicaRouter(Connection primary, String user, String passwd) {
+		this.primary = primary;
+		this.user = user;
+		this.passwd = passwd;
+	}
+
+	/**
+	 * Registers a replica, the connection is opened on first use.
+	 *
+	 * @param url JDBC URL of the replica
+	 */
+	public synchronized void addReplica(String url) {
+		Replica r = new Replica();
+		r.url = url;
+		replicas.add(r);
+	}
+
+	/**
+	 * Replaces the primary's connection after the shop reconnected.
+	 */
+	public synchronized void setPrimary(Connection primary) {
+		this.primary = primary;
+	}
+
+	public synchronized int replicaCount() {
+		return replicas.size();
+	}
+
+	/**
+	 * Called after every write on the primary.
+	 */
+	public synchronized void noteWrite() {
+		if (replicas.isEmpty()) return;
+		writePending = true;
+		for (Replica r : replicas) {
+			r.checkedAt = 0;
+		}
+	}
+
+	/**
+	 * @return the connection the next read-only query should use
+	 */
+	public synchronized Connection forRead() {
+		if (writePending) {
+			try{
+				//not committed yet, only the primary can see it
+				if (!primary.getAutoCommit()) return primary;
+				writeLsn = singleValue(primary, "SELECT pg_current_wal_lsn()");
+				writePending = false;
+			}catch(SQLException e){
+				return primary;
+			}
+		}
+		for (int i = 0; i < replicas.size(); i++) {
+			Replica r = replicas.get((next + i) % replicas.size());
+			if (isUsable(r)) {
+				next = (next + i + 1) % replicas.size();
+				return r.connection;
+			}
+		}
+		return primary;
+	}
+
+	/**
+	 * Closes the replica connections, the primary belongs to the caller.
+	 */
+	public synchronized void close() {
+		for (Replica r : replicas) {
+			closeQuietly(r);
+		}
+	}
+
+	private boolean isUsable(Replica r) {
+		long now = System.currentTimeMillis();
+		if (now - r.checkedAt < LAG_CHECK_INTERVAL) return r.usable;
+		r.checkedAt = now;
+		r.usable = false;
+		try{
+			if (r.connection == null) {
+				r.connection = RoundTripTracer.wrap(DriverManager.getConnection(r.url, user, passwd));
+				r.connection.setReadOnly(true);
+			}
+			String primaryLsn = singleValue(primary, "SELECT pg_current_wal_lsn()");
+			Statement stmt = r.connection.createStatement();
+			String written = writeLsn != null ? "'" + writeLsn + "'" : "pg_last_wal_replay_lsn()";
+			ResultSet rs = stmt.executeQuery("SELECT pg_is_in_recovery(), pg_wal_lsn_diff('" + primaryLsn + "', pg_last_wal_replay_lsn()), "
+				+ "pg_wal_lsn_diff(" + written + ", pg_last_wal_replay_lsn())");
+			rs.next();
+			boolean standby = rs.getBoolean(1);
+			long lag = rs.getLong(2);
+			long unreplayed = rs.getLong(3);
+			stmt.close();
+			if (!standby) {
+				System.err.println("Replica " + r.url + " is not a standby, reports stay on the primary");
+				return false;
+			}
+			r.usable = lag <= maxLagBytes && unreplayed <= 0;
+		}catch(SQLException e){
+			//unreachable or restarting, try again after the interval
+			closeQuietly(r);
+		}
+		return r.usable;
+	}
+
+	private static String singleValue(Connection c, String query) throws SQLException {
+		Statement stmt = c.createStatement();
+		ResultSet rs = stmt.executeQuery(query);
+		rs.next();
+		String value = rs.getString(1);
+		stmt.close();
+		return value;
+	}
+
+	private static void closeQuietly(Replica r) {
+		try{
+			if (r.connection != null) r.connection.close();
+		}catch(SQLException e){
+			// ignored.
+		}
+		r.connection = null;
+	}
+}
@@ -0,0 +1,254 @@
+/*
+ * Report result cache
+ * ===================
+ *
+ * Keeps the rows of read-only report queries until one of the tables they
+ * read is written to.
+ *
+ */
+
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Results keyed by their SQL text and tagged with the shop tables the SQL
+ * mentions. Writes made through MechanicShop invalidate the tables their
+ * SQL modifies; writes by other clients arrive as notifications on the
+ * shop_tables channel (see ReportNotifyMigration) and are passed to
+ * invalidate() by the NotificationListener.
+ *
+ * Memory is bounded by an estimate of the bytes held, the least recently
+ * used results are evicted first. A result that was being computed while
+ * any table was invalidated is not stored, it may predate the write.
+ * Neither are results read on a replica, which may not have replayed a
+ * write whose invalidation already arrived.
+ *
+ */
+
+public class ReportCache{
+	//the tables report queries read, lower case
+	private static final String[] TABLES = {"customer", "mechanic", "car", "owns", "service_request", "closed_request"};
+	private static final Pattern WRITE = Pattern.compile(
+		"\\b(?:INSERT\\s+INTO|UPDATE|DELETE\\s+FROM|TRUNCATE(?:\\s+TABLE)?|ALTER\\s+TABLE(?:\\s+IF\\s+EXISTS)?|DROP\\s+TABLE(?:\\s+IF\\s+EXISTS)?|COPY)\\s+(?:ONLY\\s+)?(\\w+)",
+		Pattern.CASE_INSENSITIVE);
+	private static final Pattern[] MENTIONS = new Pattern[TABLES.length];
+	static {
+		for (int i = 0; i < TABLES.length; i++) {
+			MENTIONS[i] = Pattern.compile("\\b" + TABLES[i] + "\\b", Pattern.CASE_INSENSITIVE);
+		}
+	}
+
+	/**
+	 * A cached result.
+	 */
+	public static class Entry{
+		public final List<String> columns;
+		public final List<List<String>> rows;
+		final Set<String> tables;
+		final long bytes;
+
+		Entry(List<String> columns, List<List<String>> rows, Set<String> tables, long bytes) {
+			this.columns = columns;
+			this.rows = rows;
+			this.tables = tables;
+			this.bytes = bytes;
+		}
+	}
+
+	/**
+	 * Collects the rows of a report while passing them on, until they get
+	 * too large to be worth caching.
+	 */
+	public class Recorder implements RowSink{
+		private RowSink sink;
+		private String sql;
+		private long version;
+		private List<String> columns = new ArrayList<String>();
+		private List<List<String>> rows = new ArrayList<List<String>>();
+		private long bytes = 64;
+
+		Recorder(String sql, RowSink sink) {
+			this.sql = sql;
+			this.sink = sink;
+			this.version = version();
+		}
+
+		public void header(List<String> columns) {
+			this.columns = columns;
+			sink.header(columns);
+		}
+
+		public void row(List<String> values) {
+			if (rows != null) {
+				bytes += sizeOf(values);
+				if (bytes > maxEntryBytes) rows = null;
+				else rows.add(values);
+			}
+			sink.row(values);
+		}
+
+		/**
+		 * Stores the recorded result, called once the query completed.
+		 */
+		public void done() {
+			if (rows != null) put(sql, columns, rows, bytes, version);
+		}
+	}
+
+	private long maxBytes;
+	private long maxEntryBytes;
+	private long bytes = 0;
+	private long version = 0;
+	private long hits = 0, misses = 0, evictions = 0, invalidations = 0;
+	private LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	//results are only stored while other clients' writes can be heard of
+	private boolean listening = false;
+
+	/**
+	 * @param maxBytes estimated memory the results may take
+	 */
+	public ReportCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+		//one report may take a quarter, so a big one does not flush everything else
+		this.maxEntryBytes = maxBytes / 4;
+	}
+
+	/**
+	 * Invalidates the tables other clients change, as notified on the
+	 * shop_tables channel. While the listener is disconnected nothing is
+	 * cached, on reconnecting everything is dropped since notifications
+	 * may have been missed.
+	 *
+	 * @param listener the shop's notification listener
+	 * @param origin the shop whose database is listened to
+	 */
+	public void listen(NotificationListener listener, MechanicShop origin) {
+		listener.listen(origin, "shop_tables", new NotificationListener.Handler() {
+			public void connected(MechanicShop session) {
+				setListening(true);
+			}
+
+			public void notified(String table) {
+				invalidate(table);
+			}
+
+			public void disconnected() {
+				setListening(false);
+			}
+		});
+	}
+
+	/**
+	 * @return the cached result of the SQL, null on a miss
+	 */
+	public synchronized Entry get(String sql) {
+		Entry e = entries.get(sql);
+		if (e == null) misses++;
+		else hits++;
+		return e;
+	}
+
+	/**
+	 * @return a sink recording the result for sql while passing it on to sink
+	 */
+	public Recorder record(String sql, RowSink sink) {
+		return new Recorder(sql, sink);
+	}
+
+	private synchronized long version() {
+		return version;
+	}
+
+	private synchronized void put(String sql, List<String> columns, List<List<String>> rows, long size, long startVersion) {
+		//something was invalidated while the query ran, the rows may be older than that write
+		if (!listening || startVersion != version) return;
+		Set<String> tables = new HashSet<String>();
+		for (int i = 0; i < TABLES.length; i++) {
+			if (MENTIONS[i].matcher(sql).find()) tables.add(TABLES[i]);
+		}
+		Entry old = entries.put(sql, new Entry(columns, rows, tables, size));
+		if (old != null) bytes -= old.bytes;
+		bytes += size;
+		Iterator<Entry> lru = entries.values().iterator();
+		while (bytes > maxBytes && lru.hasNext()) {
+			bytes -= lru.next().bytes;
+			lru.remove();
+			evictions++;
+		}
+	}
+
+	/**
+	 * Drops the results that read the table.
+	 *
+	 * @param table table name, any case
+	 */
+	public synchronized void invalidate(String table) {
+		version++;
+		String name = table.toLowerCase();
+		Iterator<Entry> it = entries.values().iterator();
+		while (it.hasNext()) {
+			Entry e = it.next();
+			if (e.tables.contains(name)) {
+				bytes -= e.bytes;
+				it.remove();
+				invalidations++;
+			}
+		}
+	}
+
+	private synchronized void setListening(boolean listening) {
+		this.listening = listening;
+		//notifications may have been missed
+		clear();
+	}
+
+	/**
+	 * Drops every result.
+	 */
+	public synchronized void clear() {
+		version++;
+		invalidations += entries.size();
+		entries.clear();
+		bytes = 0;
+	}
+
+	/**
+	 * Invalidates the tables the statement writes to.
+	 *
+	 * @param sql an INSERT, UPDATE, DELETE or DDL statement, CTEs included
+	 */
+	public void invalidateWritten(String sql) {
+		Matcher m = WRITE.matcher(sql);
+		while (m.find()) {
+			invalidate(m.group(1));
+		}
+	}
+
+	/**
+	 * @return hits / lookups, 0 before the first lookup
+	 */
+	public synchronized double hitRatio() {
+		return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+	}
+
+	public synchronized String stats() {
+		return String.format("%d hits, %d misses (%.1f%% hit ratio), %d results in %d KB, %d evicted, %d invalidated",
+			hits, misses, 100 * hitRatio(), entries.size(), bytes / 1024, evictions, invalidations);
+	}
+
+	private static long sizeOf(List<String> values) {
+		//list and string headers plus two bytes per char, roughly
+		long size = 32;
+		for (String v : values) {
+			size += 48 + (v == null ? 0 : 2L * v.length());
+		}
+		return size;
+	}
+}
@@ -0,0 +1,42 @@
+/*
+ * Migration 3: table change notifications
+ * =======================================
+ *
+ * Every statement that changes a shop table notifies the shop_tables
+ * channel with the table's name.
+ *
+ */
+
+
+import java.sql.SQLException;
+
+/**
+ * Adds statement-level triggers sending NOTIFY shop_tables, '<table>'.
+ * Clients caching report results (ReportCache) LISTEN on the channel to
+ * drop results of tables other clients wrote to. Notifications are only
+ * delivered on commit, and repeated ones within a transaction are folded
+ * into one.
+ *
+ */
+
+public class ReportNotifyMigration implements Migration{
+	private static final String[] TABLES = {"customer", "mechanic", "car", "owns", "service_request", "closed_request"};
+
+	public int version() {
+		return 3;
+	}
+
+	public String description() {
+		return "NOTIFY shop_tables on changes to the shop tables";
+	}
+
+	public void apply(MechanicShop esql) throws SQLException {
+		esql.executeUpdate("CREATE OR REPLACE FUNCTION notify_table_change() RETURNS trigger AS $$ BEGIN "
+			+ "PERFORM pg_notify('shop_tables', TG_TABLE_NAME); RETURN NULL; END; $$ LANGUAGE plpgsql");
+		for (String table : TABLES) {
+			esql.executeUpdate("DROP TRIGGER IF EXISTS trg_" + table + "_notify ON " + table);
+			esql.executeUpdate("CREATE TRIGGER trg_" + table + "_notify AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON " + table
+				+ " FOR EACH STATEMENT EXECUTE PROCEDURE notify_table_change()");
+		}
+	}
+}
@@ -0,0 +1,378 @@
+/*
+ * Repository behaviour check
+ * ==========================
+ *
+ * Runs the same operations on the in-memory engine and on the database
+ * and compares what they return.
+ *
+ */
+
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Exercises a ShopRepository with a fixed script: the ten menu reports,
+ * paged and streamed, the intake and close operations including the ones
+ * that must be refused, and archiving of a few requests opened for the
+ * purpose in months the data does not use. Every result is recorded under
+ * a name, in the order the operation defines and sorted where it defines
+ * none, with generated ids left out.
+ *
+ * The script always runs on a MemoryShopRepository loaded from the data
+ * directory, which checks the engine against itself: paged reports must
+ * hold the streamed report's rows, a closed request can not be closed or
+ * assigned again, and so on. Given a database, the script also runs on a
+ * JdbcShopRepository and both results are compared name by name. The
+ * database must be freshly loaded from the same directory; the script adds
+ * rows and archives partitions.
+ *
+ * Usage: java RepositoryCheck <data dir> [<dbname> <port> <user>]
+ * Exits with status 1 when a check failed.
+ *
+ */
+
+public class RepositoryCheck{
+	//rows per page when reading the paged reports
+	private static final int PAGE_ROWS = 500;
+	private static final String VIN = "CHKREPO000000001";
+
+	private String engine;
+	private int failures = 0;
+	private Map<String, List<List<String>>> results = new LinkedHashMap<String, List<List<String>>>();
+
+	private RepositoryCheck(String engine) {
+		this.engine = engine;
+	}
+
+	private void fail(String check, String message) {
+		System.out.println("FAIL " + engine + " " + check + ": " + message);
+		failures++;
+	}
+
+	private void expect(String check, boolean ok, String message) {
+		if (!ok) fail(check, message);
+	}
+
+	/**
+	 * @return the values trimmed, CHAR columns of the database are padded
+	 */
+	private static List<String> clean(List<String> row) {
+		List<String> cleaned = new ArrayList<String>(row.size());
+		for (String v : row) {
+			cleaned.add(v == null ? null : v.trim());
+		}
+		return cleaned;
+	}
+
+	private static List<List<String>> clean(List<List<String>> rows, boolean sort) {
+		List<List<String>> cleaned = new ArrayList<List<String>>(rows.size());
+		for (List<String> row : rows) {
+			cleaned.add(clean(row));
+		}
+		if (sort) Collections.sort(cleaned, ROWS);
+		return cleaned;
+	}
+
+	private static final Comparator<List<String>> ROWS = new Comparator<List<String>>() {
+		public int compare(List<String> a, List<String> b) {
+			for (int i = 0; i < Math.min(a.size(), b.size()); i++) {
+				String x = String.valueOf(a.get(i)), y = String.valueOf(b.get(i));
+				int c = x.compareTo(y);
+				if (c != 0) return c;
+			}
+			return Integer.compare(a.size(), b.size());
+		}
+	};
+
+	private void record(String check, List<List<String>> rows) {
+		results.put(check, rows);
+	}
+
+	/**
+	 * @return the values of one column
+	 */
+	private static List<List<String>> column(List<List<String>> rows, int column) {
+		List<List<String>> values = new ArrayList<List<String>>(rows.size());
+		for (List<String> row : rows) {
+			values.add(Arrays.asList(row.get(column)));
+		}
+		return values;
+	}
+
+	/**
+	 * Reads every page forward, then back again from the last one, and
+	 * checks the pages hold the streamed rows.
+	 */
+	private void paged(String check, Page.Source source, List<List<String>> streamed) throws Exception {
+		List<Page> pages = new ArrayList<Page>();
+		List<List<String>> rows = new ArrayList<List<String>>();
+		for (Page.Cursor cursor = Page.first(PAGE_ROWS); cursor != null; ) {
+			Page page = source.read(cursor);
+			pages.add(page);
+			rows.addAll(page.rows);
+			cursor = page.next();
+		}
+		expect(check, clean(rows, true).equals(clean(streamed, true)), rows.size() + " paged row(s), " + streamed.size() + " streamed");
+		Page page = pages.get(pages.size() - 1);
+		for (int i = pages.size() - 2; i >= 0; i--) {
+			Page.Cursor back = page.previous();
+			if (back == null) {
+				fail(check, "no page before page " + (i + 2));
+				return;
+			}
+			page = source.read(back);
+			expect(check, page.rows.equals(pages.get(i).rows), "page " + (i + 1) + " read backward differs");
+		}
+		expect(check, page.previous() == null, "a page before the first page");
+	}
+
+	private List<List<String>> report(ShopRepository repo, String name, Report report, boolean ordered) throws Exception {
+		RowSink.Collector rows = new RowSink.Collector();
+		report.run(rows);
+		List<List<String>> cleaned = clean(rows.rows(), !ordered);
+		record(name, cleaned);
+		return rows.rows();
+	}
+
+	/**
+	 * A report streamed into a sink.
+	 */
+	private interface Report{
+		void run(RowSink sink) throws Exception;
+	}
+
+	private void reports(final ShopRepository repo, String stage) throws Exception {
+		final String from = "03/01/2016", to = "09/01/2016";
+		List<List<String>> r6 = report(repo, stage + " report 6", new Report() {
+			public void run(RowSink sink) throws Exception {
+				repo.closedRequestsWithBillUnder100(from, to, sink);
+			}
+		}, false);
+		paged(stage + " report 6 paged", new Page.Source() {
+			public Page read(Page.Cursor cursor) throws Exception {
+				return repo.closedRequestsWithBillUnder100(from, to, cursor);
+			}
+		}, r6);
+		report(repo, stage + " report 7", new Report() {
+			public void run(RowSink sink) throws Exception {
+				repo.customersWithMoreThan20Cars(sink);
+			}
+		}, false);
+		List<List<String>> r8 = report(repo, stage + " report 8", new Report() {
+			public void run(RowSink sink) throws Exception {
+				repo.carsBefore1995With50000Miles(null, null, sink);
+			}
+		}, false);
+		paged(stage + " report 8 paged", new Page.Source() {
+			public Page read(Page.Cursor cursor) throws Exception {
+				return repo.carsBefore1995With50000Miles(null, null, cursor);
+			}
+		}, r8);
+		//cars with the same count may be cut off either way, only the counts are certain
+		RowSink.Collector r9 = new RowSink.Collector();
+		repo.carsWithMostServices(10, null, null, r9);
+		record(stage + " report 9 counts", column(clean(r9.rows(), false), 2));
+		List<List<String>> r10 = report(repo, stage + " report 10", new Report() {
+			public void run(RowSink sink) throws Exception {
+				repo.customersByTotalBill(null, null, sink);
+			}
+		}, false);
+		paged(stage + " report 10 paged", new Page.Source() {
+			public Page read(Page.Cursor cursor) throws Exception {
+				return repo.customersByTotalBill(null, null, cursor);
+			}
+		}, r10);
+		long previous = Long.MAX_VALUE;
+		for (List<String> row : r10) {
+			long n = Long.parseLong(row.get(2).trim());
+			expect(stage + " report 10", n <= previous, "not in descending order of the total");
+			previous = n;
+		}
+		report(repo, stage + " open requests", new Report() {
+			public void run(RowSink sink) throws Exception {
+				repo.openServiceRequests(sink);
+			}
+		}, true);
+		report(repo, stage + " statements 02/2016", new Report() {
+			public void run(RowSink sink) throws Exception {
+				repo.statementLines("02/01/2016", "03/01/2016", sink);
+			}
+		}, true);
+		report(repo, stage + " closed history", new Report() {
+			public void run(RowSink sink) throws Exception {
+				repo.closedHistory(sink);
+			}
+		}, false);
+	}
+
+	/**
+	 * @return the mechanic's open requests as the repository counts them
+	 */
+	private static int openOf(ShopRepository repo, int mechanicId) throws Exception {
+		for (int[] w : repo.mechanicWorkloads()) {
+			if (w[0] == mechanicId) return w[2];
+		}
+		return -1;
+	}
+
+	private boolean refused(String check, Report operation) {
+		try{
+			operation.run(null);
+		}catch(Exception e){
+			return true;
+		}
+		fail(check, "was not refused");
+		return false;
+	}
+
+	private void intake(final ShopRepository repo) throws Exception {
+		final int customer = repo.addCustomer(null, "Check", "Repository", "(555)555-0000", "1 Check Road");
+		record("customer added", clean(column(repo.findCustomers("Repository", null), 1), false));
+		final int mechanic = repo.addMechanic(null, "Check", "Mechanic", 5);
+		expect("mechanic added", repo.mechanicExists(mechanic), "mechanic " + mechanic + " not found");
+		expect("car absent", !repo.carExists(VIN), "car " + VIN + " exists before it was added");
+		repo.addCar(VIN, "Check", "Model", 2001);
+		expect("car added", repo.carExists(VIN), "car " + VIN + " not found");
+		refused("car added twice", new Report() {
+			public void run(RowSink sink) throws Exception {
+				repo.addCar(VIN, "Check", "Model", 2001);
+			}
+		});
+		repo.addOwnership(customer, VIN);
+		record("owners", clean(column(repo.ownersOf(VIN), 2), false));
+		record("cars owned", clean(repo.carsOwnedBy(customer), false));
+
+		final int rid = repo.openServiceRequest(customer, VIN, "02/10/2016", 1000, "repository check");
+		List<String> open = repo.findOpenServiceRequest(rid);
+		expect("request opened", open != null, "request " + rid + " is not open");
+		record("request opened", Arrays.asList(clean(open.subList(1, open.size()))));
+		expect("request assigned", repo.assignMechanic(rid, mechanic, openOf(repo, mechanic)) == -1, "assignment refused");
+		expect("request assigned", Integer.toString(mechanic).equals(repo.findOpenServiceRequest(rid).get(2)), "mechanic " + mechanic + " not recorded");
+		expect("stale assignment", repo.assignMechanic(rid, mechanic, openOf(repo, mechanic) + 1) == openOf(repo, mechanic), "assigned with a stale count");
+		repo.closeServiceRequest(rid, mechanic, "02/12/2016", "checked", 42);
+		expect("request closed", repo.findOpenServiceRequest(rid) == null, "request " + rid + " still open");
+		expect("mechanic freed", openOf(repo, mechanic) == 0, openOf(repo, mechanic) + " open request(s) left");
+		refused("closed twice", new Report() {
+			public void run(RowSink sink) throws Exception {
+				repo.closeServiceRequest(rid, mechanic, "02/13/2016", "again", 43);
+			}
+		});
+		expect("assigned after close", repo.assignMechanic(rid, mechanic, openOf(repo, mechanic)) == -2, "closed request assigned");
+
+		//bulk: one to close, then every reason to refuse one
+		final int second = repo.openServiceRequest(customer, VIN, "02/14/2016", 1100, "repository check");
+		List<List<String>> closes = new ArrayList<List<String>>();
+		closes.add(Arrays.asList(Integer.toString(second), Integer.toString(mechanic), "02/15/2016", "bulk", "50"));
+		closes.add(Arrays.asList(Integer.toString(second), Integer.toString(mechanic), "02/15/2016", "bulk", "50"));
+		closes.add(Arrays.asList(Integer.toString(rid), Integer.toString(mechanic), "02/15/2016", "bulk", "50"));
+		closes.add(Arrays.asList("999999999", Integer.toString(mechanic), "02/15/2016", "bulk", "50"));
+		List<List<String>> bulk = new ArrayList<List<String>>();
+		for (List<String> r : repo.closeServiceRequests(closes)) {
+			bulk.add(Arrays.asList(r.get(1) == null ? "refused" : "closed", r.get(2)));
+		}
+		record("bulk close", bulk);
+		expect("bulk close", bulk.size() == closes.size(), bulk.size() + " result(s) for " + closes.size() + " close(s)");
+	}
+
+	private void archive(ShopRepository repo) throws Exception {
+		int customer = Integer.parseInt(repo.findCustomers("Repository", "Check").get(0).get(0).trim());
+		int mechanic = repo.addMechanic(null, "Archive", "Mechanic", 3);
+		//January alone, January into February, February alone, and one still open in March
+		int a = repo.openServiceRequest(customer, VIN, "01/05/2015", 10, "archive check");
+		repo.closeServiceRequest(a, mechanic, "01/20/2015", "archived", 10);
+		int b = repo.openServiceRequest(customer, VIN, "01/25/2015", 20, "archive check");
+		repo.closeServiceRequest(b, mechanic, "02/03/2015", "archived", 20);
+		int d = repo.openServiceRequest(customer, VIN, "02/10/2015", 30, "archive check");
+		repo.closeServiceRequest(d, mechanic, "02/20/2015", "archived", 30);
+		int c = repo.openServiceRequest(customer, VIN, "03/01/2015", 40, "archive check");
+
+		//a request of January is closed in February, which stays
+		List<String> none = repo.archiveRequestPartitions("02/01/2015");
+		expect("archive 02/01/2015", none.isEmpty(), "archived " + none);
+		expect("archive 02/01/2015", repo.findOpenServiceRequest(c) != null, "open request gone");
+		List<List<String>> archived = new ArrayList<List<String>>();
+		for (String table : repo.archiveRequestPartitions("03/01/2015")) {
+			archived.add(Arrays.asList(table));
+		}
+		record("archive 03/01/2015", archived);
+		expect("archive 03/01/2015", archived.size() == 4, "archived " + archived);
+		expect("archive 03/01/2015", repo.findOpenServiceRequest(c) != null, "open request gone");
+	}
+
+	private int run(ShopRepository repo) {
+		try{
+			reports(repo, "loaded");
+			intake(repo);
+			archive(repo);
+			reports(repo, "changed");
+		}catch(Exception e){
+			fail("script", e.toString());
+		}
+		return failures;
+	}
+
+	/**
+	 * Compares the results of the same script on two engines.
+	 *
+	 * @return the number of differing results
+	 */
+	private static int compare(RepositoryCheck a, RepositoryCheck b) {
+		int differences = 0;
+		for (Map.Entry<String, List<List<String>>> e : a.results.entrySet()) {
+			List<List<String>> other = b.results.get(e.getKey());
+			if (e.getValue().equals(other)) continue;
+			differences++;
+			System.out.println("DIFF " + e.getKey() + ": " + a.engine + " " + e.getValue().size() + " row(s), "
+				+ b.engine + " " + (other == null ? "none" : other.size() + " row(s)"));
+			if (other == null) continue;
+			for (int i = 0; i < Math.min(e.getValue().size(), other.size()); i++) {
+				if (!e.getValue().get(i).equals(other.get(i))) {
+					System.out.println("  first difference at row " + (i + 1) + ": " + e.getValue().get(i) + " / " + other.get(i));
+					break;
+				}
+			}
+		}
+		return differences;
+	}
+
+	public static void main(String[] args) {
+		if (args.length != 1 && args.length != 4) {
+			System.err.println("Usage: java RepositoryCheck <data dir> [<dbname> <port> <user>]");
+			return;
+		}
+		int failed = 0;
+		MechanicShop esql = null;
+		try{
+			long started = System.currentTimeMillis();
+			RepositoryCheck memory = new RepositoryCheck("memory");
+			failed += memory.run(MemoryShopRepository.load(new File(args[0])));
+			System.out.println(memory.results.size() + " result(s) from the in-memory engine in " + (System.currentTimeMillis() - started) + " ms");
+			if (args.length == 4) {
+				esql = new MechanicShop(args[1], args[2], args[3], "");
+				Migrator.migrate(esql);
+				started = System.currentTimeMillis();
+				RepositoryCheck database = new RepositoryCheck("database");
+				failed += database.run(new JdbcShopRepository(esql));
+				System.out.println(database.results.size() + " result(s) from the database in " + (System.currentTimeMillis() - started) + " ms");
+				failed += compare(memory, database);
+			}
+		}catch(Exception e){
+			System.err.println(e.getMessage());
+			failed++;
+		}finally{
+			if (esql != null) esql.cleanup();
+		}
+		if (failed > 0) {
+			System.out.println(failed + " check(s) failed");
+			System.exit(1);
+		}
+		System.out.println("All checks passed");
+	}
+}
@@ -0,0 +1,49 @@
+/*
+ * Migration 5: service request change feed
+ * ========================================
+ *
+ * Every row written to Service_Request or Closed_Request notifies the
+ * shop_requests channel with the row's new state.
+ *
+ */
+
+
+import java.sql.SQLException;
+
+/**
+ * Adds row-level triggers sending a flat JSON object on shop_requests:
+ * op (opened, updated or closed), rid, the request's status, date,
+ * customer_id, car_vin, mechanic_id and the start of its complain, or
+ * for a close its wid, mid and bill; and pid, the backend of the session
+ * that wrote it. ChangeFeed LISTENs on the channel. Payloads are kept
+ * well below the 8000 byte limit of NOTIFY.
+ *
+ */
+
+public class RequestFeedMigration implements Migration{
+	public int version() {
+		return 5;
+	}
+
+	public String description() {
+		return "NOTIFY shop_requests with every service request change";
+	}
+
+	public void apply(MechanicShop esql) throws SQLException {
+		esql.executeUpdate("CREATE OR REPLACE FUNCTION notify_service_request() RETURNS trigger AS $$ BEGIN "
+			+ "PERFORM pg_notify('shop_requests', json_build_object("
+			+ "'op', CASE WHEN TG_OP = 'INSERT' THEN 'opened' ELSE 'updated' END, 'rid', NEW.rid, 'status', NEW.status, 'date', NEW.date, "
+			+ "'customer_id', NEW.customer_id, 'car_vin', NEW.car_vin, 'mechanic_id', NEW.mechanic_id, 'complain', left(NEW.complain, 200), "
+			+ "'pid', pg_backend_pid())::text); RETURN NULL; END; $$ LANGUAGE plpgsql");
+		esql.executeUpdate("CREATE OR REPLACE FUNCTION notify_closed_request() RETURNS trigger AS $$ BEGIN "
+			+ "PERFORM pg_notify('shop_requests', json_build_object("
+			+ "'op', 'closed', 'rid', NEW.rid, 'status', 'C', 'date', NEW.date, 'wid', NEW.wid, 'mid', NEW.mid, 'bill', NEW.bill, "
+			+ "'pid', pg_backend_pid())::text); RETURN NULL; END; $$ LANGUAGE plpgsql");
+		esql.executeUpdate("DROP TRIGGER IF EXISTS trg_service_request_feed ON Service_Request");
+		esql.executeUpdate("CREATE TRIGGER trg_service_request_feed AFTER INSERT OR UPDATE ON Service_Request"
+			+ " FOR EACH ROW EXECUTE PROCEDURE notify_service_request()");
+		esql.executeUpdate("DROP TRIGGER IF EXISTS trg_closed_request_feed ON Closed_Request");
+		esql.executeUpdate("CREATE TRIGGER trg_closed_request_feed AFTER INSERT ON Closed_Request"
+			+ " FOR EACH ROW EXECUTE PROCEDURE notify_closed_request()");
+	}
+}
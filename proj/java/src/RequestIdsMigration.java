@@ -0,0 +1,51 @@
+/*
+ * Migration 7: unique service request ids
+ * =======================================
+ *
+ * Service_Request's primary key is (rid, date) because it is partitioned
+ * by date, so nothing kept two requests from having the same rid.
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Every join of Closed_Request to Service_Request is on rid alone and
+ * relies on the rid naming one request. New requests take their rid from
+ * seq_rid_id, which is now also the column default; a row trigger refuses
+ * a rid that is already taken, for rows written with an explicit rid.
+ * Requests inserting the same rid at the same time serialize on an
+ * advisory lock of the rid, the second then sees the first.
+ *
+ */
+
+public class RequestIdsMigration implements Migration{
+	//first key of the advisory lock taken per rid
+	static final int RID_LOCK = 1660045;
+
+	public int version() {
+		return 7;
+	}
+
+	public String description() {
+		return "unique rid across Service_Request partitions";
+	}
+
+	public void apply(MechanicShop esql) throws SQLException {
+		List<List<String>> duplicate = esql.executeQueryAndReturnResult("SELECT rid FROM Service_Request GROUP BY rid HAVING COUNT(*) > 1 LIMIT 1");
+		if (!duplicate.isEmpty()) {
+			throw new SQLException("rid " + duplicate.get(0).get(0) + " is used by more than one service request, remove the duplicates first");
+		}
+		esql.executeUpdate("ALTER TABLE Service_Request ALTER COLUMN rid SET DEFAULT nextval('seq_rid_id')");
+		esql.executeUpdate("CREATE OR REPLACE FUNCTION check_service_request_rid() RETURNS trigger AS $$ BEGIN "
+			+ "PERFORM pg_advisory_xact_lock(" + RID_LOCK + ", NEW.rid); "
+			+ "IF (SELECT COUNT(*) FROM Service_Request S WHERE S.rid = NEW.rid) > 1 THEN "
+			+ "RAISE EXCEPTION 'service request % already exists', NEW.rid USING ERRCODE = 'unique_violation'; END IF; "
+			+ "RETURN NULL; END; $$ LANGUAGE plpgsql");
+		esql.executeUpdate("DROP TRIGGER IF EXISTS trg_service_request_rid ON Service_Request");
+		esql.executeUpdate("CREATE TRIGGER trg_service_request_rid AFTER INSERT OR UPDATE OF rid ON Service_Request"
+			+ " FOR EACH ROW EXECUTE PROCEDURE check_service_request_rid()");
+	}
+}
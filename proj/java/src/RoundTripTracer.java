@@ -0,0 +1,241 @@
+/*
+ * Round-trip tracing
+ * ==================
+ *
+ * Counts what each menu operation asks of the database: statements,
+ * round trips, rows and bytes.
+ *
+ */
+
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+
+/**
+ * Wraps JDBC connections in dynamic proxies that count, for the operation
+ * running on the calling thread, every statement executed and the round
+ * trips it takes. A round trip is an execute, a commit or rollback, a
+ * connection check, describing a prepared statement, or a further fetch
+ * of a ResultSet read with a fetch size outside autocommit (in autocommit
+ * the driver reads every row at once). Rows are rows read plus rows
+ * updated; bytes are the SQL and parameters sent and the values read, as
+ * characters, so they are an estimate of the traffic.
+ *
+ * Tracing is on when shop.trace is set (the counts of each operation are
+ * printed) or shop.roundTripBudgets names a properties file of operation
+ * name = most round trips allowed. An operation going over its budget is
+ * reported on stderr and counted in violations().
+ *
+ * Work on other threads (warm-up, listeners, the write-behind drainer,
+ * dashboard workers) is not part of any operation and is not counted,
+ * except the shard queries ShardedShopRepository runs for the operation,
+ * which attach() to its counts.
+ *
+ */
+
+public class RoundTripTracer{
+	/**
+	 * What one operation asked of the database.
+	 */
+	public static class Counts{
+		public long statements, roundTrips, rows, bytesSent, bytesReceived;
+
+		public String toString() {
+			return statements + " statement(s), " + roundTrips + " round trip(s), " + rows + " row(s), "
+				+ bytesSent + " bytes sent, " + bytesReceived + " bytes received";
+		}
+	}
+
+	private static final boolean PRINT = System.getProperty("shop.trace") != null;
+	private static final Properties BUDGETS = loadBudgets(System.getProperty("shop.roundTripBudgets"));
+	private static final ThreadLocal<Counts> CURRENT = new ThreadLocal<Counts>();
+	private static int violations = 0;
+
+	private static Properties loadBudgets(String file) {
+		Properties budgets = new Properties();
+		if (file == null) return budgets;
+		try{
+			FileInputStream in = new FileInputStream(file);
+			try{
+				budgets.load(in);
+			}finally{
+				in.close();
+			}
+		}catch(IOException e){
+			System.err.println("Round-trip budgets not read: " + e.getMessage());
+		}
+		return budgets;
+	}
+
+	/**
+	 * @return true when connections are wrapped
+	 */
+	public static boolean enabled() {
+		return PRINT || System.getProperty("shop.roundTripBudgets") != null;
+	}
+
+	/**
+	 * Starts counting for an operation on the calling thread.
+	 */
+	public static void begin() {
+		if (enabled()) CURRENT.set(new Counts());
+	}
+
+	/**
+	 * Stops counting, prints the counts and checks them against the budget.
+	 *
+	 * @param operation the operation's name, e.g. InsertServiceRequest
+	 * @return the counts, null when tracing is off
+	 */
+	public static Counts end(String operation) {
+		Counts counts = CURRENT.get();
+		CURRENT.remove();
+		if (counts == null) return null;
+		if (PRINT) System.out.println("[trace] " + operation + ": " + counts);
+		String budget = BUDGETS.getProperty(operation);
+		if (budget != null && counts.roundTrips > Long.parseLong(budget.trim())) {
+			System.err.println("Round-trip budget exceeded: " + operation + " made " + counts.roundTrips + " round trips, its budget is " + budget.trim());
+			synchronized (RoundTripTracer.class) {
+				violations++;
+			}
+		}
+		return counts;
+	}
+
+	/**
+	 * @return the counts of the operation running on the calling thread,
+	 * null when there is none
+	 */
+	public static Counts current() {
+		return CURRENT.get();
+	}
+
+	/**
+	 * Counts what the calling thread does into the counts of an operation
+	 * running on another thread.
+	 *
+	 * @param counts from current() on the operation's thread, null to stop
+	 */
+	public static void attach(Counts counts) {
+		if (counts == null) CURRENT.remove();
+		else CURRENT.set(counts);
+	}
+
+	/**
+	 * @return how many operations went over their budget
+	 */
+	public static synchronized int violations() {
+		return violations;
+	}
+
+	/**
+	 * @return the connection, counting when tracing is on
+	 */
+	public static Connection wrap(Connection connection) {
+		if (!enabled()) return connection;
+		return (Connection) proxy(connection, Connection.class);
+	}
+
+	private static Object proxy(Object target, Class<?> type) {
+		return Proxy.newProxyInstance(RoundTripTracer.class.getClassLoader(), new Class<?>[]{type}, new Handler(target));
+	}
+
+	private static void count(long statements, long roundTrips, long rows, long sent, long received) {
+		Counts c = CURRENT.get();
+		if (c == null) return;
+		//shard threads attached to the operation count into the same object
+		synchronized (c) {
+			c.statements += statements;
+			c.roundTrips += roundTrips;
+			c.rows += rows;
+			c.bytesSent += sent;
+			c.bytesReceived += received;
+		}
+	}
+
+	private static long sizeOf(Object value) {
+		return value == null ? 0 : value.toString().length();
+	}
+
+	/**
+	 * Counts the calls that reach the server and wraps the statements and
+	 * result sets it hands out.
+	 */
+	private static class Handler implements InvocationHandler{
+		private Object target;
+		//result sets: rows read so far, and the statement's fetch size
+		private long read = 0;
+		private int fetchSize = 0;
+
+		Handler(Object target) {
+			this.target = target;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (target instanceof ResultSet && name.equals("next") && fetchSize > 0 && read > 0 && read % fetchSize == 0) {
+				//the rows fetched so far are used up, the driver asks for more
+				count(0, 1, 0, 0, 0);
+			}
+			Object result;
+			try{
+				result = method.invoke(target, args);
+			}catch(InvocationTargetException e){
+				throw e.getCause();
+			}
+			if (target instanceof Statement) {
+				if (name.startsWith("execute")) {
+					long sent = args != null && args.length > 0 && args[0] instanceof String ? ((String) args[0]).length() : 0;
+					long updated = 0;
+					if (result instanceof Integer) updated = (Integer) result;
+					else if (result instanceof int[]) for (int n : (int[]) result) updated += Math.max(n, 0);
+					count(1, 1, updated, sent, 0);
+				} else if (name.startsWith("set") && args != null && args.length == 2) {
+					//a parameter, e.g. setObject(index, value)
+					count(0, 0, 0, sizeOf(args[1]), 0);
+				} else if (name.equals("getParameterMetaData") || name.equals("getMoreResults")) {
+					count(0, 1, 0, 0, 0);
+				}
+			} else if (target instanceof Connection) {
+				if (name.equals("commit") || name.equals("rollback") || name.equals("isValid")) {
+					count(0, 1, 0, 0, 0);
+				} else if (name.equals("prepareStatement") || name.equals("prepareCall")) {
+					count(0, 0, 0, sizeOf(args[0]), 0);
+				}
+			} else if (target instanceof ResultSet) {
+				if (name.equals("next") && Boolean.TRUE.equals(result)) {
+					read++;
+					count(0, 0, 1, 0, 0);
+				} else if (name.startsWith("get") && args != null && args.length == 1 && !name.equals("getStatement")) {
+					count(0, 0, 0, 0, sizeOf(result));
+				}
+			}
+			return wrapResult(result);
+		}
+
+		private Object wrapResult(Object result) throws SQLException {
+			if (result instanceof CallableStatement) return proxy(result, CallableStatement.class);
+			if (result instanceof PreparedStatement) return proxy(result, PreparedStatement.class);
+			if (result instanceof Statement) return proxy(result, Statement.class);
+			if (result instanceof ResultSet) {
+				ResultSet rs = (ResultSet) result;
+				Handler h = new Handler(rs);
+				//in autocommit the driver ignores the fetch size and reads every row at once
+				if (!rs.getStatement().getConnection().getAutoCommit()) h.fetchSize = rs.getFetchSize();
+				return Proxy.newProxyInstance(RoundTripTracer.class.getClassLoader(), new Class<?>[]{ResultSet.class}, h);
+			}
+			return result;
+		}
+	}
+}
@@ -0,0 +1,79 @@
+/*
+ * Report row consumer
+ * ===================
+ *
+ * Reports are streamed row by row into a RowSink instead of being built
+ * up as one big list, so large results never have to fit in memory.
+ *
+ */
+
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Receives the rows of a report. header() is called once before the first
+ * row, with the column names of the report.
+ *
+ */
+
+public interface RowSink{
+	void header(List<String> columns);
+
+	void row(List<String> values);
+
+	/**
+	 * Prints rows to standard out the way executeQueryAndPrintResult does,
+	 * the header only once a row exists.
+	 */
+	public static class Printer implements RowSink{
+		private List<String> columns;
+		private int rowCount = 0;
+
+		public void header(List<String> columns) {
+			this.columns = columns;
+		}
+
+		public void row(List<String> values) {
+			if (rowCount == 0 && columns != null) {
+				for (String c : columns) {
+					System.out.print(c + "\t");
+				}
+				System.out.println();
+			}
+			for (String v : values) {
+				System.out.print(v + "\t");
+			}
+			System.out.println();
+			rowCount++;
+		}
+
+		public int rowCount() {
+			return rowCount;
+		}
+	}
+
+	/**
+	 * Collects rows in memory, for small results.
+	 */
+	public static class Collector implements RowSink{
+		private List<String> columns = new ArrayList<String>();
+		private List<List<String>> rows = new ArrayList<List<String>>();
+
+		public void header(List<String> columns) {
+			this.columns = columns;
+		}
+
+		public void row(List<String> values) {
+			rows.add(values);
+		}
+
+		public List<String> columns() {
+			return columns;
+		}
+
+		public List<List<String>> rows() {
+			return rows;
+		}
+	}
+}
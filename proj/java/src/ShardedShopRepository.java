@@ -0,0 +1,736 @@
+/*
+ * Sharded data access
+ * ===================
+ *
+ * The shop's customers, and everything that belongs to them, split
+ * across several databases.
+ *
+ */
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * ShopRepository over N databases with the same schema, the shards. A
+ * customer lives on shard floorMod(id, N) together with its ownerships,
+ * service requests and closed requests, and a copy of every car it owns
+ * or brought in. Mechanics are on every shard, cars nobody owns on shard
+ * 0. sql/shard.sql splits the data this way and makes the sequences of
+ * shard s hand out ids equal to s modulo N, so the id of a new customer
+ * names its shard and ids of different shards never collide.
+ *
+ * Operations on one customer go to its shard. Lookups by VIN or rid and
+ * the reports are sent to every shard at once. Report rows are passed on
+ * as the shards return them: shard after shard, or merged in the report's
+ * order (k-way merge) when it has one. Report 9 adds up the requests of a
+ * car across shards and keeps the k largest in a heap. Paged reports merge
+ * the pages the shards return for the same cursor.
+ *
+ * Writes to several shards (adding a mechanic, copying a car to its new
+ * owner's shard) are not one transaction, and assignMechanic's check is
+ * atomic only on the shard of the request.
+ *
+ */
+
+public class ShardedShopRepository implements ShopRepository{
+	//rows buffered per shard while a merge waits for another shard
+	private static final int QUEUE_ROWS = 1000;
+	//how many rid -> shard lookups are remembered
+	private static final int KNOWN_REQUESTS = 10000;
+	//how often gather empties the queues while waiting for the shards to stop
+	private static final long STOP_POLL_MS = 10;
+	//ends a shard's rows in its queue
+	private static final List<String> END = new ArrayList<String>();
+
+	//orders of the paged reports' keys
+	private static final Comparator<List<String>> BILL_WID = by(0, true, false, by(1, true, false, null));
+	private static final Comparator<List<String>> DATE_RID = by(0, false, false, by(1, true, false, null));
+	private static final Comparator<List<String>> TOTAL_ID = by(0, true, true, by(1, true, false, null));
+
+	/**
+	 * Work sent to one shard.
+	 */
+	private interface ShardCall<T>{
+		T call(JdbcShopRepository shard) throws Exception;
+	}
+
+	/**
+	 * A report run on one shard.
+	 */
+	private interface ShardReport{
+		void run(JdbcShopRepository shard, RowSink sink) throws Exception;
+	}
+
+	/**
+	 * The next row of a shard, while merging.
+	 */
+	private static class Head{
+		List<String> row;
+		int shard;
+
+		Head(List<String> row, int shard) {
+			this.row = row;
+			this.shard = shard;
+		}
+	}
+
+	/**
+	 * Adds up the requests of each car as the shards' rows arrive in VIN
+	 * order, keeping the k cars with the most in a min-heap.
+	 */
+	private static class TopCars implements RowSink{
+		private int k;
+		private PriorityQueue<List<String>> top;
+		private List<String> columns = new ArrayList<String>();
+		//the car being added up, (make, model, n, vin)
+		private List<String> car = null;
+		private long n = 0;
+
+		TopCars(int k) {
+			this.k = k;
+			this.top = new PriorityQueue<List<String>>(k + 1, by(2, true, false, null));
+		}
+
+		public void header(List<String> columns) {
+			this.columns = columns.subList(0, 3);
+		}
+
+		public void row(List<String> values) {
+			if (car != null && car.get(3).equals(values.get(3))) {
+				n += Long.parseLong(values.get(2).trim());
+				return;
+			}
+			flush();
+			car = values;
+			n = Long.parseLong(values.get(2).trim());
+		}
+
+		private void flush() {
+			if (car == null) return;
+			top.add(Arrays.asList(car.get(0), car.get(1), Long.toString(n)));
+			if (top.size() > k) top.poll();
+			car = null;
+		}
+
+		/**
+		 * Passes on the k cars, most requests first.
+		 */
+		void writeTo(RowSink sink) {
+			flush();
+			List<List<String>> rows = new ArrayList<List<String>>(top);
+			Collections.sort(rows, by(2, true, true, null));
+			sink.header(columns);
+			for (List<String> row : rows) {
+				sink.row(row);
+			}
+		}
+	}
+
+	private List<MechanicShop> shops;
+	private List<JdbcShopRepository> shards = new ArrayList<JdbcShopRepository>();
+	private ExecutorService executor = Executors.newCachedThreadPool();
+	//shard of the next customer added without an id
+	private int nextShard = 0;
+	private Map<Integer, Integer> requestShards = new LinkedHashMap<Integer, Integer>(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<Integer, Integer> eldest) {
+			return size() > KNOWN_REQUESTS;
+		}
+	};
+
+	/**
+	 * @param shops the connected shards in shard order; the first is the
+	 * shop this repository belongs to, the others are closed with it
+	 */
+	public ShardedShopRepository(List<MechanicShop> shops) {
+		this.shops = shops;
+		for (MechanicShop shop : shops) {
+			shards.add(new JdbcShopRepository(shop));
+		}
+	}
+
+	/**
+	 * @return the number of shards
+	 */
+	public int size() {
+		return shards.size();
+	}
+
+	private int shardOf(int customerId) {
+		return Math.floorMod(customerId, shards.size());
+	}
+
+	/**
+	 * @return rows ordered by a column, numerically or as text, then by then
+	 */
+	private static Comparator<List<String>> by(final int column, final boolean numeric, final boolean descending, final Comparator<List<String>> then) {
+		return new Comparator<List<String>>() {
+			public int compare(List<String> a, List<String> b) {
+				String x = a.get(column).trim(), y = b.get(column).trim();
+				int c = numeric ? Long.compare(Long.parseLong(x), Long.parseLong(y)) : x.compareTo(y);
+				if (descending) c = -c;
+				return c != 0 || then == null ? c : then.compare(a, b);
+			}
+		};
+	}
+
+	//--- scatter and gather ---
+
+	/**
+	 * Runs the work on every shard at once.
+	 *
+	 * @return the results in shard order
+	 * @throws Exception the first shard's failure, once every shard is done
+	 */
+	private <T> List<T> scatter(final ShardCall<T> work) throws Exception {
+		List<Future<T>> futures = new ArrayList<Future<T>>();
+		final RoundTripTracer.Counts counts = RoundTripTracer.current();
+		for (final JdbcShopRepository shard : shards) {
+			futures.add(executor.submit(new Callable<T>() {
+				public T call() throws Exception {
+					RoundTripTracer.attach(counts);
+					try{
+						return work.call(shard);
+					}finally{
+						RoundTripTracer.attach(null);
+					}
+				}
+			}));
+		}
+		List<T> results = new ArrayList<T>();
+		Exception failure = null;
+		//the other shards keep using their connections, the next operation must not run on them meanwhile
+		for (Future<T> f : futures) {
+			try{
+				results.add(f.get());
+			}catch(ExecutionException e){
+				if (failure == null) failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+			}
+		}
+		if (failure != null) throw failure;
+		return results;
+	}
+
+	private static void put(BlockingQueue<List<String>> queue, List<String> row, AtomicBoolean stopped) {
+		//the merge gave up, stop the shard's report
+		if (stopped.get()) throw new CancellationException();
+		try{
+			queue.put(row);
+		}catch(InterruptedException e){
+			//the merge gave up, stop the shard's report
+			Thread.currentThread().interrupt();
+			throw new CancellationException();
+		}
+	}
+
+	/**
+	 * Runs the report on every shard at once and streams the rows to the
+	 * sink, holding at most QUEUE_ROWS rows per shard. Returns only when
+	 * every shard's report ended, also when one failed, so no query is
+	 * left running on a shard's connection.
+	 *
+	 * @param order order of the shards' rows to merge them in, null to
+	 * pass them on shard after shard
+	 * @throws Exception the failure of a shard
+	 */
+	private void gather(final ShardReport report, Comparator<List<String>> order, RowSink sink) throws Exception {
+		int n = shards.size();
+		List<BlockingQueue<List<String>>> queues = new ArrayList<BlockingQueue<List<String>>>();
+		final Exception[] errors = new Exception[n];
+		final AtomicBoolean stopped = new AtomicBoolean(false);
+		final CountDownLatch finished = new CountDownLatch(n);
+		final RoundTripTracer.Counts counts = RoundTripTracer.current();
+		for (int i = 0; i < n; i++) {
+			final int shard = i;
+			final BlockingQueue<List<String>> queue = new ArrayBlockingQueue<List<String>>(QUEUE_ROWS);
+			queues.add(queue);
+			executor.execute(new Runnable() {
+				public void run() {
+					RoundTripTracer.attach(counts);
+					try{
+						produce();
+					}finally{
+						RoundTripTracer.attach(null);
+						finished.countDown();
+					}
+				}
+
+				private void produce() {
+					try{
+						report.run(shards.get(shard), new RowSink() {
+							public void header(List<String> columns) {
+								put(queue, columns, stopped);
+							}
+
+							public void row(List<String> values) {
+								put(queue, values, stopped);
+							}
+						});
+					}catch(CancellationException e){
+						return;
+					}catch(Exception e){
+						errors[shard] = e;
+					}
+					try{
+						put(queue, END, stopped);
+					}catch(CancellationException e){
+						// stopped.
+					}
+				}
+			});
+		}
+		try{
+			//every shard sends its header first
+			List<String> header = null;
+			boolean[] done = new boolean[n];
+			for (int i = 0; i < n; i++) {
+				List<String> first = queues.get(i).take();
+				if (first == END) {
+					if (errors[i] != null) throw errors[i];
+					done[i] = true;
+				} else {
+					header = first;
+				}
+			}
+			if (header == null) return;
+			sink.header(header);
+			if (order == null) {
+				for (int i = 0; i < n; i++) {
+					if (done[i]) continue;
+					List<String> row;
+					while ((row = queues.get(i).take()) != END) {
+						sink.row(row);
+					}
+					if (errors[i] != null) throw errors[i];
+				}
+				return;
+			}
+			final Comparator<List<String>> rows = order;
+			PriorityQueue<Head> heads = new PriorityQueue<Head>(n, new Comparator<Head>() {
+				public int compare(Head a, Head b) {
+					return rows.compare(a.row, b.row);
+				}
+			});
+			for (int i = 0; i < n; i++) {
+				if (done[i]) continue;
+				List<String> row = queues.get(i).take();
+				if (row != END) heads.add(new Head(row, i));
+				else if (errors[i] != null) throw errors[i];
+			}
+			while (!heads.isEmpty()) {
+				Head head = heads.poll();
+				sink.row(head.row);
+				List<String> row = queues.get(head.shard).take();
+				if (row != END) heads.add(new Head(row, head.shard));
+				else if (errors[head.shard] != null) throw errors[head.shard];
+			}
+		}finally{
+			//an interrupt does not stop a running query, the shards stop at their next row instead;
+			//emptying the queues unblocks a shard waiting to hand one over
+			stopped.set(true);
+			do{
+				for (BlockingQueue<List<String>> queue : queues) {
+					queue.clear();
+				}
+			}while (!finished.await(STOP_POLL_MS, TimeUnit.MILLISECONDS));
+		}
+	}
+
+	//--- requests by rid ---
+
+	private synchronized void remember(int rid, int shard) {
+		requestShards.put(rid, shard);
+	}
+
+	private synchronized Integer knownShard(int rid) {
+		return requestShards.get(rid);
+	}
+
+	/**
+	 * @return the shard holding the open request, its home shard
+	 * floorMod(rid, N) if no shard has it open
+	 */
+	private int requestShard(int rid) throws Exception {
+		Integer known = knownShard(rid);
+		if (known != null) return known;
+		findOpenServiceRequest(rid);
+		known = knownShard(rid);
+		return known != null ? known : Math.floorMod(rid, shards.size());
+	}
+
+	public List<String> findOpenServiceRequest(final int rid) throws Exception {
+		Integer known = knownShard(rid);
+		if (known != null) return shards.get(known).findOpenServiceRequest(rid);
+		//loaded requests may be on any shard, new ones on floorMod(rid, N)
+		List<List<String>> found = scatter(new ShardCall<List<String>>() {
+			public List<String> call(JdbcShopRepository shard) throws Exception {
+				return shard.findOpenServiceRequest(rid);
+			}
+		});
+		for (int i = 0; i < found.size(); i++) {
+			if (found.get(i) != null) {
+				remember(rid, i);
+				return found.get(i);
+			}
+		}
+		return null;
+	}
+
+	public int closeServiceRequest(int rid, int mechanicId, String date, String comment, int bill) throws Exception {
+		return shards.get(requestShard(rid)).closeServiceRequest(rid, mechanicId, date, comment, bill);
+	}
+
+	/**
+	 * Every shard is sent every close and closes the requests it holds;
+	 * the result of a close is the shard's that knew the request.
+	 */
+	public List<List<String>> closeServiceRequests(final List<List<String>> closes) throws Exception {
+		List<List<List<String>>> perShard = scatter(new ShardCall<List<List<String>>>() {
+			public List<List<String>> call(JdbcShopRepository shard) throws Exception {
+				return shard.closeServiceRequests(closes);
+			}
+		});
+		List<List<String>> results = new ArrayList<List<String>>(closes.size());
+		for (int i = 0; i < closes.size(); i++) {
+			List<String> result = null;
+			for (List<List<String>> shard : perShard) {
+				List<String> r = shard.get(i);
+				//closed beats any reason, any reason beats not being on the shard
+				if (r.get(1) != null) {
+					result = r;
+					break;
+				}
+				if (result == null || "no such service request".equals(result.get(2))) result = r;
+			}
+			results.add(result);
+		}
+		return results;
+	}
+
+	//--- one customer ---
+
+	public int addCustomer(Integer id, String fname, String lname, String phone, String address) throws Exception {
+		int shard;
+		if (id != null) {
+			shard = shardOf(id);
+		} else {
+			//the shard's sequence hands out an id of that shard
+			synchronized (this) {
+				shard = nextShard;
+				nextShard = (nextShard + 1) % shards.size();
+			}
+		}
+		return shards.get(shard).addCustomer(id, fname, lname, phone, address);
+	}
+
+	public void addOwnership(int customerId, String vin) throws Exception {
+		int shard = shardOf(customerId);
+		ensureCar(shard, vin);
+		shards.get(shard).addOwnership(customerId, vin);
+	}
+
+	public List<List<String>> carsOwnedBy(int customerId) throws Exception {
+		return shards.get(shardOf(customerId)).carsOwnedBy(customerId);
+	}
+
+	public int openServiceRequest(int customerId, String vin, String date, int odometer, String complain) throws Exception {
+		int shard = shardOf(customerId);
+		ensureCar(shard, vin);
+		int rid = shards.get(shard).openServiceRequest(customerId, vin, date, odometer, complain);
+		remember(rid, shard);
+		return rid;
+	}
+
+	/**
+	 * Copies the car to the shard unless it is there already.
+	 */
+	private void ensureCar(int shard, final String vin) throws Exception {
+		if (shards.get(shard).carExists(vin)) return;
+		List<List<String>> copies = scatter(new ShardCall<List<String>>() {
+			public List<String> call(JdbcShopRepository shard) throws Exception {
+				return shard.findCar(vin);
+			}
+		});
+		for (List<String> car : copies) {
+			if (car != null) {
+				shards.get(shard).addCar(car.get(0), car.get(1), car.get(2), Integer.parseInt(car.get(3).trim()));
+				return;
+			}
+		}
+		//on no shard, the insert needing it fails on its foreign key
+	}
+
+	//--- everyone's ---
+
+	public List<List<String>> findCustomers(final String lname, final String fname) throws Exception {
+		List<List<String>> rows = new ArrayList<List<String>>();
+		for (List<List<String>> shard : scatter(new ShardCall<List<List<String>>>() {
+			public List<List<String>> call(JdbcShopRepository shard) throws Exception {
+				return shard.findCustomers(lname, fname);
+			}
+		})) {
+			rows.addAll(shard);
+		}
+		Collections.sort(rows, by(0, true, false, null));
+		return rows;
+	}
+
+	/**
+	 * Added on shard 0, which hands out the id, then on the others.
+	 */
+	public int addMechanic(Integer id, final String fname, final String lname, final int experience) throws Exception {
+		final int mid = shards.get(0).addMechanic(id, fname, lname, experience);
+		final JdbcShopRepository first = shards.get(0);
+		scatter(new ShardCall<Integer>() {
+			public Integer call(JdbcShopRepository shard) throws Exception {
+				return shard == first ? mid : shard.addMechanic(mid, fname, lname, experience);
+			}
+		});
+		return mid;
+	}
+
+	public boolean mechanicExists(int id) throws Exception {
+		return shards.get(0).mechanicExists(id);
+	}
+
+	/**
+	 * Added on shard 0; addOwnership and openServiceRequest copy it to the
+	 * customer's shard.
+	 */
+	public void addCar(String vin, String make, String model, int year) throws Exception {
+		shards.get(0).addCar(vin, make, model, year);
+	}
+
+	public boolean carExists(final String vin) throws Exception {
+		for (Boolean exists : scatter(new ShardCall<Boolean>() {
+			public Boolean call(JdbcShopRepository shard) throws Exception {
+				return shard.carExists(vin);
+			}
+		})) {
+			if (exists) return true;
+		}
+		return false;
+	}
+
+	public List<List<String>> ownersOf(final String vin) throws Exception {
+		List<List<String>> rows = new ArrayList<List<String>>();
+		for (List<List<String>> shard : scatter(new ShardCall<List<List<String>>>() {
+			public List<List<String>> call(JdbcShopRepository shard) throws Exception {
+				return shard.ownersOf(vin);
+			}
+		})) {
+			rows.addAll(shard);
+		}
+		return rows;
+	}
+
+	public void vins(RowSink sink) throws Exception {
+		gather(new ShardReport() {
+			public void run(JdbcShopRepository shard, RowSink sink) throws Exception {
+				shard.vins(sink);
+			}
+		}, null, sink);
+	}
+
+	//--- scheduling ---
+
+	/**
+	 * A mechanic's open requests added up over the shards.
+	 */
+	public List<int[]> mechanicWorkloads() throws Exception {
+		Map<Integer, int[]> workloads = new LinkedHashMap<Integer, int[]>();
+		for (List<int[]> shard : scatter(new ShardCall<List<int[]>>() {
+			public List<int[]> call(JdbcShopRepository shard) throws Exception {
+				return shard.mechanicWorkloads();
+			}
+		})) {
+			for (int[] w : shard) {
+				int[] sum = workloads.get(w[0]);
+				if (sum == null) workloads.put(w[0], w.clone());
+				else sum[2] += w[2];
+			}
+		}
+		return new ArrayList<int[]>(workloads.values());
+	}
+
+	/**
+	 * The mechanic's open requests on the other shards are counted first,
+	 * the request's shard then checks and assigns under its lock.
+	 */
+	public int assignMechanic(int rid, final int mechanicId, int expectedOpen) throws Exception {
+		final JdbcShopRepository home = shards.get(requestShard(rid));
+		int elsewhere = 0;
+		for (Integer open : scatter(new ShardCall<Integer>() {
+			public Integer call(JdbcShopRepository shard) throws Exception {
+				if (shard == home) return 0;
+				for (int[] w : shard.mechanicWorkloads()) {
+					if (w[0] == mechanicId) return w[2];
+				}
+				return 0;
+			}
+		})) {
+			elsewhere += open;
+		}
+		int open = home.assignMechanic(rid, mechanicId, expectedOpen - elsewhere);
+		return open < 0 ? open : open + elsewhere;
+	}
+
+	//--- reports ---
+
+	public void closedRequestsWithBillUnder100(final String from, final String to, RowSink sink) throws Exception {
+		gather(new ShardReport() {
+			public void run(JdbcShopRepository shard, RowSink sink) throws Exception {
+				shard.closedRequestsWithBillUnder100(from, to, sink);
+			}
+		}, null, sink);
+	}
+
+	/**
+	 * A customer's ownerships are all on its shard, so each shard's rows
+	 * are complete.
+	 */
+	public void customersWithMoreThan20Cars(RowSink sink) throws Exception {
+		gather(new ShardReport() {
+			public void run(JdbcShopRepository shard, RowSink sink) throws Exception {
+				shard.customersWithMoreThan20Cars(sink);
+			}
+		}, null, sink);
+	}
+
+	public void carsBefore1995With50000Miles(final String from, final String to, RowSink sink) throws Exception {
+		gather(new ShardReport() {
+			public void run(JdbcShopRepository shard, RowSink sink) throws Exception {
+				shard.carsBefore1995With50000Miles(from, to, sink);
+			}
+		}, null, sink);
+	}
+
+	/**
+	 * Cars brought in by customers of different shards have requests on
+	 * each of them: every shard's counts arrive in VIN order, are merged
+	 * and added up per car, and a heap keeps the k largest.
+	 */
+	public void carsWithMostServices(int k, final String from, final String to, RowSink sink) throws Exception {
+		TopCars top = new TopCars(k);
+		gather(new ShardReport() {
+			public void run(JdbcShopRepository shard, RowSink sink) throws Exception {
+				shard.serviceCountsByCar(from, to, sink);
+			}
+		}, by(3, false, false, null), top);
+		top.writeTo(sink);
+	}
+
+	/**
+	 * A customer's requests are all on its shard, so the shards' totals
+	 * are final and only need merging.
+	 */
+	public void customersByTotalBill(final String from, final String to, RowSink sink) throws Exception {
+		gather(new ShardReport() {
+			public void run(JdbcShopRepository shard, RowSink sink) throws Exception {
+				shard.customersByTotalBill(from, to, sink);
+			}
+		}, by(2, true, true, null), sink);
+	}
+
+	public Page closedRequestsWithBillUnder100(final String from, final String to, final Page.Cursor cursor) throws Exception {
+		return Page.merge(cursor, scatter(new ShardCall<Page>() {
+			public Page call(JdbcShopRepository shard) throws Exception {
+				return shard.closedRequestsWithBillUnder100(from, to, cursor);
+			}
+		}), BILL_WID);
+	}
+
+	public Page carsBefore1995With50000Miles(final String from, final String to, final Page.Cursor cursor) throws Exception {
+		return Page.merge(cursor, scatter(new ShardCall<Page>() {
+			public Page call(JdbcShopRepository shard) throws Exception {
+				return shard.carsBefore1995With50000Miles(from, to, cursor);
+			}
+		}), DATE_RID);
+	}
+
+	public Page customersByTotalBill(final String from, final String to, final Page.Cursor cursor) throws Exception {
+		return Page.merge(cursor, scatter(new ShardCall<Page>() {
+			public Page call(JdbcShopRepository shard) throws Exception {
+				return shard.customersByTotalBill(from, to, cursor);
+			}
+		}), TOTAL_ID);
+	}
+
+	/**
+	 * Merged by (date, rid) like a single database orders them.
+	 */
+	public void openServiceRequests(RowSink sink) throws Exception {
+		gather(new ShardReport() {
+			public void run(JdbcShopRepository shard, RowSink sink) throws Exception {
+				shard.openServiceRequests(sink);
+			}
+		}, by(2, false, false, by(0, true, false, null)), sink);
+	}
+
+	public void closedHistory(RowSink sink) throws Exception {
+		gather(new ShardReport() {
+			public void run(JdbcShopRepository shard, RowSink sink) throws Exception {
+				shard.closedHistory(sink);
+			}
+		}, null, sink);
+	}
+
+	/**
+	 * Merged by customer id only: a customer's lines all come from its
+	 * shard, already in order.
+	 */
+	public void statementLines(final String from, final String to, RowSink sink) throws Exception {
+		gather(new ShardReport() {
+			public void run(JdbcShopRepository shard, RowSink sink) throws Exception {
+				shard.statementLines(from, to, sink);
+			}
+		}, by(0, true, false, null), sink);
+	}
+
+	//--- maintenance ---
+
+	/**
+	 * @return the archived partitions as shard number: name
+	 */
+	public List<String> archiveRequestPartitions(final String cutoff) throws Exception {
+		List<List<String>> perShard = scatter(new ShardCall<List<String>>() {
+			public List<String> call(JdbcShopRepository shard) throws Exception {
+				return shard.archiveRequestPartitions(cutoff);
+			}
+		});
+		List<String> archived = new ArrayList<String>();
+		for (int i = 0; i < perShard.size(); i++) {
+			for (String table : perShard.get(i)) {
+				archived.add(i + ": " + table);
+			}
+		}
+		return archived;
+	}
+
+	/**
+	 * Stops the workers and closes the connections of shards 1 to N-1.
+	 */
+	public void close() {
+		executor.shutdownNow();
+		for (int i = 1; i < shops.size(); i++) {
+			shops.get(i).cleanup();
+		}
+	}
+}
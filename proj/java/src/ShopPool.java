@@ -0,0 +1,169 @@
+/*
+ * Shop connection pool
+ * ====================
+ *
+ * A fixed number of database sessions shared by the server's request
+ * threads.
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands out leases on MechanicShop sessions, each with its own connection
+ * and repository. A lease whose connection broke is reconnected the next
+ * time it is borrowed, so a database restart does not shrink the pool.
+ * For a sharded shop a lease holds a session on every shard and a
+ * ShardedShopRepository over them. In offline mode every lease shares the
+ * one (synchronized) in-memory repository.
+ *
+ */
+
+public class ShopPool{
+	/**
+	 * A borrowed session. Set broken when an operation failed in a way
+	 * that may have left the connection unusable.
+	 */
+	public static class Lease{
+		//one session per shard, none when the repository is shared
+		List<MechanicShop> shops = new ArrayList<MechanicShop>();
+		ShopRepository repo;
+		public boolean broken = false;
+
+		public ShopRepository repo() {
+			return repo;
+		}
+	}
+
+	private BlockingQueue<Lease> idle;
+	private List<MechanicShop> origins;
+	private int size;
+	private long waitMs;
+
+	/**
+	 * Opens size sessions next to the given connected shop, each with the
+	 * operations' statements already prepared.
+	 *
+	 * @param origin the connected shop to open sessions from
+	 * @param size number of sessions
+	 * @param waitMs how long borrow() waits for a free session
+	 * @throws java.sql.SQLException when failed to connect
+	 */
+	public ShopPool(MechanicShop origin, int size, long waitMs) throws SQLException {
+		this(Collections.singletonList(origin), size, waitMs);
+	}
+
+	/**
+	 * Opens size sessions on each shard; a lease gets one on every shard.
+	 *
+	 * @param origins the connected shards in shard order
+	 * @param size number of leases
+	 * @param waitMs how long borrow() waits for a free lease
+	 * @throws java.sql.SQLException when failed to connect
+	 */
+	public ShopPool(List<MechanicShop> origins, int size, long waitMs) throws SQLException {
+		this.origins = origins;
+		this.size = size;
+		this.waitMs = waitMs;
+		this.idle = new ArrayBlockingQueue<Lease>(size);
+		for (int i = 0; i < size; i++) {
+			idle.add(connect());
+		}
+	}
+
+	/**
+	 * Shares one repository between size leases (offline mode, or a shop
+	 * sharded across several databases).
+	 */
+	public ShopPool(ShopRepository shared, int size, long waitMs) {
+		this.size = size;
+		this.waitMs = waitMs;
+		this.idle = new ArrayBlockingQueue<Lease>(size);
+		for (int i = 0; i < size; i++) {
+			Lease lease = new Lease();
+			lease.repo = shared;
+			idle.add(lease);
+		}
+	}
+
+	/**
+	 * @return a free session, reconnected if it broke earlier
+	 * @throws java.sql.SQLException when no session is free in time or the database is unreachable
+	 */
+	public Lease borrow() throws SQLException, InterruptedException {
+		Lease lease = idle.poll(waitMs, TimeUnit.MILLISECONDS);
+		if (lease == null) throw new SQLException("All " + size + " database sessions are busy");
+		if (lease.broken) {
+			try{
+				disconnect(lease);
+				Lease fresh = connect();
+				lease.shops = fresh.shops;
+				lease.repo = fresh.repo;
+				lease.broken = false;
+			}catch(SQLException e){
+				idle.add(lease);
+				throw e;
+			}
+		}
+		return lease;
+	}
+
+	/**
+	 * Returns the session. A session marked broken is only reconnected if
+	 * its connection really stopped working, a failed statement alone
+	 * leaves it usable.
+	 */
+	public void release(Lease lease) {
+		if (lease.broken && connected(lease)) lease.broken = false;
+		idle.add(lease);
+	}
+
+	private static boolean connected(Lease lease) {
+		for (MechanicShop shop : lease.shops) {
+			if (!shop.isConnected()) return false;
+		}
+		return true;
+	}
+
+	private Lease connect() throws SQLException {
+		Lease lease = new Lease();
+		try{
+			for (MechanicShop origin : origins) {
+				MechanicShop shop = origin.newSession();
+				lease.shops.add(shop);
+				new JdbcShopRepository(shop).prepareStatements();
+			}
+		}catch(SQLException e){
+			for (MechanicShop shop : lease.shops) {
+				shop.cleanup();
+			}
+			throw e;
+		}
+		lease.repo = lease.shops.size() == 1 ? lease.shops.get(0).repository() : new ShardedShopRepository(lease.shops);
+		return lease;
+	}
+
+	private static void disconnect(Lease lease) {
+		if (lease.shops.isEmpty()) return;
+		//a sharded repository closes the sessions after the first
+		if (lease.shops.size() > 1) lease.repo.close();
+		lease.shops.get(0).cleanup();
+	}
+
+	/**
+	 * Closes the idle sessions.
+	 */
+	public void close() {
+		Lease lease;
+		while ((lease = idle.poll()) != null) {
+			disconnect(lease);
+		}
+	}
+}
@@ -0,0 +1,190 @@
+/*
+ * Mechanic shop data access
+ * =========================
+ *
+ * Everything the menu operations read and write, independent of where the
+ * data lives.
+ *
+ */
+
+
+import java.util.List;
+
+/**
+ * Data access for customers, mechanics, cars, ownership, service requests
+ * and closed requests. JdbcShopRepository runs against Postgres,
+ * MemoryShopRepository answers from an in-process copy of proj/data.
+ *
+ * Dates passed in are MM/DD/YYYY strings. Report date ranges are inclusive
+ * of from and exclusive of to, either may be null for an open end.
+ *
+ */
+
+public interface ShopRepository{
+	//--- customers, mechanics, cars ---
+
+	/**
+	 * @param id the customer id, null to generate one
+	 * @return the id of the new customer
+	 */
+	int addCustomer(Integer id, String fname, String lname, String phone, String address) throws Exception;
+
+	/**
+	 * @return rows of (id, fname, lname) with that last name, and first
+	 * name when fname is not null
+	 */
+	List<List<String>> findCustomers(String lname, String fname) throws Exception;
+
+	/**
+	 * @param id the mechanic id, null to generate one
+	 * @return the id of the new mechanic
+	 */
+	int addMechanic(Integer id, String fname, String lname, int experience) throws Exception;
+
+	boolean mechanicExists(int id) throws Exception;
+
+	void addCar(String vin, String make, String model, int year) throws Exception;
+
+	boolean carExists(String vin) throws Exception;
+
+	/**
+	 * Streams the vin of every car, for building VinFilterShopRepository's
+	 * filter.
+	 */
+	void vins(RowSink sink) throws Exception;
+
+	//--- ownership ---
+
+	void addOwnership(int customerId, String vin) throws Exception;
+
+	/**
+	 * @return rows of (vin, make, model, year) owned by the customer
+	 */
+	List<List<String>> carsOwnedBy(int customerId) throws Exception;
+
+	/**
+	 * @return rows of (customer id, fname, lname) owning the car
+	 */
+	List<List<String>> ownersOf(String vin) throws Exception;
+
+	//--- service requests ---
+
+	/**
+	 * Opens a request in status W.
+	 *
+	 * @return the rid of the new request
+	 */
+	int openServiceRequest(int customerId, String vin, String date, int odometer, String complain) throws Exception;
+
+	/**
+	 * @return (rid, date opened as MM/DD/YYYY, assigned mechanic id or null)
+	 * of the request if it is not closed yet, null otherwise
+	 */
+	List<String> findOpenServiceRequest(int rid) throws Exception;
+
+	/**
+	 * Closes the request and sets its status to C.
+	 *
+	 * @return the wid of the closed request
+	 * @throws IllegalArgumentException when the request is not open
+	 * (anymore), e.g. another client closed it first
+	 */
+	int closeServiceRequest(int rid, int mechanicId, String date, String comment, int bill) throws Exception;
+
+	/**
+	 * Closes many requests at once, in one transaction. A close is only
+	 * rejected on its own (unknown or already closed request, unknown
+	 * mechanic, date before the request was opened, bill not positive,
+	 * rid listed twice), the others are still closed.
+	 *
+	 * @param closes rows of (rid, mechanic id, date, comment, bill), numbers
+	 * and dates already well-formed
+	 * @return per close and in the same order (rid, wid, null) when closed
+	 * or (rid, null, reason) when rejected
+	 */
+	List<List<String>> closeServiceRequests(List<List<String>> closes) throws Exception;
+
+	//--- scheduling ---
+
+	/**
+	 * @return {mechanic id, experience, open assigned requests} per mechanic
+	 */
+	List<int[]> mechanicWorkloads() throws Exception;
+
+	/**
+	 * Assigns the request to the mechanic and sets status R, but only if
+	 * the mechanic still has expectedOpen open requests. The check and the
+	 * assignment are atomic with respect to other clients.
+	 *
+	 * @return -1 when assigned, -2 when the request is not open (e.g. it
+	 * was closed meanwhile), otherwise the mechanic's actual number of
+	 * open requests (nothing assigned)
+	 */
+	int assignMechanic(int rid, int mechanicId, int expectedOpen) throws Exception;
+
+	//--- reports ---
+
+	/** Report 6: (date, comment, bill) of closed requests billed under 100 */
+	void closedRequestsWithBillUnder100(String from, String to, RowSink sink) throws Exception;
+
+	/** Report 7: (fname, lname) of customers owning more than 20 cars */
+	void customersWithMoreThan20Cars(RowSink sink) throws Exception;
+
+	/** Report 8: (make, model, year) of requests for pre-1995 cars under 50000 miles */
+	void carsBefore1995With50000Miles(String from, String to, RowSink sink) throws Exception;
+
+	/** Report 9: (make, model, n) of the k cars with the most requests */
+	void carsWithMostServices(int k, String from, String to, RowSink sink) throws Exception;
+
+	/** Report 10: (fname, lname, n) of customers by total closed bill, descending */
+	void customersByTotalBill(String from, String to, RowSink sink) throws Exception;
+
+	/*
+	 * Reports 6, 8 and 10 one page at a time. A page continues from the
+	 * ordering key of the cursor, which an index can seek to, so a late
+	 * page costs no more than the first.
+	 */
+
+	/** Report 6 page ordered by (bill, wid), key (bill, wid) */
+	Page closedRequestsWithBillUnder100(String from, String to, Page.Cursor cursor) throws Exception;
+
+	/** Report 8 page ordered by request (date, rid), key (date as YYYY-MM-DD, rid) */
+	Page carsBefore1995With50000Miles(String from, String to, Page.Cursor cursor) throws Exception;
+
+	/** Report 10 page ordered by total descending then customer id, key (total, customer id) */
+	Page customersByTotalBill(String from, String to, Page.Cursor cursor) throws Exception;
+
+	/** Work queue: (rid, status, date, customer_id, car_vin, complain) of open requests, oldest first */
+	void openServiceRequests(RowSink sink) throws Exception;
+
+	//--- maintenance ---
+
+	/**
+	 * Moves request history from months ending on or before cutoff out of
+	 * the working set.
+	 *
+	 * @return names of the archived partitions
+	 */
+	List<String> archiveRequestPartitions(String cutoff) throws Exception;
+
+	/**
+	 * Streams every closed request for export to a ColumnarArchive, as
+	 * (date as YYYY-MM-DD, bill, make, model, car year, mechanic id,
+	 * mechanic experience).
+	 */
+	void closedHistory(RowSink sink) throws Exception;
+
+	/**
+	 * Streams the closed requests of [from, to) for billing statements,
+	 * ordered by customer id, then by date and wid, as (customer id,
+	 * fname, lname, address, wid, date as YYYY-MM-DD, vin, make, model,
+	 * car year, complain, comment, bill). The rows of a customer come one
+	 * after the other, see StatementWriter.
+	 */
+	void statementLines(String from, String to, RowSink sink) throws Exception;
+
+	/**
+	 * Releases what the repository holds besides MechanicShop's connection.
+	 */
+	void close();
+}
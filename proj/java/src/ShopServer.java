@@ -0,0 +1,567 @@
+/*
+ * Mechanic shop HTTP service
+ * ==========================
+ *
+ * Serves the menu operations as JSON endpoints to many terminals from one
+ * process.
+ *
+ */
+
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * JSON endpoints on the JDK's built-in HTTP server. Each request runs on
+ * its own virtual thread when the JVM has them (Java 21 and later), on a
+ * cached thread pool otherwise, and borrows a session from a ShopPool for
+ * the duration of the request.
+ *
+ *   POST /customers                  {fname, lname, phone, address}
+ *   POST /mechanics                  {fname, lname, experience}
+ *   POST /cars                       {vin, make, model, year, customer_id?}
+ *   POST /service-requests           {customer_id, vin, date, odometer, complain, assign?}
+ *   POST /service-requests/close     {rid, mechanic_id, date, comment, bill}
+ *   GET  /reports/bill-under-100     ?from=&amp;to=
+ *   GET  /reports/more-than-20-cars
+ *   GET  /reports/before-1995        ?from=&amp;to=
+ *   GET  /reports/most-services      ?k=&amp;from=&amp;to=
+ *   GET  /reports/total-bill         ?from=&amp;to=
+ *   GET  /metrics                    latencies and report cache hit ratio
+ *
+ * Dates are MM/DD/YYYY. Reports are streamed as they are read, as
+ * {"columns": [...], "rows": [[...], ...]} with chunked encoding.
+ *
+ */
+
+public class ShopServer{
+	private static final int DEFAULT_POOL_SIZE = 16;
+	//how long a request waits for a free database session
+	private static final long POOL_WAIT_MS = 5000;
+
+	/**
+	 * Latency of one endpoint. Buckets are powers of two microseconds, so
+	 * percentiles are reported as the upper bound of their bucket.
+	 */
+	private static class Latency{
+		long count, errors, totalNanos, maxNanos;
+		long[] buckets = new long[40];
+
+		synchronized void record(long nanos, boolean error) {
+			count++;
+			if (error) errors++;
+			totalNanos += nanos;
+			maxNanos = Math.max(maxNanos, nanos);
+			buckets[Math.min(buckets.length - 1, 64 - Long.numberOfLeadingZeros(nanos / 1000))]++;
+		}
+
+		/**
+		 * @return upper bound in microseconds of the fraction p of requests
+		 */
+		synchronized long percentile(double p) {
+			long rank = (long) Math.ceil(p * count), seen = 0;
+			for (int i = 0; i < buckets.length; i++) {
+				seen += buckets[i];
+				if (seen >= rank && seen > 0) return 1L << i;
+			}
+			return 0;
+		}
+
+		synchronized String toJson() {
+			return "{\"count\": " + count + ", \"errors\": " + errors
+				+ ", \"mean_us\": " + (count == 0 ? 0 : totalNanos / count / 1000)
+				+ ", \"p50_us\": " + percentile(0.5) + ", \"p99_us\": " + percentile(0.99)
+				+ ", \"max_us\": " + maxNanos / 1000 + "}";
+		}
+	}
+
+	/**
+	 * Writes report rows to the response as they arrive.
+	 */
+	private static class JsonRowSink implements RowSink{
+		private HttpExchange exchange;
+		private Writer out;
+		private int rows = 0;
+
+		JsonRowSink(HttpExchange exchange) {
+			this.exchange = exchange;
+		}
+
+		boolean started() {
+			return out != null;
+		}
+
+		public void header(List<String> columns) {
+			try{
+				exchange.getResponseHeaders().set("Content-Type", "application/json");
+				//0 = unknown length, chunked
+				exchange.sendResponseHeaders(200, 0);
+				out = new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8), 8192);
+				out.write("{\"columns\": ");
+				writeArray(out, columns);
+				out.write(", \"rows\": [");
+			}catch(IOException e){
+				throw new RuntimeException(e);
+			}
+		}
+
+		public void row(List<String> values) {
+			try{
+				out.write(rows++ == 0 ? "\n" : ",\n");
+				writeArray(out, values);
+			}catch(IOException e){
+				//the client went away, stop reading the report
+				throw new RuntimeException(e);
+			}
+		}
+
+		void finish(String error) throws IOException {
+			out.write("]");
+			if (error != null) out.write(", \"error\": " + quote(error));
+			out.write("}\n");
+			out.close();
+		}
+	}
+
+	private HttpServer server;
+	private ExecutorService executor;
+	private ShopPool pool;
+	private MechanicScheduler scheduler;
+	private ReportCache reports;
+	private Map<String, Latency> latencies = new TreeMap<String, Latency>();
+	private AtomicInteger inFlight = new AtomicInteger();
+
+	/**
+	 * @param reports the sessions' shared report cache, null if reports are not cached
+	 */
+	public ShopServer(int port, ShopPool pool, MechanicScheduler scheduler, ReportCache reports) throws IOException {
+		this.pool = pool;
+		this.scheduler = scheduler;
+		this.reports = reports;
+		this.executor = newRequestExecutor();
+		this.server = HttpServer.create(new InetSocketAddress(port), 128);
+		this.server.setExecutor(executor);
+		this.server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				serve(exchange);
+			}
+		});
+	}
+
+	/**
+	 * @return one virtual thread per task when available, a cached thread pool otherwise
+	 */
+	static ExecutorService newRequestExecutor() {
+		try{
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}catch(ReflectiveOperationException e){
+			System.out.println("Virtual threads not available, using a thread pool");
+			return Executors.newCachedThreadPool();
+		}
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	public void stop() {
+		server.stop(1);
+		executor.shutdown();
+		pool.close();
+	}
+
+	private void serve(HttpExchange exchange) throws IOException {
+		long start = System.nanoTime();
+		inFlight.incrementAndGet();
+		String route = exchange.getRequestMethod() + " " + exchange.getRequestURI().getPath();
+		boolean error = true;
+		try{
+			if (route.equals("GET /metrics")) {
+				respond(exchange, 200, metrics());
+				error = false;
+				return;
+			}
+			error = !dispatch(exchange, route);
+		}finally{
+			inFlight.decrementAndGet();
+			exchange.close();
+			Latency latency;
+			synchronized (latencies) {
+				latency = latencies.get(route);
+				//no new routes after 64, so requests for random paths can not grow the map
+				if (latency == null && latencies.size() < 64) {
+					latency = new Latency();
+					latencies.put(route, latency);
+				}
+			}
+			if (latency != null) latency.record(System.nanoTime() - start, error);
+		}
+	}
+
+	/**
+	 * Runs the operation behind the route on a pooled session.
+	 *
+	 * @return false when the request failed
+	 */
+	private boolean dispatch(HttpExchange exchange, String route) throws IOException {
+		ShopPool.Lease lease = null;
+		JsonRowSink sink = new JsonRowSink(exchange);
+		try{
+			Map<String, String> params = exchange.getRequestMethod().equals("POST")
+				? parseObject(readBody(exchange.getRequestBody()))
+				: parseQuery(exchange.getRequestURI().getRawQuery());
+			lease = pool.borrow();
+			ShopRepository repo = lease.repo();
+			switch (route) {
+				case "POST /customers": {
+					int id = repo.addCustomer(null, required(params, "fname"), required(params, "lname"), required(params, "phone"), required(params, "address"));
+					respond(exchange, 201, "{\"id\": " + id + "}");
+					break;
+				}
+				case "POST /mechanics": {
+					int experience = requiredInt(params, "experience");
+					int id = repo.addMechanic(null, required(params, "fname"), required(params, "lname"), experience);
+					scheduler.addMechanic(id, experience);
+					respond(exchange, 201, "{\"id\": " + id + "}");
+					break;
+				}
+				case "POST /cars": {
+					String vin = required(params, "vin");
+					if (repo.carExists(vin)) {
+						respond(exchange, 409, "{\"error\": " + quote("Car " + vin + " already exists") + "}");
+						return false;
+					}
+					repo.addCar(vin, required(params, "make"), required(params, "model"), requiredInt(params, "year"));
+					if (params.get("customer_id") != null) repo.addOwnership(requiredInt(params, "customer_id"), vin);
+					respond(exchange, 201, "{\"vin\": " + quote(vin) + "}");
+					break;
+				}
+				case "POST /service-requests": {
+					int customerId = requiredInt(params, "customer_id");
+					String vin = required(params, "vin");
+					boolean owned = false;
+					for (List<String> car : repo.carsOwnedBy(customerId)) {
+						if (car.get(0).equals(vin)) owned = true;
+					}
+					if (!owned) throw new IllegalArgumentException("Customer " + customerId + " does not own car " + vin);
+					int odometer = requiredInt(params, "odometer");
+					if (odometer <= 0) throw new IllegalArgumentException("odometer must be positive");
+					int rid = repo.openServiceRequest(customerId, vin, requiredDate(params, "date"), odometer, params.get("complain"));
+					int mechanic = -1;
+					if ("true".equals(params.get("assign")) && rid >= 0) mechanic = scheduler.assign(repo, rid);
+					respond(exchange, 201, "{\"rid\": " + rid + ", \"mechanic_id\": " + (mechanic < 0 ? "null" : mechanic) + "}");
+					break;
+				}
+				case "POST /service-requests/close": {
+					int rid = requiredInt(params, "rid");
+					int mechanicId = requiredInt(params, "mechanic_id");
+					String date = requiredDate(params, "date");
+					int bill = requiredInt(params, "bill");
+					List<String> request = repo.findOpenServiceRequest(rid);
+					if (request == null) throw new NoSuchElementException("No open service request " + rid);
+					if (!repo.mechanicExists(mechanicId)) throw new IllegalArgumentException("No mechanic " + mechanicId);
+					if (!MechanicShop.compareDates(request.get(1), date)) throw new IllegalArgumentException("date is before the request was opened");
+					if (bill <= 0) throw new IllegalArgumentException("bill must be positive");
+					int wid = repo.closeServiceRequest(rid, mechanicId, date, params.get("comment"), bill);
+					if (request.get(2) != null) scheduler.closed(Integer.parseInt(request.get(2)));
+					respond(exchange, 201, "{\"wid\": " + wid + "}");
+					break;
+				}
+				case "GET /reports/bill-under-100":
+					repo.closedRequestsWithBillUnder100(optionalDate(params, "from"), optionalDate(params, "to"), sink);
+					break;
+				case "GET /reports/more-than-20-cars":
+					repo.customersWithMoreThan20Cars(sink);
+					break;
+				case "GET /reports/before-1995":
+					repo.carsBefore1995With50000Miles(optionalDate(params, "from"), optionalDate(params, "to"), sink);
+					break;
+				case "GET /reports/most-services": {
+					int k = requiredInt(params, "k");
+					if (k < 1) throw new IllegalArgumentException("k must be larger than 0");
+					repo.carsWithMostServices(k, optionalDate(params, "from"), optionalDate(params, "to"), sink);
+					break;
+				}
+				case "GET /reports/total-bill":
+					repo.customersByTotalBill(optionalDate(params, "from"), optionalDate(params, "to"), sink);
+					break;
+				default:
+					respond(exchange, 404, "{\"error\": " + quote("No endpoint " + route) + "}");
+					return false;
+			}
+			if (route.startsWith("GET /reports/")) {
+				//a report without rows may not have sent its header
+				if (!sink.started()) sink.header(Collections.<String>emptyList());
+				sink.finish(null);
+			}
+			return true;
+		}catch(IllegalArgumentException e){
+			fail(exchange, sink, 400, e.getMessage());
+		}catch(NoSuchElementException e){
+			fail(exchange, sink, 404, e.getMessage());
+		}catch(Exception e){
+			if (lease != null && e instanceof SQLException) lease.broken = true;
+			fail(exchange, sink, 500, e.getMessage());
+		}finally{
+			if (lease != null) pool.release(lease);
+		}
+		return false;
+	}
+
+	private static void fail(HttpExchange exchange, JsonRowSink sink, int status, String message) throws IOException {
+		if (sink.started()) {
+			//the status line is gone already, end the stream with the error
+			try{
+				sink.finish(message);
+			}catch(IOException e){
+				// ignored, the client is gone.
+			}
+		} else {
+			respond(exchange, status, "{\"error\": " + quote(message) + "}");
+		}
+	}
+
+	private String metrics() {
+		StringBuilder json = new StringBuilder("{\"in_flight\": " + inFlight.get() + ", \"endpoints\": {");
+		synchronized (latencies) {
+			boolean first = true;
+			for (Map.Entry<String, Latency> e : latencies.entrySet()) {
+				json.append(first ? "\n" : ",\n").append(quote(e.getKey())).append(": ").append(e.getValue().toJson());
+				first = false;
+			}
+		}
+		json.append("}");
+		if (reports != null) {
+			json.append(",\n\"report_cache\": {\"hit_ratio\": ").append(String.format("%.3f", reports.hitRatio()))
+				.append(", \"stats\": ").append(quote(reports.stats())).append("}");
+		}
+		return json.append("}\n").toString();
+	}
+
+	//--- request and response helpers ---
+
+	private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+		byte[] body = json.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, body.length);
+		exchange.getResponseBody().write(body);
+	}
+
+	private static String readBody(InputStream in) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		for (int n; (n = in.read(buffer)) > 0; ) {
+			body.write(buffer, 0, n);
+		}
+		return new String(body.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	private static String required(Map<String, String> params, String name) {
+		String value = params.get(name);
+		if (value == null || value.length() == 0) throw new IllegalArgumentException(name + " is required");
+		return value;
+	}
+
+	private static int requiredInt(Map<String, String> params, String name) {
+		String value = required(params, name);
+		try{
+			return Integer.parseInt(value);
+		}catch(NumberFormatException e){
+			throw new IllegalArgumentException(name + " must be a number");
+		}
+	}
+
+	private static String requiredDate(Map<String, String> params, String name) {
+		String value = required(params, name);
+		if (!value.matches("\\d\\d/\\d\\d/\\d\\d\\d\\d")) throw new IllegalArgumentException(name + " must be MM/DD/YYYY");
+		return value;
+	}
+
+	private static String optionalDate(Map<String, String> params, String name) {
+		return params.get(name) == null || params.get(name).length() == 0 ? null : requiredDate(params, name);
+	}
+
+	static Map<String, String> parseQuery(String query) throws IOException {
+		Map<String, String> params = new HashMap<String, String>();
+		if (query == null) return params;
+		for (String pair : query.split("&")) {
+			int eq = pair.indexOf('=');
+			if (eq < 0) continue;
+			params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+		}
+		return params;
+	}
+
+	/**
+	 * Parses a flat JSON object. Values are returned as strings, numbers
+	 * and booleans as written, null as a missing key.
+	 */
+	static Map<String, String> parseObject(String json) {
+		Map<String, String> values = new HashMap<String, String>();
+		int[] at = {skip(json, 0)};
+		expect(json, at, '{');
+		if (peek(json, at) == '}') {
+			if (skip(json, at[0] + 1) < json.length()) throw new IllegalArgumentException("Unexpected input after the JSON object at " + (at[0] + 1));
+			return values;
+		}
+		while (true) {
+			String key = parseString(json, at);
+			expect(json, at, ':');
+			String value;
+			if (peek(json, at) == '"') {
+				value = parseString(json, at);
+			} else {
+				int start = at[0];
+				while (at[0] < json.length() && ",} \t\r\n".indexOf(json.charAt(at[0])) < 0) at[0]++;
+				value = json.substring(start, at[0]);
+				if (value.length() == 0 || value.startsWith("{") || value.startsWith("[")) throw new IllegalArgumentException("Only flat JSON objects are accepted");
+				if (value.equals("null")) value = null;
+			}
+			if (value != null) values.put(key, value);
+			char c = peek(json, at);
+			at[0]++;
+			if (c == '}') {
+				if (skip(json, at[0]) < json.length()) throw new IllegalArgumentException("Unexpected input after the JSON object at " + at[0]);
+				return values;
+			}
+			if (c != ',') throw new IllegalArgumentException("Malformed JSON at " + at[0]);
+		}
+	}
+
+	private static int skip(String json, int i) {
+		while (i < json.length() && Character.isWhitespace(json.charAt(i))) i++;
+		return i;
+	}
+
+	private static char peek(String json, int[] at) {
+		at[0] = skip(json, at[0]);
+		if (at[0] >= json.length()) throw new IllegalArgumentException("Unexpected end of JSON");
+		return json.charAt(at[0]);
+	}
+
+	private static void expect(String json, int[] at, char c) {
+		if (peek(json, at) != c) throw new IllegalArgumentException("Expected '" + c + "' at " + at[0]);
+		at[0]++;
+	}
+
+	private static String parseString(String json, int[] at) {
+		expect(json, at, '"');
+		StringBuilder s = new StringBuilder();
+		while (true) {
+			if (at[0] >= json.length()) throw new IllegalArgumentException("Unterminated JSON string");
+			char c = json.charAt(at[0]++);
+			if (c == '"') return s.toString();
+			if (c != '\\') {
+				s.append(c);
+				continue;
+			}
+			if (at[0] >= json.length()) throw new IllegalArgumentException("Unterminated JSON string");
+			char e = json.charAt(at[0]++);
+			switch (e) {
+				case 'n': s.append('\n'); break;
+				case 't': s.append('\t'); break;
+				case 'r': s.append('\r'); break;
+				case 'b': s.append('\b'); break;
+				case 'f': s.append('\f'); break;
+				case 'u':
+					if (at[0] + 4 > json.length()) throw new IllegalArgumentException("Bad \\u escape");
+					s.append((char) Integer.parseInt(json.substring(at[0], at[0] + 4), 16));
+					at[0] += 4;
+					break;
+				default: s.append(e);
+			}
+		}
+	}
+
+	/**
+	 * @return the string as a JSON string literal, null as null
+	 */
+	static String quote(String s) {
+		if (s == null) return "null";
+		StringBuilder q = new StringBuilder(s.length() + 2).append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') q.append('\\').append(c);
+			else if (c == '\n') q.append("\\n");
+			else if (c == '\t') q.append("\\t");
+			else if (c < 0x20) q.append(String.format("\\u%04x", (int) c));
+			else q.append(c);
+		}
+		return q.append('"').toString();
+	}
+
+	private static void writeArray(Writer out, List<String> values) throws IOException {
+		out.write('[');
+		for (int i = 0; i < values.size(); i++) {
+			if (i > 0) out.write(", ");
+			out.write(quote(values.get(i)));
+		}
+		out.write(']');
+	}
+
+	/**
+	 * Starts the service.
+	 *
+	 * @param args http port, then dbname port user [pool size], or --offline data directory
+	 */
+	public static void main(String[] args) {
+		boolean offline = args.length == 3 && args[1].equals("--offline");
+		if (args.length < 4 && !offline) {
+			System.err.println(
+				"Usage: java [-classpath <classpath>] " + ShopServer.class.getName() + " <http port> <dbname> <port> <user> [<pool size>]\n" +
+				"       java [-classpath <classpath>] " + ShopServer.class.getName() + " <http port> --offline <data directory>");
+			return;
+		}
+		try{
+			int httpPort = Integer.parseInt(args[0]);
+			final MechanicShop esql;
+			ShopPool pool;
+			if (offline) {
+				System.out.println("Offline mode, loading " + args[2] + " (changes are not saved)");
+				esql = new MechanicShop(MemoryShopRepository.load(new File(args[2])));
+				pool = new ShopPool(esql.repository(), DEFAULT_POOL_SIZE, POOL_WAIT_MS);
+			} else {
+				Class.forName("org.postgresql.Driver");
+				esql = new MechanicShop(args[1], args[2], args[3], "");
+				Migrator.migrate(esql);
+				long cacheBytes = Long.getLong("shop.reportCacheBytes", 64L << 20);
+				if (cacheBytes > 0) esql.enableReportCache(cacheBytes);
+				pool = new ShopPool(esql, args.length > 4 ? Integer.parseInt(args[4]) : DEFAULT_POOL_SIZE, POOL_WAIT_MS);
+			}
+			final ShopServer server = new ShopServer(httpPort, pool, MechanicScheduler.load(esql.repository()), esql.reportCache());
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				public void run() {
+					server.stop();
+					esql.cleanup();
+				}
+			});
+			server.start();
+			System.out.println("Serving on http://localhost:" + httpPort + "/");
+		}catch(Exception e){
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+	}
+}
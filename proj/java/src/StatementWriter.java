@@ -0,0 +1,181 @@
+/*
+ * Billing statements
+ * ==================
+ *
+ * Writes one statement file per customer from the closed requests of a
+ * period.
+ *
+ */
+
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RowSink for ShopRepository.statementLines. The lines arrive ordered by
+ * customer, so a customer's statement is complete when the next customer's
+ * first line arrives: only the lines of the customer being read are held,
+ * then handed to a worker thread that renders the statement and writes
+ * customer_<id>.txt through a FileChannel. At most PENDING_PER_THREAD
+ * statements per worker wait to be written; when the workers fall behind
+ * the reader waits for them, so the heap stays the same however many
+ * customers there are.
+ *
+ * After the last row call finish(), which writes the last statement and
+ * waits for the workers, or close() when the query failed. A statement
+ * that could not be written stops the run: the next row throws, which
+ * ends the query.
+ *
+ */
+
+public class StatementWriter implements RowSink{
+	//statements waiting for a worker, per worker
+	private static final int PENDING_PER_THREAD = 4;
+
+	private File dir;
+	private String period;
+	private ExecutorService executor;
+	private Semaphore pending;
+	private List<List<String>> lines = new ArrayList<List<String>>();
+	private String customer = null;
+	private long statements = 0, rows = 0, bytes = 0;
+	private Exception failure = null;
+
+	/**
+	 * @param dir where the statements are written, created when missing
+	 * @param period shown at the top of every statement, e.g. 03/2016
+	 * @param threads worker threads rendering and writing statements
+	 */
+	public StatementWriter(File dir, String period, int threads) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Can not create directory " + dir);
+		}
+		this.dir = dir;
+		this.period = period;
+		this.executor = Executors.newFixedThreadPool(threads);
+		this.pending = new Semaphore(threads * PENDING_PER_THREAD);
+	}
+
+	public void header(List<String> columns) {
+	}
+
+	public void row(List<String> values) {
+		synchronized (this) {
+			if (failure != null) throw new IllegalStateException("Statements stopped: " + failure.getMessage());
+		}
+		if (customer != null && !customer.equals(values.get(0))) submit();
+		customer = values.get(0);
+		lines.add(values);
+		rows++;
+	}
+
+	/**
+	 * Hands the lines of the current customer to a worker, waiting for a
+	 * free slot first.
+	 */
+	private void submit() {
+		final String id = customer;
+		final List<List<String>> statement = lines;
+		lines = new ArrayList<List<String>>();
+		customer = null;
+		pending.acquireUninterruptibly();
+		executor.execute(new Runnable() {
+			public void run() {
+				try{
+					write(new File(dir, "customer_" + id.trim() + ".txt"), render(statement));
+				}catch(Exception e){
+					fail(e);
+				}finally{
+					pending.release();
+				}
+			}
+		});
+	}
+
+	private synchronized void fail(Exception e) {
+		if (failure == null) failure = e;
+	}
+
+	/**
+	 * @return the statement of one customer's lines
+	 */
+	String render(List<List<String>> statement) {
+		List<String> first = statement.get(0);
+		StringBuilder out = new StringBuilder(256 + 128 * statement.size());
+		out.append("Statement for ").append(period).append('\n');
+		out.append("Customer ").append(first.get(0).trim()).append(": ").append(first.get(1).trim()).append(' ').append(first.get(2).trim()).append('\n');
+		out.append(first.get(3).trim()).append("\n\n");
+		out.append(String.format("%-10s  %-8s  %-16s  %-32s  %8s%n", "Date", "Work id", "VIN", "Car", "Bill"));
+		long total = 0;
+		for (List<String> line : statement) {
+			String car = line.get(7).trim() + " " + line.get(8).trim() + " " + line.get(9).trim();
+			out.append(String.format("%-10s  %-8s  %-16s  %-32s  %8s%n", line.get(5), line.get(4).trim(), line.get(6).trim(), car, line.get(12).trim()));
+			out.append("    Complaint: ").append(line.get(10) == null ? "" : line.get(10).trim()).append('\n');
+			out.append("    Work done: ").append(line.get(11) == null ? "" : line.get(11).trim()).append('\n');
+			total += Long.parseLong(line.get(12).trim());
+		}
+		out.append(String.format("%nTotal: %d (%d request(s))%n", total, statement.size()));
+		return out.toString();
+	}
+
+	private void write(File file, String statement) throws IOException {
+		ByteBuffer buf = ByteBuffer.wrap(statement.getBytes(StandardCharsets.UTF_8));
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		try{
+			while (buf.hasRemaining()) {
+				channel.write(buf);
+			}
+		}finally{
+			channel.close();
+		}
+		synchronized (this) {
+			statements++;
+			bytes += buf.capacity();
+		}
+	}
+
+	/**
+	 * Writes the last statement and waits until every statement is
+	 * written.
+	 *
+	 * @throws Exception when a statement could not be written
+	 */
+	public void finish() throws Exception {
+		if (customer != null) submit();
+		close();
+		synchronized (this) {
+			if (failure != null) throw failure;
+		}
+	}
+
+	/**
+	 * Waits for the statements already handed to the workers and stops
+	 * them; the lines of the customer being read are dropped. Call it when
+	 * the query failed.
+	 */
+	public void close() {
+		executor.shutdown();
+		try{
+			while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+				// still writing.
+			}
+		}catch(InterruptedException e){
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public synchronized String stats() {
+		return statements + " statement(s) of " + rows + " request(s), " + bytes + " bytes written to " + dir;
+	}
+}
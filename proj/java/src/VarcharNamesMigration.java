@@ -0,0 +1,181 @@
+/*
+ * Migration 1: padded CHAR columns to VARCHAR
+ * ===========================================
+ *
+ * Customer.fname/lname/address and Mechanic.fname/lname were CHAR(n), so
+ * every row carried blank padding up to the declared width.
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Moves the padded CHAR columns to VARCHAR without holding a long
+ * exclusive lock:
+ *
+ * 1. add the VARCHAR columns next to the old ones,
+ * 2. dual-write: a trigger fills them on every INSERT and UPDATE,
+ * 3. backfill the existing rows in small committed batches,
+ * 4. prove NOT NULL with a validated CHECK constraint (no exclusive lock),
+ * 5. swap the columns in one short transaction,
+ * 6. rewrite the rows in batches so the dropped data stops taking space.
+ *
+ * Every DDL step runs with a lock timeout and is retried, so the migration
+ * never queues behind a long running transaction while blocking others.
+ *
+ */
+
+public class VarcharNamesMigration implements Migration{
+	private static final int BATCH_SIZE = 500;
+	private static final int LOCK_ATTEMPTS = 20;
+	private static final String LOCK_TIMEOUT = "2s";
+	//SQLSTATE lock_not_available
+	private static final String LOCK_NOT_AVAILABLE = "55P03";
+
+	public int version() {
+		return 1;
+	}
+
+	public String description() {
+		return "Customer and Mechanic names and address from CHAR to VARCHAR";
+	}
+
+	public void apply(MechanicShop esql) throws SQLException {
+		migrateTable(esql, "customer", new String[]{"fname", "lname", "address"}, new String[]{"VARCHAR(32)", "VARCHAR(32)", "VARCHAR(256)"});
+		migrateTable(esql, "mechanic", new String[]{"fname", "lname"}, new String[]{"VARCHAR(32)", "VARCHAR(32)"});
+	}
+
+	private void migrateTable(MechanicShop esql, String table, String[] columns, String[] types) throws SQLException {
+		List<List<String>> padded = esql.executeQueryAndReturnResult(
+			"SELECT column_name FROM information_schema.columns WHERE table_name = '" + table + "' AND data_type = 'character' AND column_name IN ('" + String.join("','", columns) + "')");
+		if (padded.size() != columns.length) {
+			System.out.println(table + ": already VARCHAR, nothing to do");
+			return;
+		}
+		long[] before = statistics(esql, table);
+
+		//1. new columns, a catalog only change
+		String add = "ALTER TABLE " + table;
+		for (int i = 0; i < columns.length; i++) {
+			add += (i == 0 ? " " : ", ") + "ADD COLUMN IF NOT EXISTS " + columns[i] + "_new " + types[i];
+		}
+		withLockTimeout(esql, add);
+
+		//2. dual-write trigger keeps new columns current while we copy
+		String assign = "";
+		for (String c : columns) {
+			assign += "NEW." + c + "_new := rtrim(NEW." + c + "); ";
+		}
+		esql.executeUpdate("CREATE OR REPLACE FUNCTION migrate_" + table + "_names() RETURNS trigger AS $$ BEGIN " + assign + "RETURN NEW; END; $$ LANGUAGE plpgsql");
+		withLockTimeout(esql,
+			"DROP TRIGGER IF EXISTS trg_migrate_" + table + "_names ON " + table,
+			"CREATE TRIGGER trg_migrate_" + table + "_names BEFORE INSERT OR UPDATE ON " + table + " FOR EACH ROW EXECUTE PROCEDURE migrate_" + table + "_names()");
+
+		//3. backfill, one short transaction per batch
+		String copy = "";
+		for (int i = 0; i < columns.length; i++) {
+			copy += (i == 0 ? "" : ", ") + columns[i] + "_new = rtrim(" + columns[i] + ")";
+		}
+		int copied = forEachBatch(esql, table, "UPDATE " + table + " SET " + copy + " WHERE id >= %d AND id < %d AND " + columns[0] + "_new IS NULL");
+		System.out.println(table + ": copied " + copied + " row(s)");
+
+		//4. NOT NULL proven by a validated CHECK, SET NOT NULL then skips its scan
+		for (String c : columns) {
+			withLockTimeout(esql, "ALTER TABLE " + table + " DROP CONSTRAINT IF EXISTS " + table + "_" + c + "_new_nn, ADD CONSTRAINT " + table + "_" + c + "_new_nn CHECK (" + c + "_new IS NOT NULL) NOT VALID");
+			esql.executeUpdate("ALTER TABLE " + table + " VALIDATE CONSTRAINT " + table + "_" + c + "_new_nn");
+		}
+
+		//5. swap in one short transaction
+		String[] swap = new String[1 + columns.length * 4];
+		swap[0] = "DROP TRIGGER trg_migrate_" + table + "_names ON " + table;
+		for (int i = 0; i < columns.length; i++) {
+			String c = columns[i];
+			swap[1 + i * 4] = "ALTER TABLE " + table + " DROP COLUMN " + c;
+			swap[2 + i * 4] = "ALTER TABLE " + table + " RENAME COLUMN " + c + "_new TO " + c;
+			swap[3 + i * 4] = "ALTER TABLE " + table + " ALTER COLUMN " + c + " SET NOT NULL";
+			swap[4 + i * 4] = "ALTER TABLE " + table + " DROP CONSTRAINT " + table + "_" + c + "_new_nn";
+		}
+		withLockTimeout(esql, swap);
+		esql.executeUpdate("DROP FUNCTION IF EXISTS migrate_" + table + "_names()");
+
+		//6. rows written before the swap still hold the dropped CHAR values
+		forEachBatch(esql, table, "UPDATE " + table + " SET " + columns[0] + " = " + columns[0] + " WHERE id >= %d AND id < %d");
+		esql.executeUpdate("VACUUM ANALYZE " + table);
+
+		long[] after = statistics(esql, table);
+		System.out.println(table + ": average row " + before[1] + " -> " + after[1] + " bytes, about "
+			+ (8192 / Math.max(before[1], 1)) + " -> " + (8192 / Math.max(after[1], 1)) + " rows per 8kB page");
+		System.out.println(table + ": size on disk " + before[0] / 1024 + " -> " + after[0] / 1024 + " kB");
+		System.out.println(table + ": heap cache hit ratio " + hitRatio(before) + " -> " + hitRatio(after)
+			+ " (cumulative, improves as the narrower rows are read)");
+	}
+
+	/**
+	 * Runs the statement template once per id range of BATCH_SIZE rows, each
+	 * batch committed on its own.
+	 *
+	 * @return the number of rows updated
+	 */
+	private int forEachBatch(MechanicShop esql, String table, String template) throws SQLException {
+		List<String> range = esql.executeQueryAndReturnResult("SELECT MIN(id), MAX(id) FROM " + table).get(0);
+		if (range.get(0) == null) return 0;
+		int lo = Integer.parseInt(range.get(0));
+		int hi = Integer.parseInt(range.get(1));
+		int rows = 0;
+		for (int start = lo; start <= hi; start += BATCH_SIZE) {
+			rows += esql.executeUpdate(String.format(template, start, start + BATCH_SIZE));
+		}
+		return rows;
+	}
+
+	/**
+	 * Runs the statements in one transaction that gives up waiting for its
+	 * locks after LOCK_TIMEOUT, retrying until the locks are granted.
+	 */
+	private void withLockTimeout(MechanicShop esql, String... statements) throws SQLException {
+		for (int attempt = 1; ; attempt++) {
+			esql.beginTransaction();
+			try{
+				esql.executeUpdate("SET LOCAL lock_timeout = '" + LOCK_TIMEOUT + "'");
+				for (String sql : statements) {
+					esql.executeUpdate(sql);
+				}
+				esql.commit();
+				return;
+			}catch(SQLException e){
+				esql.rollback();
+				if (!LOCK_NOT_AVAILABLE.equals(e.getSQLState()) || attempt >= LOCK_ATTEMPTS) {
+					throw e;
+				}
+				System.out.println("Table busy, retrying migration step (" + attempt + ")");
+				try{
+					Thread.sleep(500L * attempt);
+				}catch(InterruptedException ie){
+					Thread.currentThread().interrupt();
+					throw e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return {total relation bytes, average row bytes, heap blocks hit, heap blocks read}
+	 */
+	private long[] statistics(MechanicShop esql, String table) throws SQLException {
+		List<String> row = esql.executeQueryAndReturnResult(
+			"SELECT pg_total_relation_size('" + table + "'), (SELECT COALESCE(avg(pg_column_size(T.*)), 0)::bigint FROM " + table + " T), "
+			+ "COALESCE(S.heap_blks_hit, 0), COALESCE(S.heap_blks_read, 0) FROM pg_statio_user_tables S WHERE S.relname = '" + table + "'").get(0);
+		long[] stats = new long[row.size()];
+		for (int i = 0; i < stats.length; i++) {
+			stats[i] = Long.parseLong(row.get(i));
+		}
+		return stats;
+	}
+
+	private String hitRatio(long[] stats) {
+		long total = stats[2] + stats[3];
+		return total == 0 ? "n/a" : String.format("%.1f%%", 100.0 * stats[2] / total);
+	}
+}
@@ -0,0 +1,253 @@
+/*
+ * VIN membership filter
+ * =====================
+ *
+ * Answers "this car is not in the database" without asking the database.
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * ShopRepository holding a BloomFilter of the VINs in Car. carExists only
+ * goes to the database when the filter says the VIN may be there, so
+ * adding a car the shop has never seen, or taking it in, costs no
+ * existence lookup. addCar adds to the filter. ownersOf always asks the
+ * database: intake lets the customer claim a car nobody owns, so a wrong
+ * "no owner" would give a car a second owner.
+ *
+ * The shop's NotificationListener follows shop_vins (see
+ * VinNotifyMigration) on every shard for cars added by other clients, and
+ * once it listens every VIN of the shard is streamed into the filter.
+ * Until every scan is done, and again while a listening session is lost,
+ * every lookup goes to the database. A car another client added since the
+ * listener last polled may still be reported absent; adding it again then
+ * fails on the primary key.
+ *
+ * The filter is sized for shop.vinFilterCapacity VINs with a false
+ * positive rate of shop.vinFilterFpp; past the capacity false positives,
+ * i.e. lookups that go to the database after all, get more frequent.
+ *
+ */
+
+public class VinFilterShopRepository implements ShopRepository{
+	private ShopRepository delegate;
+	private BloomFilter cars;
+	//per database, whether the filter holds every VIN of it
+	private boolean[] loaded;
+	private long lookups = 0, skipped = 0;
+
+	/**
+	 * Starts following the databases, which fills the filter.
+	 *
+	 * @param delegate the repository answering everything else
+	 * @param capacity VINs the filter is sized for
+	 * @param fpp false positive rate at capacity
+	 * @param listener the shop's notification listener
+	 * @param origins the connected shop, or its shards
+	 */
+	public VinFilterShopRepository(ShopRepository delegate, long capacity, double fpp, NotificationListener listener, List<MechanicShop> origins) {
+		this.delegate = delegate;
+		this.cars = new BloomFilter(capacity, fpp);
+		this.loaded = new boolean[origins.size()];
+		for (int i = 0; i < origins.size(); i++) {
+			listen(listener, origins.get(i), i);
+		}
+	}
+
+	private synchronized void setLoaded(int origin, boolean done) {
+		loaded[origin] = done;
+	}
+
+	private synchronized boolean ready() {
+		for (boolean done : loaded) {
+			if (!done) return false;
+		}
+		return true;
+	}
+
+	private void listen(NotificationListener listener, MechanicShop origin, final int index) {
+		listener.listen(origin, "shop_vins", new NotificationListener.Handler() {
+			public void connected(MechanicShop session) throws SQLException {
+				//listening already, a VIN added during the scan is notified
+				load(new JdbcShopRepository(session));
+				setLoaded(index, true);
+			}
+
+			public void notified(String payload) {
+				apply(payload);
+			}
+
+			public void disconnected() {
+				//notifications may be missed from now on, lookups go to the database
+				setLoaded(index, false);
+			}
+		});
+	}
+
+	private void load(JdbcShopRepository repo) throws SQLException {
+		long start = System.currentTimeMillis();
+		repo.vins(new RowSink() {
+			public void header(List<String> columns) {
+			}
+
+			public void row(List<String> values) {
+				cars.add(values.get(0).trim());
+			}
+		});
+		if (cars.added() > cars.capacity()) {
+			System.err.println("VIN filter: " + cars.added() + " VINs is more than shop.vinFilterCapacity, more lookups will go to the database");
+		}
+		System.out.println("(VIN filter loaded in " + (System.currentTimeMillis() - start) + " ms)");
+	}
+
+	private void apply(String payload) {
+		int space = payload.indexOf(' ');
+		if (space < 0) return;
+		if (payload.startsWith("car ")) cars.add(payload.substring(space + 1).trim());
+	}
+
+	/**
+	 * @return false when the filter says the VIN is certainly not there
+	 */
+	private boolean mayHave(BloomFilter filter, String vin) {
+		boolean maybe = !ready() || filter.mightContain(vin.trim());
+		synchronized (this) {
+			lookups++;
+			if (!maybe) skipped++;
+		}
+		return maybe;
+	}
+
+	public synchronized String stats() {
+		return skipped + " of " + lookups + " VIN lookup(s) answered without the database; cars: " + cars;
+	}
+
+	//--- filtered ---
+
+	public void addCar(String vin, String make, String model, int year) throws Exception {
+		delegate.addCar(vin, make, model, year);
+		cars.add(vin.trim());
+	}
+
+	public boolean carExists(String vin) throws Exception {
+		if (!mayHave(cars, vin)) return false;
+		return delegate.carExists(vin);
+	}
+
+	/**
+	 * Closes the wrapped repository; the listener is the shop's and stops
+	 * with it.
+	 */
+	public void close() {
+		delegate.close();
+	}
+
+	//--- everything else goes to the wrapped repository ---
+
+	public int addCustomer(Integer id, String fname, String lname, String phone, String address) throws Exception {
+		return delegate.addCustomer(id, fname, lname, phone, address);
+	}
+
+	public List<List<String>> findCustomers(String lname, String fname) throws Exception {
+		return delegate.findCustomers(lname, fname);
+	}
+
+	public int addMechanic(Integer id, String fname, String lname, int experience) throws Exception {
+		return delegate.addMechanic(id, fname, lname, experience);
+	}
+
+	public boolean mechanicExists(int id) throws Exception {
+		return delegate.mechanicExists(id);
+	}
+
+	public void vins(RowSink sink) throws Exception {
+		delegate.vins(sink);
+	}
+
+	public void addOwnership(int customerId, String vin) throws Exception {
+		delegate.addOwnership(customerId, vin);
+	}
+
+	public List<List<String>> ownersOf(String vin) throws Exception {
+		return delegate.ownersOf(vin);
+	}
+
+	public List<List<String>> carsOwnedBy(int customerId) throws Exception {
+		return delegate.carsOwnedBy(customerId);
+	}
+
+	public int openServiceRequest(int customerId, String vin, String date, int odometer, String complain) throws Exception {
+		return delegate.openServiceRequest(customerId, vin, date, odometer, complain);
+	}
+
+	public List<String> findOpenServiceRequest(int rid) throws Exception {
+		return delegate.findOpenServiceRequest(rid);
+	}
+
+	public int closeServiceRequest(int rid, int mechanicId, String date, String comment, int bill) throws Exception {
+		return delegate.closeServiceRequest(rid, mechanicId, date, comment, bill);
+	}
+
+	public List<List<String>> closeServiceRequests(List<List<String>> closes) throws Exception {
+		return delegate.closeServiceRequests(closes);
+	}
+
+	public List<int[]> mechanicWorkloads() throws Exception {
+		return delegate.mechanicWorkloads();
+	}
+
+	public int assignMechanic(int rid, int mechanicId, int expectedOpen) throws Exception {
+		return delegate.assignMechanic(rid, mechanicId, expectedOpen);
+	}
+
+	public void closedRequestsWithBillUnder100(String from, String to, RowSink sink) throws Exception {
+		delegate.closedRequestsWithBillUnder100(from, to, sink);
+	}
+
+	public void customersWithMoreThan20Cars(RowSink sink) throws Exception {
+		delegate.customersWithMoreThan20Cars(sink);
+	}
+
+	public void carsBefore1995With50000Miles(String from, String to, RowSink sink) throws Exception {
+		delegate.carsBefore1995With50000Miles(from, to, sink);
+	}
+
+	public void carsWithMostServices(int k, String from, String to, RowSink sink) throws Exception {
+		delegate.carsWithMostServices(k, from, to, sink);
+	}
+
+	public void customersByTotalBill(String from, String to, RowSink sink) throws Exception {
+		delegate.customersByTotalBill(from, to, sink);
+	}
+
+	public Page closedRequestsWithBillUnder100(String from, String to, Page.Cursor cursor) throws Exception {
+		return delegate.closedRequestsWithBillUnder100(from, to, cursor);
+	}
+
+	public Page carsBefore1995With50000Miles(String from, String to, Page.Cursor cursor) throws Exception {
+		return delegate.carsBefore1995With50000Miles(from, to, cursor);
+	}
+
+	public Page customersByTotalBill(String from, String to, Page.Cursor cursor) throws Exception {
+		return delegate.customersByTotalBill(from, to, cursor);
+	}
+
+	public void openServiceRequests(RowSink sink) throws Exception {
+		delegate.openServiceRequests(sink);
+	}
+
+	public void closedHistory(RowSink sink) throws Exception {
+		delegate.closedHistory(sink);
+	}
+
+	public void statementLines(String from, String to, RowSink sink) throws Exception {
+		delegate.statementLines(from, to, sink);
+	}
+
+	public List<String> archiveRequestPartitions(String cutoff) throws Exception {
+		return delegate.archiveRequestPartitions(cutoff);
+	}
+}
@@ -0,0 +1,36 @@
+/*
+ * Migration 6: VIN notifications
+ * ==============================
+ *
+ * Every car added notifies the shop_vins channel with its VIN.
+ *
+ */
+
+
+import java.sql.SQLException;
+
+/**
+ * Adds a row-level trigger sending 'car <vin>' on shop_vins for rows
+ * written to Car. VinFilterShopRepository LISTENs on the channel so cars
+ * added by other clients are in its filter. VINs are never removed from
+ * the filter, so deletes are not notified.
+ *
+ */
+
+public class VinNotifyMigration implements Migration{
+	public int version() {
+		return 6;
+	}
+
+	public String description() {
+		return "NOTIFY shop_vins with every car added";
+	}
+
+	public void apply(MechanicShop esql) throws SQLException {
+		esql.executeUpdate("CREATE OR REPLACE FUNCTION notify_car_vin() RETURNS trigger AS $$ BEGIN "
+			+ "PERFORM pg_notify('shop_vins', 'car ' || NEW.vin); RETURN NULL; END; $$ LANGUAGE plpgsql");
+		esql.executeUpdate("DROP TRIGGER IF EXISTS trg_car_vin ON Car");
+		esql.executeUpdate("CREATE TRIGGER trg_car_vin AFTER INSERT OR UPDATE OF vin ON Car"
+			+ " FOR EACH ROW EXECUTE PROCEDURE notify_car_vin()");
+	}
+}
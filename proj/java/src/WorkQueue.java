@@ -0,0 +1,87 @@
+/*
+ * Live work queue
+ * ===============
+ *
+ * The open service requests, kept current from the change feed.
+ *
+ */
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Open requests ordered oldest first like
+ * ShopRepository.openServiceRequests, read once and then changed one
+ * request at a time as ChangeFeed events arrive instead of being read
+ * again.
+ *
+ */
+
+public class WorkQueue{
+	public static final List<String> COLUMNS = Arrays.asList("rid", "status", "date", "customer_id", "car_vin", "complain");
+
+	//(date, rid) -> row
+	private TreeMap<String, List<String>> rows = new TreeMap<String, List<String>>();
+	private Map<Integer, String> keys = new HashMap<Integer, String>();
+
+	private static String key(String date, int rid) {
+		//ISO dates and padded rids sort in time then rid order
+		return date + String.format("%011d", (long) rid - Integer.MIN_VALUE);
+	}
+
+	/**
+	 * Reads the open requests, replacing what the queue held.
+	 */
+	public synchronized void load(ShopRepository repo) throws Exception {
+		RowSink.Collector open = new RowSink.Collector();
+		repo.openServiceRequests(open);
+		rows.clear();
+		keys.clear();
+		for (List<String> row : open.rows()) {
+			put(Integer.parseInt(row.get(0).trim()), row);
+		}
+	}
+
+	private void put(int rid, List<String> row) {
+		String old = keys.remove(rid);
+		if (old != null) rows.remove(old);
+		String key = key(row.get(2), rid);
+		keys.put(rid, key);
+		rows.put(key, row);
+	}
+
+	/**
+	 * Applies a change.
+	 *
+	 * @return a line describing the change, null when it did not touch the queue
+	 */
+	public synchronized String apply(ChangeFeed.Event e) {
+		if (e.isClosed()) {
+			String old = keys.remove(e.rid);
+			if (old == null) return null;
+			rows.remove(old);
+			return "- " + e.rid + " closed" + (e.fields.containsKey("bill") ? ", bill " + e.fields.get("bill") : "");
+		}
+		boolean known = keys.containsKey(e.rid);
+		put(e.rid, Arrays.asList(Integer.toString(e.rid), e.fields.get("status"), e.fields.get("date"),
+			e.fields.get("customer_id"), e.fields.get("car_vin"), e.fields.get("complain")));
+		String mechanic = e.fields.containsKey("mechanic_id") ? ", mechanic " + e.fields.get("mechanic_id") : "";
+		return (known ? "~ " : "+ ") + e.rid + " " + e.fields.get("status") + mechanic + " " + e.fields.get("car_vin");
+	}
+
+	public synchronized int size() {
+		return rows.size();
+	}
+
+	/**
+	 * @return the open requests, oldest first
+	 */
+	public synchronized List<List<String>> rows() {
+		return new ArrayList<List<String>>(rows.values());
+	}
+}
@@ -0,0 +1,480 @@
+/*
+ * Write-behind intake
+ * ===================
+ *
+ * Opening and closing service requests acknowledged from a local journal
+ * instead of waiting for the database.
+ *
+ */
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * ShopRepository that appends openServiceRequest and closeServiceRequest
+ * to an IntakeJournal and returns as soon as the record is on disk. A
+ * background thread drains the journal to Postgres on its own connection,
+ * a batch of records per transaction. Every record carries a random key
+ * that is inserted into intake_applied together with the operation, so
+ * replaying a record whose transaction already committed does nothing.
+ *
+ * While the database is unreachable the drainer keeps reconnecting; a
+ * record the database refuses (e.g. an unknown rid) is written to the
+ * rejects file and skipped. Everything else is passed to the wrapped
+ * repository, so lookups and reports still need the database: this hides
+ * the latency of a slow database, not its absence. While it restarts the
+ * lookups intake starts with fail, and intake is refused before anything
+ * is journaled; the menu reconnects the shop's session once the database
+ * is back (see MechanicShop.reconnectIfLost).
+ *
+ * A request whose close is journaled but not yet in the database counts as
+ * closed: findOpenServiceRequest does not find it and closing it again is
+ * refused, so the drainer never replays two closes of one rid.
+ *
+ */
+
+public class WriteBehindShopRepository implements ShopRepository{
+	private static final byte OPEN = 1;
+	private static final byte CLOSE = 2;
+	private static final int BATCH_SIZE = 100;
+	//how long the drainer sleeps when the journal is empty or the database is down
+	private static final long IDLE_MS = 200;
+	private static final long RETRY_MS = 2000;
+	//how long close() waits for the journal to drain
+	private static final long CLOSE_WAIT_MS = 5000;
+
+	/**
+	 * A journaled operation, decoded.
+	 */
+	private static class Intake{
+		byte op;
+		UUID key;
+		//open: customer id, odometer; close: rid, mechanic id, bill
+		int a, b, c;
+		//open: vin, date, complain; close: date, comment
+		String s1, s2, s3;
+
+		public String toString() {
+			if (op == OPEN) return "open request customer=" + a + " vin=" + s1 + " date=" + s2 + " odometer=" + b + " complain=" + s3;
+			return "close request rid=" + a + " mechanic=" + b + " date=" + s1 + " comment=" + s2 + " bill=" + c;
+		}
+	}
+
+	private ShopRepository delegate;
+	private IntakeJournal journal;
+	private File rejects;
+	private MechanicShop esql;
+	//the drainer's own connection, null while disconnected
+	private MechanicShop session = null;
+	private Thread drainer;
+	private volatile boolean stopped = false;
+	//rids whose close is in the journal and not yet confirmed, guarded by itself
+	private IntHashMap<Boolean> closing = new IntHashMap<Boolean>();
+
+	/**
+	 * Starts draining whatever an earlier run left in the journal.
+	 *
+	 * @param delegate the repository answering everything but intake
+	 * @param journal the opened journal
+	 * @param rejects file that records refused by the database are appended to
+	 * @param esql the connected shop, the drainer opens its own session from it
+	 */
+	public WriteBehindShopRepository(ShopRepository delegate, IntakeJournal journal, File rejects, MechanicShop esql) {
+		this.delegate = delegate;
+		this.journal = journal;
+		this.rejects = rejects;
+		this.esql = esql;
+		List<IntakeJournal.Record> pending = journal.pending(Integer.MAX_VALUE);
+		for (IntakeJournal.Record r : pending) {
+			try{
+				Intake in = decode(r.payload);
+				if (in.op == CLOSE) closing.put(in.a, Boolean.TRUE);
+			}catch(IOException e){
+				// rejected by the drainer.
+			}
+		}
+		if (pending.size() > 0) {
+			System.out.println("Intake journal: " + pending.size() + " operation(s) from an earlier run waiting for the database");
+		}
+		drainer = new Thread(new Runnable() {
+			public void run() {
+				drain();
+			}
+		}, "intake-drainer");
+		drainer.setDaemon(true);
+		drainer.start();
+	}
+
+	//--- journaled intake ---
+
+	/**
+	 * Journals the request.
+	 *
+	 * @return -1, the rid is assigned when the request reaches the database
+	 */
+	public int openServiceRequest(int customerId, String vin, String date, int odometer, String complain) throws IOException {
+		Intake in = new Intake();
+		in.op = OPEN;
+		in.a = customerId;
+		in.b = odometer;
+		in.s1 = vin;
+		in.s2 = date;
+		in.s3 = complain;
+		append(in);
+		return -1;
+	}
+
+	/**
+	 * Journals the close.
+	 *
+	 * @return -1, the wid is assigned when the close reaches the database
+	 * @throws IllegalArgumentException when a close of rid is already journaled
+	 */
+	public int closeServiceRequest(int rid, int mechanicId, String date, String comment, int bill) throws IOException {
+		synchronized (closing) {
+			if (closing.containsKey(rid)) throw new IllegalArgumentException("Service request " + rid + " is already closed");
+			closing.put(rid, Boolean.TRUE);
+		}
+		Intake in = new Intake();
+		in.op = CLOSE;
+		in.a = rid;
+		in.b = mechanicId;
+		in.c = bill;
+		in.s1 = date;
+		in.s2 = comment;
+		try{
+			append(in);
+		}catch(IOException e){
+			closed(rid);
+			throw e;
+		}
+		return -1;
+	}
+
+	/**
+	 * Forgets the journaled close of rid, once the database has it or
+	 * refused it.
+	 */
+	private void closed(int rid) {
+		synchronized (closing) {
+			closing.remove(rid);
+		}
+	}
+
+	private void append(Intake in) throws IOException {
+		in.key = UUID.randomUUID();
+		journal.append(encode(in));
+		synchronized (this) {
+			notifyAll();
+		}
+	}
+
+	private static byte[] encode(Intake in) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(in.op);
+		out.writeLong(in.key.getMostSignificantBits());
+		out.writeLong(in.key.getLeastSignificantBits());
+		out.writeInt(in.a);
+		out.writeInt(in.b);
+		out.writeInt(in.c);
+		writeString(out, in.s1);
+		writeString(out, in.s2);
+		writeString(out, in.s3);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		out.writeBoolean(s != null);
+		if (s != null) out.writeUTF(s);
+	}
+
+	private static Intake decode(byte[] payload) throws IOException {
+		DataInputStream data = new DataInputStream(new ByteArrayInputStream(payload));
+		Intake in = new Intake();
+		in.op = data.readByte();
+		in.key = new UUID(data.readLong(), data.readLong());
+		in.a = data.readInt();
+		in.b = data.readInt();
+		in.c = data.readInt();
+		in.s1 = data.readBoolean() ? data.readUTF() : null;
+		in.s2 = data.readBoolean() ? data.readUTF() : null;
+		in.s3 = data.readBoolean() ? data.readUTF() : null;
+		return in;
+	}
+
+	//--- draining ---
+
+	private void drain() {
+		while (!stopped || journal.pendingBytes() > 0) {
+			List<IntakeJournal.Record> batch = journal.pending(BATCH_SIZE);
+			if (batch.isEmpty()) {
+				if (stopped) return;
+				synchronized (this) {
+					try{
+						wait(IDLE_MS);
+					}catch(InterruptedException e){
+						return;
+					}
+				}
+				continue;
+			}
+			try{
+				apply(batch);
+			}catch(SQLException e){
+				if (lostConnection(e)) {
+					disconnect();
+					if (stopped) return;
+					try{
+						Thread.sleep(RETRY_MS);
+					}catch(InterruptedException ie){
+						return;
+					}
+				} else {
+					//something in the batch is refused, find it record by record
+					for (IntakeJournal.Record r : batch) {
+						try{
+							apply(Collections.singletonList(r));
+						}catch(SQLException re){
+							if (lostConnection(re)) {
+								disconnect();
+								break;
+							}
+							reject(r, re.getMessage());
+							journal.confirm(r.end);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Applies the records in one transaction and confirms them in the
+	 * journal once committed.
+	 */
+	private void apply(List<IntakeJournal.Record> batch) throws SQLException {
+		if (session == null) session = esql.newSession();
+		//a fresh repository per transaction, its partition cache must not outlive a rollback
+		JdbcShopRepository repo = new JdbcShopRepository(session);
+		List<Integer> closes = new ArrayList<Integer>();
+		session.beginTransaction();
+		try{
+			for (IntakeJournal.Record r : batch) {
+				Intake in;
+				try{
+					in = decode(r.payload);
+				}catch(IOException e){
+					throw new SQLException("Unreadable journal record at " + r.offset);
+				}
+				if (in.op == CLOSE) closes.add(in.a);
+				if (session.executeUpdate("INSERT INTO intake_applied (key) VALUES ('" + in.key + "') ON CONFLICT DO NOTHING") == 0) {
+					continue; //applied before a crash
+				}
+				if (in.op == OPEN) {
+					repo.openServiceRequest(in.a, in.s1, in.s2, in.b, in.s3);
+				} else {
+					try{
+						repo.closeServiceRequest(in.a, in.b, in.s1, in.s2, in.c);
+					}catch(IllegalArgumentException e){
+						//refused like any other record, not a lost connection
+						throw new SQLException(e.getMessage());
+					}
+				}
+			}
+			session.commit();
+		}catch(SQLException e){
+			session.rollback();
+			throw e;
+		}
+		journal.confirm(batch.get(batch.size() - 1).end);
+		for (int rid : closes) {
+			closed(rid);
+		}
+	}
+
+	private boolean lostConnection(SQLException e) {
+		//08: connection exception, 57P: operator intervention (shutdown, restart)
+		String state = e.getSQLState();
+		if (state != null && (state.startsWith("08") || state.startsWith("57P"))) return true;
+		return session == null || !session.isConnected();
+	}
+
+	private void disconnect() {
+		if (session != null) session.cleanup();
+		session = null;
+	}
+
+	private void reject(IntakeJournal.Record r, String reason) {
+		String what;
+		try{
+			Intake in = decode(r.payload);
+			if (in.op == CLOSE) closed(in.a);
+			what = in.toString();
+		}catch(IOException e){
+			what = "unreadable record at " + r.offset;
+		}
+		System.err.println("Intake rejected by the database: " + what + ": " + reason);
+		try{
+			PrintWriter out = new PrintWriter(new FileWriter(rejects, true));
+			out.println(new Date() + "\t" + what + "\t" + reason);
+			out.close();
+		}catch(IOException e){
+			System.err.println(e.getMessage());
+		}
+	}
+
+	/**
+	 * Gives the drainer a few seconds to empty the journal, then stops it.
+	 * What is left is replayed on the next start.
+	 */
+	public void close() {
+		stopped = true;
+		synchronized (this) {
+			notifyAll();
+		}
+		try{
+			drainer.join(CLOSE_WAIT_MS);
+		}catch(InterruptedException e){
+			// ignored.
+		}
+		if (drainer.isAlive()) {
+			System.out.println("Intake journal: " + journal.pendingBytes() + " bytes not yet written, they are replayed on the next start");
+			drainer.interrupt();
+		} else {
+			disconnect();
+			journal.close();
+		}
+		delegate.close();
+	}
+
+	//--- everything else goes straight to the database ---
+
+	public int addCustomer(Integer id, String fname, String lname, String phone, String address) throws Exception {
+		return delegate.addCustomer(id, fname, lname, phone, address);
+	}
+
+	public List<List<String>> findCustomers(String lname, String fname) throws Exception {
+		return delegate.findCustomers(lname, fname);
+	}
+
+	public int addMechanic(Integer id, String fname, String lname, int experience) throws Exception {
+		return delegate.addMechanic(id, fname, lname, experience);
+	}
+
+	public boolean mechanicExists(int id) throws Exception {
+		return delegate.mechanicExists(id);
+	}
+
+	public void addCar(String vin, String make, String model, int year) throws Exception {
+		delegate.addCar(vin, make, model, year);
+	}
+
+	public boolean carExists(String vin) throws Exception {
+		return delegate.carExists(vin);
+	}
+
+	public void vins(RowSink sink) throws Exception {
+		delegate.vins(sink);
+	}
+
+	public void addOwnership(int customerId, String vin) throws Exception {
+		delegate.addOwnership(customerId, vin);
+	}
+
+	public List<List<String>> carsOwnedBy(int customerId) throws Exception {
+		return delegate.carsOwnedBy(customerId);
+	}
+
+	public List<List<String>> ownersOf(String vin) throws Exception {
+		return delegate.ownersOf(vin);
+	}
+
+	/**
+	 * @return null also when the close of rid is journaled but not yet in
+	 * the database
+	 */
+	public List<String> findOpenServiceRequest(int rid) throws Exception {
+		synchronized (closing) {
+			if (closing.containsKey(rid)) return null;
+		}
+		return delegate.findOpenServiceRequest(rid);
+	}
+
+	/**
+	 * Not journaled, the per-row report needs the database's answer.
+	 */
+	public List<List<String>> closeServiceRequests(List<List<String>> closes) throws Exception {
+		return delegate.closeServiceRequests(closes);
+	}
+
+	public List<int[]> mechanicWorkloads() throws Exception {
+		return delegate.mechanicWorkloads();
+	}
+
+	public int assignMechanic(int rid, int mechanicId, int expectedOpen) throws Exception {
+		return delegate.assignMechanic(rid, mechanicId, expectedOpen);
+	}
+
+	public void closedRequestsWithBillUnder100(String from, String to, RowSink sink) throws Exception {
+		delegate.closedRequestsWithBillUnder100(from, to, sink);
+	}
+
+	public void customersWithMoreThan20Cars(RowSink sink) throws Exception {
+		delegate.customersWithMoreThan20Cars(sink);
+	}
+
+	public void carsBefore1995With50000Miles(String from, String to, RowSink sink) throws Exception {
+		delegate.carsBefore1995With50000Miles(from, to, sink);
+	}
+
+	public void carsWithMostServices(int k, String from, String to, RowSink sink) throws Exception {
+		delegate.carsWithMostServices(k, from, to, sink);
+	}
+
+	public void customersByTotalBill(String from, String to, RowSink sink) throws Exception {
+		delegate.customersByTotalBill(from, to, sink);
+	}
+
+	public Page closedRequestsWithBillUnder100(String from, String to, Page.Cursor cursor) throws Exception {
+		return delegate.closedRequestsWithBillUnder100(from, to, cursor);
+	}
+
+	public Page carsBefore1995With50000Miles(String from, String to, Page.Cursor cursor) throws Exception {
+		return delegate.carsBefore1995With50000Miles(from, to, cursor);
+	}
+
+	public Page customersByTotalBill(String from, String to, Page.Cursor cursor) throws Exception {
+		return delegate.customersByTotalBill(from, to, cursor);
+	}
+
+	public void openServiceRequests(RowSink sink) throws Exception {
+		delegate.openServiceRequests(sink);
+	}
+
+	public void closedHistory(RowSink sink) throws Exception {
+		delegate.closedHistory(sink);
+	}
+
+	public void statementLines(String from, String to, RowSink sink) throws Exception {
+		delegate.statementLines(from, to, sink);
+	}
+
+	public List<String> archiveRequestPartitions(String cutoff) throws Exception {
+		return delegate.archiveRequestPartitions(cutoff);
+	}
+}
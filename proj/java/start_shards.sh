@@ -0,0 +1,3 @@
+#! /bin/bash
+# Example: source ./start_shards.sh 3
+source ../postgresql/startShards.sh $1
@@ -0,0 +1,2 @@
+#! /bin/bash
+source ../postgresql/stopReplica.sh
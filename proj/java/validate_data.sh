@@ -0,0 +1,7 @@
+#! /bin/bash
+DATADIR=${1:-../data}
+
+# Checks the CSV files create.sql loads and lists the rows Postgres would
+# refuse in rejects.txt, exits with status 1 when there are any
+# Example: source ./validate_data.sh ../data
+java -cp lib/*:bin/ CsvValidator $DATADIR rejects.txt
@@ -9,5 +9,6 @@ cp ../data/*.csv /tmp/dnguy117/myDB/data/.
 
 echo "Initializing tables .. "
 sleep 1
+psql -h localhost -p 9991 dnguy117_DB < ../sql/partition.sql
 psql -h localhost -p 9991 dnguy117_DB < ../sql/create.sql
 psql -h localhost -p 9991 dnguy117_DB < ../sql/function.sql
\ No newline at end of file
@@ -0,0 +1,23 @@
+#! /bin/bash
+# Streaming replica of the database started by startPostgreSQL.sh, for
+# testing read/write splitting on one machine. Run it after start_db.sh.
+folder=/tmp/dnguy117
+export REPLICA_PGDATA=$folder/replica/data
+export REPLICA_PGSOCKETS=$folder/replica/sockets
+export REPLICA_PGPORT=9992
+
+echo $folder/replica
+
+#Clear folder
+rm -rf $folder/replica
+
+#Initialize folders
+mkdir $folder/replica
+mkdir $folder/replica/sockets
+
+#Copy the primary, -R writes the standby configuration
+pg_basebackup -h localhost -p 9991 -D $REPLICA_PGDATA -R -X stream
+
+sleep 1
+#Start replica
+pg_ctl -o "-c unix_socket_directories=$REPLICA_PGSOCKETS -p $REPLICA_PGPORT -c hot_standby=on" -D $REPLICA_PGDATA -l $folder/replica/logfile start
@@ -0,0 +1,32 @@
+#! /bin/bash
+# Databases on ports 9993, 9994, ... each holding one shard of ../data,
+# for testing ShardedShopRepository on one machine. Run from java/.
+# Example: source ../postgresql/startShards.sh 3
+shards=${1:-2}
+folder=/tmp/dnguy117/shards
+
+echo $folder
+
+#Clear folder
+rm -rf $folder
+mkdir -p $folder
+
+for ((i = 0; i < shards; i++)); do
+	port=$((9993 + i))
+	data=$folder/shard$i/data
+	mkdir -p $folder/shard$i/sockets
+
+	#Initialize and start the shard's database
+	initdb -D $data
+	sleep 1
+	pg_ctl -o "-c unix_socket_directories=$folder/shard$i/sockets -p $port" -D $data -l $folder/shard$i/logfile start
+	sleep 1
+
+	#Load everything, then keep the shard's rows
+	createdb -h localhost -p $port dnguy117_DB
+	cp ../data/*.csv $data/.
+	psql -h localhost -p $port dnguy117_DB < ../sql/partition.sql
+	psql -h localhost -p $port dnguy117_DB < ../sql/create.sql
+	psql -h localhost -p $port dnguy117_DB < ../sql/function.sql
+	psql -h localhost -p $port -v shard=$i -v shards=$shards dnguy117_DB < ../sql/shard.sql
+done
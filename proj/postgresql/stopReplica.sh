@@ -0,0 +1,2 @@
+#! /bin/bash
+pg_ctl -D /tmp/dnguy117/replica/data stop
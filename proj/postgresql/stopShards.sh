@@ -0,0 +1,4 @@
+#! /bin/bash
+for data in /tmp/dnguy117/shards/shard*/data; do
+	pg_ctl -D $data stop
+done
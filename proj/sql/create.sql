@@ -25,18 +25,18 @@ CREATE DOMAIN _YEAR AS int4 CHECK(VALUE >= 1970);
 CREATE TABLE Customer
 (
 	id INTEGER NOT NULL,
-	fname CHAR(32) NOT NULL,
-	lname CHAR(32) NOT NULL,
+	fname VARCHAR(32) NOT NULL,
+	lname VARCHAR(32) NOT NULL,
 	phone CHAR(13) NOT NULL,
-	address CHAR(256) NOT NULL,
+	address VARCHAR(256) NOT NULL,
 	PRIMARY KEY (id)
 );
 
 CREATE TABLE Mechanic
 (
 	id INTEGER NOT NULL,
-	fname CHAR(32) NOT NULL,
-	lname CHAR(32) NOT NULL,
+	fname VARCHAR(32) NOT NULL,
+	lname VARCHAR(32) NOT NULL,
 	experience _YEARS NOT NULL,
 	PRIMARY KEY (id) 
 );
@@ -62,6 +62,12 @@ CREATE TABLE Owns
 	FOREIGN KEY (car_vin) REFERENCES Car(vin)
 );
 
+--Service_Request and Closed_Request are partitioned by month on date,
+--partitions are created on demand by ensure_request_partitions() (partition.sql).
+--The partition key has to be part of the primary key, so Closed_Request.rid
+--is checked by the trg_closed_request_rid trigger (function.sql) instead of
+--a foreign key, and rid alone is kept unique by the trg_service_request_rid
+--trigger (java/src/RequestIdsMigration.java).
 CREATE TABLE Service_Request
 (
 	rid INTEGER NOT NULL,
@@ -70,10 +76,13 @@ CREATE TABLE Service_Request
 	date DATE NOT NULL,
 	odometer _PINTEGER NOT NULL,
 	complain TEXT,
-	PRIMARY KEY (rid),
+	status _STATUS NOT NULL DEFAULT 'W', --W(aiting), R(epairing), C(losed)
+	mechanic_id INTEGER, --assigned mechanic, set together with status R
+	PRIMARY KEY (rid, date),
 	FOREIGN KEY (customer_id) REFERENCES Customer(id),
-	FOREIGN KEY (car_vin) REFERENCES Car(vin)
-);
+	FOREIGN KEY (car_vin) REFERENCES Car(vin),
+	FOREIGN KEY (mechanic_id) REFERENCES Mechanic(id)
+) PARTITION BY RANGE (date);
 
 CREATE TABLE Closed_Request
 (
@@ -83,15 +92,22 @@ CREATE TABLE Closed_Request
 	date DATE NOT NULL,
 	comment TEXT,
 	bill _PINTEGER NOT NULL,
-	PRIMARY KEY (wid),
-	FOREIGN KEY (rid) REFERENCES Service_Request(rid),
+	PRIMARY KEY (wid, date),
 	FOREIGN KEY (mid) REFERENCES Mechanic(id)
-);
+) PARTITION BY RANGE (date);
+
+CREATE INDEX idx_service_request_rid ON Service_Request (rid);
+CREATE INDEX idx_closed_request_rid ON Closed_Request (rid);
+--work queue, only holds requests that are not closed yet
+CREATE INDEX idx_service_request_open ON Service_Request (date, rid) WHERE status <> 'C';
+--open workload per mechanic, read by the assignment scheduler
+CREATE INDEX idx_service_request_mechanic_open ON Service_Request (mechanic_id) WHERE status <> 'C';
 
 
 ----------------------------
 -- INSERT DATA STATEMENTS --
 ----------------------------
+--a bad row fails its whole COPY, java/validate_data.sh lists them all beforehand
 
 COPY Customer (
 	id,
@@ -129,7 +145,11 @@ COPY Owns (
 FROM 'owns.csv'
 WITH DELIMITER ',';
 
-COPY Service_Request (
+--requests are staged first so the monthly partitions covering the data exist
+CREATE TEMP TABLE Service_Request_load (LIKE Service_Request INCLUDING DEFAULTS);
+CREATE TEMP TABLE Closed_Request_load (LIKE Closed_Request);
+
+COPY Service_Request_load (
 	rid,
 	customer_id,
 	car_vin,
@@ -140,7 +160,7 @@ COPY Service_Request (
 FROM 'service_request.csv'
 WITH DELIMITER ',';
 
-COPY Closed_Request (
+COPY Closed_Request_load (
 	wid,
 	rid,
 	mid,
@@ -149,4 +169,18 @@ COPY Closed_Request (
 	bill
 )
 FROM 'closed_request.csv'
-WITH DELIMITER ',';
\ No newline at end of file
+WITH DELIMITER ',';
+
+SELECT create_month_partitions('Service_Request', MIN(date), MAX(date)) FROM Service_Request_load;
+SELECT create_month_partitions('Closed_Request', MIN(date), MAX(date)) FROM Closed_Request_load;
+
+INSERT INTO Service_Request (rid, customer_id, car_vin, date, odometer, complain, status)
+SELECT S.rid, S.customer_id, S.car_vin, S.date, S.odometer, S.complain,
+	CASE WHEN EXISTS (SELECT 1 FROM Closed_Request_load R WHERE R.rid = S.rid) THEN 'C' ELSE 'W' END
+FROM Service_Request_load S;
+
+INSERT INTO Closed_Request (wid, rid, mid, date, comment, bill)
+SELECT wid, rid, mid, date, comment, bill FROM Closed_Request_load;
+
+DROP TABLE Service_Request_load;
+DROP TABLE Closed_Request_load;
\ No newline at end of file
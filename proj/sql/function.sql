@@ -4,6 +4,7 @@ DROP SEQUENCE IF EXISTS seq_ownership_id;
 DROP SEQUENCE IF EXISTS seq_rid_id;
 DROP SEQUENCE IF EXISTS seq_wid_id;
 --DROP TRIGGER IF EXISTS trg_customer_id;
+DROP TRIGGER IF EXISTS trg_closed_request_rid ON Closed_Request;
 
 ---------------
 -- SEQUENCES --
@@ -30,6 +31,21 @@ CREATE SEQUENCE seq_wid_id START WITH 30001 INCREMENT BY 1;
 --	$BODY$
 --	LANGUAGE plpgsql VOLATILE;
 
+--Closed_Request.rid can not be a foreign key into the partitioned
+--Service_Request (its key is (rid, date)), so it is checked here.
+CREATE OR REPLACE FUNCTION check_closed_request_rid()
+	RETURNS "trigger" AS
+	$BODY$
+	BEGIN
+	IF NOT EXISTS (SELECT 1 FROM Service_Request S WHERE S.rid = NEW.rid) THEN
+		RAISE EXCEPTION 'service request % does not exist', NEW.rid
+			USING ERRCODE = 'foreign_key_violation';
+	END IF;
+	RETURN NEW;
+	END;
+	$BODY$
+	LANGUAGE plpgsql VOLATILE;
+
 
 --------------
 -- TRIGGERS --
@@ -38,3 +54,5 @@ CREATE SEQUENCE seq_wid_id START WITH 30001 INCREMENT BY 1;
 --CREATE TRIGGER trg_customer_id BEFORE INSERT 
 --ON Customer EXECUTE PROCEDURE next_customer_id();
 
+CREATE TRIGGER trg_closed_request_rid AFTER INSERT OR UPDATE OF rid
+ON Closed_Request FOR EACH ROW EXECUTE PROCEDURE check_closed_request_rid();
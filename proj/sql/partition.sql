@@ -0,0 +1,127 @@
+-------------------------------
+-- PARTITION MAINTENANCE     --
+-------------------------------
+-- Service_Request and Closed_Request are range partitioned by month on
+-- their date column (see create.sql).  Load this file before create.sql,
+-- the initial data load uses create_month_partitions().
+--
+-- Partitions are named <parent>_yYYYYmMM, e.g. service_request_y2016m05.
+
+CREATE SCHEMA IF NOT EXISTS archive;
+
+--Creates the partition of parent holding the month of d (no-op if it exists)
+CREATE OR REPLACE FUNCTION create_month_partition(parent TEXT, d DATE)
+	RETURNS TEXT AS
+	$BODY$
+	DECLARE
+		lo DATE := date_trunc('month', d)::DATE;
+		hi DATE := (date_trunc('month', d) + INTERVAL '1 month')::DATE;
+		part TEXT := lower(parent) || '_y' || to_char(lo, 'YYYY') || 'm' || to_char(lo, 'MM');
+	BEGIN
+		IF to_regclass(part) IS NULL AND to_regclass('archive.' || part) IS NULL THEN
+			BEGIN
+				EXECUTE format('CREATE TABLE %I PARTITION OF %I FOR VALUES FROM (%L) TO (%L)',
+					part, lower(parent), lo, hi);
+			EXCEPTION WHEN duplicate_table THEN
+				--another client created it first
+				NULL;
+			END;
+		END IF;
+		RETURN part;
+	END;
+	$BODY$
+	LANGUAGE plpgsql VOLATILE;
+
+--Creates every monthly partition of parent between lo and hi (inclusive)
+CREATE OR REPLACE FUNCTION create_month_partitions(parent TEXT, lo DATE, hi DATE)
+	RETURNS INTEGER AS
+	$BODY$
+	DECLARE
+		m DATE := date_trunc('month', lo)::DATE;
+		n INTEGER := 0;
+	BEGIN
+		WHILE m <= hi LOOP
+			PERFORM create_month_partition(parent, m);
+			m := (m + INTERVAL '1 month')::DATE;
+			n := n + 1;
+		END LOOP;
+		RETURN n;
+	END;
+	$BODY$
+	LANGUAGE plpgsql VOLATILE;
+
+--Called by the client before inserting a request opened or closed on d
+CREATE OR REPLACE FUNCTION ensure_request_partitions(d DATE)
+	RETURNS VOID AS
+	$BODY$
+	BEGIN
+		PERFORM create_month_partition('Service_Request', d);
+		PERFORM create_month_partition('Closed_Request', d);
+	END;
+	$BODY$
+	LANGUAGE plpgsql VOLATILE;
+
+--Detaches the request partitions of every month ending on or before
+--cutoff and moves them into the archive schema.  Returns the archived
+--table names so the caller can compact them (VACUUM cannot run inside a
+--function).
+--A request and its close are archived together: a month is archived
+--with both its partitions, and only when none of its requests is still
+--open, closed in a month that stays, or opened in a month that stays.
+--Otherwise the joins on rid would lose the half left behind.
+CREATE OR REPLACE FUNCTION archive_request_partitions(cutoff DATE)
+	RETURNS SETOF TEXT AS
+	$BODY$
+	DECLARE
+		p RECORD;
+		months DATE[];
+		kept DATE[];
+	BEGIN
+		SELECT array_agg(DISTINCT m) INTO months FROM (
+			SELECT to_date(substring(child.relname from '_y(\d{4})m\d{2}$') || substring(child.relname from '_y\d{4}m(\d{2})$'), 'YYYYMM') AS m
+			FROM pg_inherits i
+				JOIN pg_class parent ON parent.oid = i.inhparent
+				JOIN pg_class child ON child.oid = i.inhrelid
+			WHERE parent.relname IN ('service_request', 'closed_request')
+				AND child.relname ~ '_y\d{4}m\d{2}$'
+		) candidate
+		WHERE m + INTERVAL '1 month' <= cutoff;
+		IF months IS NULL THEN
+			RETURN;
+		END IF;
+
+		--keeping a month can keep others, repeat until nothing changes
+		LOOP
+			SELECT array_agg(DISTINCT m) INTO kept FROM (
+				SELECT date_trunc('month', S.date)::DATE AS m FROM Service_Request S
+				WHERE S.date < cutoff AND date_trunc('month', S.date)::DATE = ANY (months) AND S.status <> 'C'
+				UNION
+				SELECT date_trunc('month', S.date)::DATE FROM Service_Request S JOIN Closed_Request C ON C.rid = S.rid
+				WHERE S.date < cutoff AND date_trunc('month', S.date)::DATE = ANY (months) AND NOT date_trunc('month', C.date)::DATE = ANY (months)
+				UNION
+				SELECT date_trunc('month', C.date)::DATE FROM Closed_Request C JOIN Service_Request S ON S.rid = C.rid
+				WHERE C.date < cutoff AND date_trunc('month', C.date)::DATE = ANY (months) AND NOT date_trunc('month', S.date)::DATE = ANY (months)
+			) blocked;
+			EXIT WHEN kept IS NULL;
+			RAISE NOTICE 'months % still have open requests or requests of other months, not archived', kept;
+			months := ARRAY(SELECT unnest(months) EXCEPT SELECT unnest(kept));
+		END LOOP;
+
+		FOR p IN
+			SELECT parent.relname AS parent, child.relname AS child
+			FROM pg_inherits i
+				JOIN pg_class parent ON parent.oid = i.inhparent
+				JOIN pg_class child ON child.oid = i.inhrelid
+			WHERE parent.relname IN ('service_request', 'closed_request')
+				AND child.relname ~ '_y\d{4}m\d{2}$'
+				AND to_date(substring(child.relname from '_y(\d{4})m\d{2}$') || substring(child.relname from '_y\d{4}m(\d{2})$'), 'YYYYMM') = ANY (months)
+			ORDER BY child.relname
+		LOOP
+			EXECUTE format('ALTER TABLE %I DETACH PARTITION %I', p.parent, p.child);
+			EXECUTE format('ALTER TABLE %I SET SCHEMA archive', p.child);
+			EXECUTE format('ALTER TABLE archive.%I SET (fillfactor = 100)', p.child);
+			RETURN NEXT 'archive.' || p.child;
+		END LOOP;
+	END;
+	$BODY$
+	LANGUAGE plpgsql VOLATILE;
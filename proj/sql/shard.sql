@@ -0,0 +1,56 @@
+-------------------------------
+-- SHARDING                  --
+-------------------------------
+-- Keeps the rows of one shard of a database loaded with create.sql and
+-- function.sql (see java/src/ShardedShopRepository.java):
+--   customers with id modulo N = shard, their ownerships, service
+--   requests and closed requests, the cars those refer to and, on shard
+--   0, the cars nobody owns. Mechanics stay on every shard.
+-- The sequences then hand out only ids of this shard.
+--
+-- Usage: psql -v shard=<0..N-1> -v shards=<N> <db> < shard.sql
+
+SELECT set_config('shop.shard', :'shard', false), set_config('shop.shards', :'shards', false);
+
+CREATE OR REPLACE FUNCTION on_this_shard(customer_id INTEGER)
+	RETURNS BOOLEAN AS
+	$BODY$
+	SELECT mod(mod($1, current_setting('shop.shards')::INT) + current_setting('shop.shards')::INT, current_setting('shop.shards')::INT)
+		= current_setting('shop.shard')::INT;
+	$BODY$
+	LANGUAGE sql STABLE;
+
+--decided while every ownership is still there
+CREATE TEMP TABLE shard_cars AS
+	SELECT K.vin FROM Car K
+	WHERE EXISTS (SELECT 1 FROM Owns O WHERE O.car_vin = K.vin AND on_this_shard(O.customer_id))
+	OR EXISTS (SELECT 1 FROM Service_Request S WHERE S.car_vin = K.vin AND on_this_shard(S.customer_id))
+	OR (current_setting('shop.shard')::INT = 0 AND NOT EXISTS (SELECT 1 FROM Owns O WHERE O.car_vin = K.vin));
+
+DELETE FROM Closed_Request C USING Service_Request S WHERE S.rid = C.rid AND NOT on_this_shard(S.customer_id);
+DELETE FROM Service_Request S WHERE NOT on_this_shard(S.customer_id);
+DELETE FROM Owns O WHERE NOT on_this_shard(O.customer_id);
+DELETE FROM Customer C WHERE NOT on_this_shard(C.id);
+DELETE FROM Car K WHERE K.vin NOT IN (SELECT vin FROM shard_cars);
+
+DROP FUNCTION on_this_shard(INTEGER);
+
+--ids of this shard only: the first value not yet handed out that is
+--equal to the shard modulo N, then every N-th. Mechanics are added on
+--shard 0 and copied, its sequence stays as it is.
+DO $$
+DECLARE
+	shard INT := current_setting('shop.shard')::INT;
+	shards INT := current_setting('shop.shards')::INT;
+	seq TEXT;
+	next BIGINT;
+BEGIN
+	FOREACH seq IN ARRAY ARRAY['seq_customer_id', 'seq_ownership_id', 'seq_rid_id', 'seq_wid_id'] LOOP
+		EXECUTE format('SELECT last_value + 1 FROM %I', seq) INTO next;
+		next := next + mod(mod(shard - next, shards) + shards, shards);
+		EXECUTE format('ALTER SEQUENCE %I INCREMENT BY %s RESTART WITH %s', seq, shards, next);
+	END LOOP;
+END;
+$$ LANGUAGE plpgsql;
+
+VACUUM ANALYZE;